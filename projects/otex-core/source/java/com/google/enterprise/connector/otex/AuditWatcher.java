@@ -0,0 +1,90 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the last audit event seen when a traversal found no changes,
+ * so that later traversals can be skipped until a new audit event
+ * appears. Checking the last EventID is a single indexed query, much
+ * cheaper than the candidates and deletes queries.
+ * <p>
+ * Not every change to DTree is necessarily audited, so a full
+ * traversal is still run at least once per idle period.
+ */
+class AuditWatcher {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(AuditWatcher.class.getName());
+
+  /** The longest time to skip traversals without a full check. */
+  private final long maxIdleMillis;
+
+  /** The last EventID when the traversal found no changes, or null. */
+  private String idleEventId = null;
+
+  /** When the traversal last found no changes. */
+  private long idleSinceMillis = 0;
+
+  /**
+   * Constructs a watcher.
+   *
+   * @param maxIdleMillis the longest time to skip traversals without
+   *     running the full traversal queries
+   */
+  AuditWatcher(long maxIdleMillis) {
+    this.maxIdleMillis = maxIdleMillis;
+  }
+
+  /**
+   * Gets whether the traversal can be skipped, because the last audit
+   * event is unchanged since the traversal last found no changes.
+   *
+   * @param lastEventId the current last EventID
+   * @param nowMillis the current time
+   * @return {@code true} if the traversal can be skipped, or
+   *     {@code false} if it must be run
+   */
+  synchronized boolean isQuiet(String lastEventId, long nowMillis) {
+    if (idleEventId == null || !idleEventId.equals(lastEventId)) {
+      return false;
+    }
+    if (nowMillis - idleSinceMillis >= maxIdleMillis) {
+      LOGGER.finest("AUDIT WATCHER: IDLE PERIOD EXPIRED");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Records that the traversal found no changes.
+   *
+   * @param lastEventId the last EventID seen before the traversal
+   * @param nowMillis the current time
+   */
+  synchronized void setIdle(String lastEventId, long nowMillis) {
+    if (LOGGER.isLoggable(Level.FINEST))
+      LOGGER.finest("AUDIT WATCHER: IDLE AT EVENT " + lastEventId);
+    idleEventId = lastEventId;
+    idleSinceMillis = nowMillis;
+  }
+
+  /** Records that the traversal found changes, or failed. */
+  synchronized void setBusy() {
+    idleEventId = null;
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.spi.TraversalContext;
+
+/**
+ * Tracks the time left in a batch, and estimates whether there is
+ * time to process another document before the Connector Manager
+ * abandons the batch. The cost of a document is estimated using an
+ * exponential moving average of the recent documents.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class BatchDeadline {
+  /** The weight of the latest document in the moving average. */
+  private static final double WEIGHT = 0.2;
+
+  /**
+   * The multiple of the average cost to leave before the deadline,
+   * to allow for documents that take longer than average.
+   */
+  private static final int SAFETY_FACTOR = 2;
+
+  /** The end of the batch, in milliseconds, or Long.MAX_VALUE. */
+  private final long deadlineMillis;
+
+  /** The average time to process a document, or -1 if unknown. */
+  private double averageMillis = -1;
+
+  /** When the last document was finished, in milliseconds, or -1. */
+  private long lastDocumentMillis = -1;
+
+  /** The time spent on skipped documents since the last document. */
+  private long skippedMillis = 0;
+
+  /**
+   * Constructs a deadline from the time limit of the traversal context.
+   *
+   * @param traversalContext the traversal context, or {@code null}
+   *     for a batch with no time limit
+   * @param startMillis the start of the batch, in milliseconds
+   */
+  BatchDeadline(TraversalContext traversalContext, long startMillis) {
+    long limitSeconds = (traversalContext == null)
+        ? 0 : traversalContext.traversalTimeLimitSeconds();
+    this.deadlineMillis = (limitSeconds > 0)
+        ? startMillis + limitSeconds * 1000L : Long.MAX_VALUE;
+  }
+
+  /**
+   * Records the time taken to process a document.
+   *
+   * @param elapsedMillis the time taken, in milliseconds
+   */
+  void addDocument(long elapsedMillis) {
+    if (averageMillis < 0) {
+      averageMillis = elapsedMillis;
+    } else {
+      averageMillis = WEIGHT * elapsedMillis + (1 - WEIGHT) * averageMillis;
+    }
+  }
+
+  /**
+   * Records the end of a document. The cost of a document is the time
+   * since the end of the previous one, which includes the time the
+   * Connector Manager spent feeding the previous document.
+   *
+   * @param startMillis when the first document was started
+   * @param nowMillis the current time
+   */
+  void endDocument(long startMillis, long nowMillis) {
+    addDocument(nowMillis - skippedMillis
+        - ((lastDocumentMillis < 0) ? startMillis : lastDocumentMillis));
+    lastDocumentMillis = nowMillis;
+    skippedMillis = 0;
+  }
+
+  /**
+   * Records a document that was skipped without collecting its
+   * content. Its time is left out of the cost of the next document,
+   * so that the cheap skipped documents do not lower the average.
+   *
+   * @param startMillis when the skipped document was started
+   * @param nowMillis the current time
+   */
+  void skipDocument(long startMillis, long nowMillis) {
+    if (lastDocumentMillis >= 0) {
+      skippedMillis += nowMillis - startMillis;
+    }
+  }
+
+  /** Gets the average time to process a document, or -1 if unknown. */
+  double getAverageMillis() {
+    return averageMillis;
+  }
+
+  /**
+   * Gets whether there is likely time to process another document.
+   *
+   * @param nowMillis the current time
+   */
+  boolean hasTimeForDocument(long nowMillis) {
+    if (deadlineMillis == Long.MAX_VALUE) {
+      return true;
+    }
+    double cost = Math.max(averageMillis, 0) * SAFETY_FACTOR;
+    return nowMillis + cost < deadlineMillis;
+  }
+}
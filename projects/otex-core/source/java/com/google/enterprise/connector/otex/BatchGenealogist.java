@@ -56,8 +56,9 @@ class BatchGenealogist extends HybridGenealogist {
       StringBuilder descendants) throws RepositoryException {
     // First, check the matching nodes themselves.
     StringBuilder undecideds = new StringBuilder();
-    for (int i = 0; i < matching.size(); i++) {
-      final int matchingId = matching.toInteger(i, "DataID");
+    int[] matchingIds = new RecArrayColumns(matching).getIntColumn("DataID");
+    for (int i = 0; i < matchingIds.length; i++) {
+      final int matchingId = matchingIds[i];
       if (!matchParent(matchingId, matchingId,
               Collections.<Integer>emptyList(), descendants))
         undecideds.append(matchingId).append(',');
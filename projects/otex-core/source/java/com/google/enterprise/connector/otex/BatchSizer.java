@@ -0,0 +1,134 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the number of candidates to query in each iteration of the
+ * traversal. The size is driven by the fraction of candidates that
+ * pass the filters, aiming for a full batch of results, and is capped
+ * by the measured cost of the candidates and results queries so that
+ * a single iteration does not use too much of the remaining traversal
+ * time.
+ * <p>
+ * The traversal manager is used by one thread at a time, but the
+ * methods are synchronized for the sake of memory visibility across
+ * batches.
+ */
+class BatchSizer {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(BatchSizer.class.getName());
+
+  /**
+   * The largest number of candidates. The candidates are used in SQL
+   * conditions that {@link DataIdSet} splits into IN lists that Oracle
+   * accepts, so this is limited only by the size of the query text.
+   */
+  static final int MAX_CANDIDATES = 10000;
+
+  /** The growth in the number of candidates when none pass the filters. */
+  private static final int SPARSE_GROWTH = 10;
+
+  /** The smallest number of candidates, unless the batch hint is smaller. */
+  static final int MIN_CANDIDATES = 10;
+
+  /** The weight of the newest sample in the moving averages. */
+  private static final double ALPHA = 0.7;
+
+  /** The fraction of the remaining time that one iteration may use. */
+  private static final double BUDGET_FRACTION = 0.25;
+
+  /** The moving average of the ratio of results to candidates. */
+  private double selectivity = 1.0;
+
+  /** The moving average of the query time per candidate, or -1. */
+  private double millisPerCandidate = -1.0;
+
+  /**
+   * Gets the number of candidates to query next.
+   *
+   * @param batchSize the number of results requested by the batch hint
+   * @param remainingMillis the traversal time remaining, or a negative
+   *     number if there is no time limit
+   * @return the number of candidates to query
+   */
+  synchronized int getCandidatesSize(int batchSize, long remainingMillis) {
+    double size = batchSize / selectivity;
+    if (millisPerCandidate > 0 && remainingMillis >= 0) {
+      size = Math.min(size,
+          remainingMillis * BUDGET_FRACTION / millisPerCandidate);
+    }
+    int minimum = Math.min(batchSize, MIN_CANDIDATES);
+    int candidatesSize =
+        (int) Math.max(minimum, Math.min(MAX_CANDIDATES, size));
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.finer("CANDIDATES BATCH SIZE: " + candidatesSize
+          + " (selectivity " + selectivity + ", ms per candidate "
+          + millisPerCandidate + ")");
+    }
+    return candidatesSize;
+  }
+
+  /**
+   * Gets the number of candidates to query after an iteration where
+   * none of the candidates passed the filters. This is used when the
+   * batch size is not adaptive.
+   *
+   * @param candidatesSize the number of candidates in the last query
+   * @return the number of candidates to query next
+   */
+  static int getSparseCandidatesSize(int candidatesSize) {
+    return (int) Math.min(MAX_CANDIDATES,
+        (long) candidatesSize * SPARSE_GROWTH);
+  }
+
+  /**
+   * Records the outcome of one candidates query and its results query.
+   *
+   * @param numCandidates the number of candidates returned
+   * @param numResults the number of candidates that passed the filters
+   * @param elapsedMillis the time spent in both queries, or a negative
+   *     number if the time is not known
+   */
+  synchronized void update(int numCandidates, int numResults,
+      long elapsedMillis) {
+    if (numCandidates <= 0) {
+      return;
+    }
+    // When nothing passes the filters, assume that a little less
+    // than one in numCandidates will, to keep the estimate positive.
+    double sample = Math.max(numResults, 0.5) / numCandidates;
+    selectivity = average(selectivity, Math.min(sample, 1.0));
+    if (elapsedMillis >= 0) {
+      double cost = (double) elapsedMillis / numCandidates;
+      millisPerCandidate = (millisPerCandidate < 0)
+          ? cost : average(millisPerCandidate, cost);
+    }
+  }
+
+  private static double average(double average, double sample) {
+    return ALPHA * sample + (1.0 - ALPHA) * average;
+  }
+
+  @VisibleForTesting
+  synchronized double getSelectivity() {
+    return selectivity;
+  }
+}
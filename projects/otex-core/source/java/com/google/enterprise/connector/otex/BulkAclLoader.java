@@ -0,0 +1,155 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the ACL entries for a batch of documents from DTreeACL, joined
+ * with KUAF for the user and group information, using one ListNodes
+ * query for every {@link #MAX_IDS_PER_QUERY} documents. This replaces
+ * a GetObjectRights call for each document and a
+ * GetUserOrGroupByIDNoThrow call for each ACL entry.
+ * <p>
+ * The user and group information for IDs that are not in the ACL
+ * entries, such as the document owners, is looked up with
+ * GetUserOrGroupByIDNoThrow, and cached for the rest of the batch.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class BulkAclLoader {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(BulkAclLoader.class.getName());
+
+  /** The maximum number of DataIDs in each query. */
+  static final int MAX_IDS_PER_QUERY = 1000;
+
+  /** An ACL entry. */
+  static final class Right {
+    final int rightId;
+    final int permissions;
+
+    Right(int rightId, int permissions) {
+      this.rightId = rightId;
+      this.permissions = permissions;
+    }
+  }
+
+  /** The client to look up missing users and groups with. */
+  private final Client client;
+
+  /** The ACL entries, keyed by DataID. */
+  private final Map<Integer, List<Right>> rights =
+      new HashMap<Integer, List<Right>>();
+
+  /**
+   * The unfiltered user or group information, keyed by user or group
+   * ID. The value is {@code null} if the user or group does not exist.
+   */
+  private final Map<Integer, ClientValue> userInfo =
+      new HashMap<Integer, ClientValue>();
+
+  /**
+   * Reads the ACL entries for the documents in the first rows of a
+   * recarray.
+   *
+   * @param client the client to use
+   * @param sqlQueries the SQL queries for the database
+   * @param recArray the recarray of documents, with a DataID column
+   * @param count the number of rows to use
+   */
+  BulkAclLoader(Client client, SqlQueries sqlQueries, ClientValue recArray,
+      int count) throws RepositoryException {
+    this.client = client;
+
+    int[] dataIds = new int[count];
+    for (int i = 0; i < count; i++) {
+      dataIds[i] = recArray.toInteger(i, "DataID");
+      rights.put(dataIds[i], new ArrayList<Right>());
+    }
+
+    for (int start = 0; start < count; start += MAX_IDS_PER_QUERY) {
+      int end = Math.min(start + MAX_IDS_PER_QUERY, count);
+      int[] chunk = Arrays.copyOfRange(dataIds, start, end);
+      ClientValue results = sqlQueries.execute(client, "BULK ACL QUERY",
+          "BulkAclLoader.getAcls",
+          DataIdSet.of(chunk, chunk.length).toSqlCondition("DataID"));
+      addResults(results);
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("BULK ACL QUERY: " + count + " documents, "
+          + userInfo.size() + " users and groups");
+    }
+  }
+
+  private void addResults(ClientValue results) throws RepositoryException {
+    for (int i = 0; i < results.size(); i++) {
+      int dataId = results.toInteger(i, "DataID");
+      int rightId = results.toInteger(i, "RightID");
+      List<Right> entries = rights.get(dataId);
+      if (entries != null) {
+        entries.add(new Right(rightId, results.toInteger(i, "Permissions")));
+      }
+
+      // The special rights, such as Public Access, have negative IDs.
+      if (rightId >= 0 && !userInfo.containsKey(rightId)) {
+        userInfo.put(rightId,
+            results.isDefined(i, "ID") ? results.toValue(i) : null);
+      }
+    }
+  }
+
+  /**
+   * Gets the ACL entries for a document.
+   *
+   * @param dataId the document DataID
+   * @return the ACL entries, or {@code null} if the document was not
+   *     in this batch
+   */
+  List<Right> getRights(int dataId) {
+    List<Right> entries = rights.get(dataId);
+    return (entries == null) ? null : Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Gets the unfiltered user or group information, as returned by
+   * GetUserOrGroupByIDNoThrow. The UserData in the information read
+   * from KUAF is the string form of the assoc.
+   *
+   * @param userId the user or group ID
+   * @return the information, or {@code null} if the user or group
+   *     does not exist
+   */
+  ClientValue getUserInfo(int userId) throws RepositoryException {
+    if (userInfo.containsKey(userId)) {
+      return userInfo.get(userId);
+    }
+    ClientValue info = client.GetUserOrGroupByIDNoThrow(userId);
+    userInfo.put(userId, info);
+    return info;
+  }
+}
@@ -0,0 +1,205 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the category attribute values for a batch of documents from
+ * the LLAttrData table, using one ListNodes query for every
+ * {@link #MAX_IDS_PER_QUERY} documents. The rows are keyed by (ID,
+ * DefID, DefVerNum, AttrID), and the AttrIDs are mapped to attribute
+ * names and types using the cached category definitions. Only the
+ * values for the current version of each document are read.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class BulkCategoryLoader {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(BulkCategoryLoader.class.getName());
+
+  /** The maximum number of DataIDs in each query. */
+  static final int MAX_IDS_PER_QUERY = 1000;
+
+  /** A category applied to a document, with its attribute values. */
+  static final class Category {
+    final int id;
+    final String name;
+    final List<AttributeValue> values = new ArrayList<AttributeValue>();
+
+    Category(int id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+  }
+
+  /** An attribute value. */
+  static final class AttributeValue {
+    final CategoryDefinitionCache.Attribute attribute;
+    final ClientValue value;
+
+    AttributeValue(CategoryDefinitionCache.Attribute attribute,
+        ClientValue value) {
+      this.attribute = attribute;
+      this.value = value;
+    }
+  }
+
+  /** The categories, keyed by DataID. */
+  private final Map<Integer, List<Category>> categories =
+      new HashMap<Integer, List<Category>>();
+
+  /**
+   * The DataIDs of documents with a category definition that could
+   * not be mapped, which must be read with LAPI.
+   */
+  private final Set<Integer> unmapped = new HashSet<Integer>();
+
+  /**
+   * Reads the category attribute values for the documents in the
+   * first rows of a recarray.
+   *
+   * @param client the client to use
+   * @param sqlQueries the SQL queries for the database
+   * @param definitions the cache of category definitions
+   * @param recArray the recarray of documents, with a DataID column
+   * @param count the number of rows to use
+   */
+  BulkCategoryLoader(Client client, SqlQueries sqlQueries,
+      CategoryDefinitionCache definitions, ClientValue recArray, int count)
+      throws RepositoryException {
+    int[] dataIds = new int[count];
+    for (int i = 0; i < count; i++) {
+      dataIds[i] = recArray.toInteger(i, "DataID");
+      categories.put(dataIds[i], new ArrayList<Category>());
+    }
+
+    int rows = 0;
+    for (int start = 0; start < count; start += MAX_IDS_PER_QUERY) {
+      int end = Math.min(start + MAX_IDS_PER_QUERY, count);
+      int[] chunk = Arrays.copyOfRange(dataIds, start, end);
+      ClientValue results = sqlQueries.execute(client,
+          "BULK CATEGORY QUERY", "BulkCategoryLoader.getAttributes",
+          DataIdSet.of(chunk, chunk.length).toSqlCondition("DataID"));
+      addResults(client, definitions, results);
+      rows += results.size();
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("BULK CATEGORY QUERY: " + count + " documents, " + rows
+          + " attribute values");
+    }
+  }
+
+  /** Adds the query results, which are ordered by DataID and DefID. */
+  private void addResults(Client client, CategoryDefinitionCache definitions,
+      ClientValue results) throws RepositoryException {
+    Category category = null;
+    int categoryDataId = 0;
+    Map<Integer, CategoryDefinitionCache.Attribute> definition = null;
+    for (int i = 0; i < results.size(); i++) {
+      int dataId = results.toInteger(i, "DataID");
+      int defId = results.toInteger(i, "DefID");
+      List<Category> documentCategories = categories.get(dataId);
+      if (documentCategories == null || unmapped.contains(dataId)) {
+        continue;
+      }
+      if (category == null || categoryDataId != dataId
+          || category.id != defId) {
+        definition = definitions.get(client, dataId, defId,
+            results.toInteger(i, "DefVerNum"));
+        if (definition == null) {
+          unmapped.add(dataId);
+          category = null;
+          continue;
+        }
+        category = new Category(defId, results.toString(i, "DefName"));
+        categoryDataId = dataId;
+        documentCategories.add(category);
+      }
+
+      // Rows for attribute sets themselves have no definition.
+      CategoryDefinitionCache.Attribute attribute =
+          definition.get(results.toInteger(i, "AttrID"));
+      if (attribute != null) {
+        ClientValue value = getValue(results, i, attribute.type);
+        if (value != null) {
+          category.values.add(new AttributeValue(attribute, value));
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the value of an attribute from the column for its type.
+   *
+   * @return the value, or {@code null} if the attribute has no value
+   */
+  private ClientValue getValue(ClientValue results, int row, int attrType)
+      throws RepositoryException {
+    String column;
+    switch (attrType) {
+      case Client.ATTR_TYPE_BOOL:
+      case Client.ATTR_TYPE_INT:
+      case Client.ATTR_TYPE_INTPOPUP:
+      case Client.ATTR_TYPE_USER:
+        column = "ValInt";
+        break;
+      case Client.ATTR_TYPE_REAL:
+      case Client.ATTR_TYPE_REALPOPUP:
+        column = "ValReal";
+        break;
+      case Client.ATTR_TYPE_DATE:
+      case Client.ATTR_TYPE_DATEPOPUP:
+        column = "ValDate";
+        break;
+      case Client.ATTR_TYPE_STRMULTI:
+        // Long text values are stored in ValLong.
+        column = results.isDefined(row, "ValLong") ? "ValLong" : "ValStr";
+        break;
+      default:
+        column = "ValStr";
+        break;
+    }
+    if (!results.isDefined(row, column)) {
+      return null;
+    }
+    ClientValue value = results.toValue(row, column);
+    return value.hasValue() ? value : null;
+  }
+
+  /**
+   * Gets the categories applied to a document.
+   *
+   * @param dataId the document DataID
+   * @return the categories, or {@code null} if the document was not in
+   *     this batch, or if its values must be read with LAPI
+   */
+  List<Category> getCategories(int dataId) {
+    return unmapped.contains(dataId) ? null : categories.get(dataId);
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the VersionInfo fields for the current versions of a batch of
+ * documents from the DVersData table, using one ListNodes query for
+ * every {@link #MAX_IDS_PER_QUERY} documents. This replaces a
+ * GetVersionInfo call for each document. The VersionInfo fields have
+ * the same names as the DVersData columns.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class BulkVersionLoader {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(BulkVersionLoader.class.getName());
+
+  /** The maximum number of DataIDs in each query. */
+  static final int MAX_IDS_PER_QUERY = 1000;
+
+  /** The query key in {@code SqlQueries}. */
+  private static final String QUERY_KEY = "BulkVersionLoader.getVersions";
+
+  /** The VersionInfo rows, keyed by DataID. */
+  private final Map<Integer, ClientValue> versions =
+      new HashMap<Integer, ClientValue>();
+
+  /**
+   * Reads the VersionInfo fields for the documents in the first rows
+   * of a recarray.
+   *
+   * @param client the client to use
+   * @param sqlQueries the SQL queries for the database
+   * @param versionInfoKeys the configured VersionInfo fields, or
+   *     {@code null}
+   * @param recArray the recarray of documents, with a DataID column
+   * @param count the number of rows to use
+   */
+  BulkVersionLoader(Client client, SqlQueries sqlQueries,
+      String[] versionInfoKeys, ClientValue recArray, int count)
+      throws RepositoryException {
+    String[] columns = getColumns(versionInfoKeys);
+    String view = sqlQueries.getFrom(null, QUERY_KEY);
+
+    int[] dataIds = new int[count];
+    for (int i = 0; i < count; i++) {
+      dataIds[i] = recArray.toInteger(i, "DataID");
+    }
+    for (int start = 0; start < count; start += MAX_IDS_PER_QUERY) {
+      int end = Math.min(start + MAX_IDS_PER_QUERY, count);
+      int[] chunk = Arrays.copyOfRange(dataIds, start, end);
+      String query = sqlQueries.getWhere("BULK VERSION QUERY", QUERY_KEY,
+          DataIdSet.of(chunk, chunk.length).toSqlCondition("DataID"));
+      ClientValue results = client.ListNodes(query, view, columns);
+      for (int i = 0; i < results.size(); i++) {
+        versions.put(results.toInteger(i, "DataID"), results.toValue(i));
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("BULK VERSION QUERY: " + count + " documents, "
+          + versions.size() + " versions");
+    }
+  }
+
+  /**
+   * Gets the columns to select, which are the configured VersionInfo
+   * fields and the FileName used for the display URL. Fields that are
+   * not simple identifiers cannot be columns, and are ignored.
+   */
+  private static String[] getColumns(String[] versionInfoKeys) {
+    Set<String> columns = new LinkedHashSet<String>();
+    columns.add("DataID");
+    columns.add("FileName");
+    if (versionInfoKeys != null) {
+      for (String key : versionInfoKeys) {
+        if (key.matches("[A-Za-z][A-Za-z0-9]*")) {
+          columns.add(key);
+        } else {
+          LOGGER.log(Level.WARNING,
+              "Ignoring VersionInfo field {0} in bulk queries", key);
+        }
+      }
+    }
+    return columns.toArray(new String[0]);
+  }
+
+  /**
+   * Gets the VersionInfo fields for the current version of a document.
+   *
+   * @param dataId the document DataID
+   * @return the fields, or {@code null} if the document was not in
+   *     this batch, or has no versions
+   */
+  ClientValue getVersionInfo(int dataId) {
+    return versions.get(dataId);
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ClientValueFactory;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the attribute definitions of category versions, which map
+ * the AttrIDs in the LLAttrData table to the attribute names and
+ * types. A definition is read with LAPI from an object that has the
+ * category version applied, the first time it is needed.
+ * <p>
+ * This class is thread-safe.
+ */
+final class CategoryDefinitionCache {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(CategoryDefinitionCache.class.getName());
+
+  /** An attribute in a category definition. */
+  static final class Attribute {
+    final String name;
+    final int type;
+    final boolean searchable;
+
+    Attribute(String name, int type, boolean searchable) {
+      this.name = name;
+      this.type = type;
+      this.searchable = searchable;
+    }
+  }
+
+  /**
+   * The definitions, keyed by category ID and version. The value is
+   * {@code null} if the definition does not include the AttrIDs.
+   */
+  private final CacheMap<String, Map<Integer, Attribute>> definitions =
+      new CacheMap<String, Map<Integer, Attribute>>(64, 1024);
+
+  /**
+   * Gets the definition of a category version.
+   *
+   * @param client the client to read the definition with
+   * @param objectId an object that has the category version applied
+   * @param categoryId the category object ID
+   * @param categoryVersion the category version number
+   * @return the attributes keyed by AttrID, including the attributes
+   *     in attribute sets, or {@code null} if the definition does not
+   *     include the AttrIDs
+   */
+  synchronized Map<Integer, Attribute> get(Client client, int objectId,
+      int categoryId, int categoryVersion) throws RepositoryException {
+    String key = categoryId + "/" + categoryVersion;
+    if (definitions.containsKey(key)) {
+      return definitions.get(key);
+    }
+    Map<Integer, Attribute> definition =
+        read(client, objectId, categoryId, categoryVersion);
+    definitions.put(key, definition);
+    return definition;
+  }
+
+  private Map<Integer, Attribute> read(Client client, int objectId,
+      int categoryId, int categoryVersion) throws RepositoryException {
+    ClientValueFactory valueFactory = client.getClientValueFactory();
+    ClientValue objIdAssoc = valueFactory.createAssoc();
+    objIdAssoc.add("ID", objectId);
+    ClientValue categoryIdAssoc = valueFactory.createAssoc();
+    categoryIdAssoc.add("ID", categoryId);
+    categoryIdAssoc.add("Type", Client.CATEGORY_TYPE_LIBRARY);
+    ClientValue version =
+        client.GetObjectAttributesEx(objIdAssoc, categoryIdAssoc);
+
+    Map<Integer, Attribute> definition = new HashMap<Integer, Attribute>();
+    if (!addAttributes(client, version, null, definition)) {
+      LOGGER.log(Level.WARNING, "Category ID {0,number,#} version {1} has "
+          + "no attribute IDs; reading its values with LAPI",
+          new Object[] { categoryId, categoryVersion });
+      return null;
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("CATEGORY DEFINITION: ID " + categoryId + ", version "
+          + categoryVersion + ", " + definition.size() + " attributes");
+    }
+    return Collections.unmodifiableMap(definition);
+  }
+
+  /**
+   * Adds the attributes at the given path to the definition.
+   *
+   * @return {@code false} if an attribute has no ID
+   */
+  private boolean addAttributes(Client client, ClientValue version,
+      ClientValue attrSetPath, Map<Integer, Attribute> definition)
+      throws RepositoryException {
+    ClientValue attrNames = client.AttrListNames(version, attrSetPath);
+    for (int i = 0; i < attrNames.size(); i++) {
+      String attrName = attrNames.toString(i);
+      ClientValue attrInfo =
+          client.AttrGetInfo(version, attrName, attrSetPath);
+      int attrType = attrInfo.toInteger("Type");
+      if (Client.ATTR_TYPE_SET == attrType) {
+        if (attrSetPath == null) {
+          ClientValue path = client.getClientValueFactory().createList();
+          path.add(attrName);
+          if (!addAttributes(client, version, path, definition)) {
+            return false;
+          }
+        } else {
+          LOGGER.finer("Nested attributes sets are not supported.");
+        }
+        continue;
+      }
+      if (!attrInfo.isDefined("ID")) {
+        return false;
+      }
+      definition.put(attrInfo.toInteger("ID"),
+          new Attribute(attrName, attrType, isSearchable(attrInfo)));
+    }
+    return true;
+  }
+
+  /**
+   * Gets whether an attribute is searchable. Categories created under
+   * old versions of Livelink do not have a Search attribute, and we
+   * assume that those attributes should be indexed.
+   */
+  private boolean isSearchable(ClientValue attrInfo) {
+    try {
+      return attrInfo.toBoolean("Search");
+    } catch (RepositoryException e) {
+      return true;
+    }
+  }
+}
@@ -19,8 +19,10 @@ import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.otex.client.ClientValueFactory;
 import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.Value;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -71,6 +73,9 @@ class CategoryHandler {
   @VisibleForTesting
   HashSet<Integer> searchableCache = null;
 
+  /** The attribute values read in bulk for the current batch, or null. */
+  private BulkCategoryLoader bulkLoader = null;
+
   /**
    * Constructs a category handler. This object is specific a
    * Connector instance, but not to a Document or DocumentList.
@@ -104,6 +109,30 @@ class CategoryHandler {
       excludedCategories = null;
   }
 
+  /**
+   * Reads the category attribute values for a batch of documents from
+   * the LLAttrData table. The values for other documents, and for
+   * documents with categories that cannot be mapped, are read with
+   * LAPI. A failed query is logged, and all of the values are read
+   * with LAPI.
+   *
+   * @param sqlQueries the SQL queries for the database
+   * @param recArray the recarray of documents, with a DataID column
+   * @param count the number of rows to use
+   */
+  void loadBatch(SqlQueries sqlQueries, ClientValue recArray, int count) {
+    bulkLoader = null;
+    if (doCategories) {
+      try {
+        bulkLoader = new BulkCategoryLoader(client, sqlQueries,
+            connector.getCategoryDefinitionCache(), recArray, count);
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING,
+            "Bulk category query failed; using GetObjectAttributesEx", e);
+      }
+    }
+  }
+
   /**
    * Gets the category attribute values for the indicated
    * object.
@@ -120,6 +149,15 @@ class CategoryHandler {
     if (doCategories == false)
       return;
 
+    if (bulkLoader != null) {
+      List<BulkCategoryLoader.Category> categories =
+          bulkLoader.getCategories(objectId);
+      if (categories != null) {
+        collectCategoryAttributes(categories, nameHandler, props);
+        return;
+      }
+    }
+
     // List the categories. LAPI requires us to use this
     // Assoc containing the id instead of just passing in
     // the id. The Assoc may have two other values, Type,
@@ -140,10 +178,7 @@ class CategoryHandler {
       // If this Category is not in the included list, or it is
       // explicitly mentioned in the excluded list, then skip it.
       Integer id = new Integer(categoryId.toInteger("ID"));
-      if (((includedCategories != null) &&
-              !includedCategories.contains(id)) ||
-          ((excludedCategories != null) &&
-              excludedCategories.contains(id)))
+      if (!isIncluded(id))
         continue;
 
       // Make sure we know what type of categoryId
@@ -193,6 +228,55 @@ class CategoryHandler {
     }
   }
 
+  /**
+   * Adds the category attribute values that were read in bulk.
+   *
+   * @param categories the categories applied to the object
+   * @param nameHandler a handler that maps user IDs to user names
+   * @param props the collection of all document properties to add the
+   * category attribute values to
+   * @throws RepositoryException if an error occurs
+   */
+  private void collectCategoryAttributes(
+      List<BulkCategoryLoader.Category> categories,
+      UserNameHandler nameHandler, LivelinkDocument props)
+      throws RepositoryException {
+    for (BulkCategoryLoader.Category category : categories) {
+      if (!isIncluded(category.id))
+        continue;
+
+      if (includeCategoryNames && category.name != null)
+        props.addProperty("Category", Value.getStringValue(category.name));
+
+      for (BulkCategoryLoader.AttributeValue attrValue : category.values) {
+        CategoryDefinitionCache.Attribute attribute = attrValue.attribute;
+        if (includeSearchable && !attribute.searchable)
+          continue;
+        if (Client.ATTR_TYPE_USER == attribute.type) {
+          nameHandler.addUserByName(attribute.name, attrValue.value, 0,
+              props);
+        } else if (Client.ATTR_TYPE_BOOL == attribute.type) {
+          // Booleans are stored as integers in LLAttrData.
+          props.addProperty(attribute.name,
+              Value.getBooleanValue(attrValue.value.toInteger() != 0));
+        } else {
+          props.addProperty(attribute.name, attrValue.value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets whether a category is in the included list, and is not
+   * in the excluded list.
+   *
+   * @param id the category object ID
+   */
+  private boolean isIncluded(Integer id) {
+    return ((includedCategories == null) || includedCategories.contains(id))
+        && ((excludedCategories == null) || !excludedCategories.contains(id));
+  }
+
   /**
    * Gets the values for attributes contained in an attribute set.
    *
@@ -14,10 +14,17 @@
 
 package com.google.enterprise.connector.otex;
 
+import com.google.common.base.Joiner;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,6 +53,85 @@ class Checkpoint {
     /** EventDate of the last item deleted. */
     public Date deleteDate;
 
+    /** The delete events most recently fed, to filter duplicates. */
+    private DeleteWindow deleteWindow = new DeleteWindow();
+
+    /**
+     * The end of the ModifyDate range for the inserted items, exclusive,
+     * when the initial traversal is split into time slices. This is
+     * null for the last slice, and for a traversal without slices.
+     */
+    public Date insertEndDate;
+
+    /**
+     * The other slices of a time-sliced initial traversal, in the
+     * order they will be traversed. The insert checkpoint fields
+     * belong to the current slice.
+     */
+    private final List<Slice> slices = new ArrayList<Slice>();
+
+    /**
+     * AuditDate of the last audit event traversed, when audit events
+     * drive the incremental traversal.
+     */
+    public Date auditDate;
+
+    /** EventID of the last audit event traversed. */
+    public long auditEventId;
+
+    /**
+     * Whether the audit events are being traversed. This is false
+     * until the initial traversal of DTree catches up.
+     */
+    public boolean auditActive;
+
+    /**
+     * The enrichment cursor of a two-phase crawl, which follows the
+     * first pass to feed the items again with their full metadata.
+     * The end is null until the first pass catches up. This is null
+     * if there is no enrichment pass to run.
+     */
+    private Lane enrichLane;
+
+    /**
+     * The included and excluded location nodes that the traversal
+     * reflects, as comma-separated strings, or null if unknown.
+     */
+    private String scopeIncluded;
+    private String scopeExcluded;
+
+    /**
+     * The nodes newly included in the traversal, as a comma-separated
+     * string, or an empty string for all nodes, and the cursor for the
+     * side traversal of them. These are null if there is none.
+     */
+    private String scopeAddedNodes;
+    private Lane scopeLane;
+
+    /**
+     * The nodes newly excluded from the traversal, as a comma-separated
+     * string, and the DataID of the last item checked for deletion.
+     * These are null and zero if there is nothing to delete.
+     */
+    private String scopeRemovedNodes;
+    private int scopeRemovedDataId;
+
+    /**
+     * The lane that has been swapped with the insert checkpoint for
+     * this batch, or null.
+     */
+    private Lane turn;
+
+    /**
+     * Whether the lanes or the scope have been started, stopped, or
+     * bounded.
+     */
+    private boolean lanesChanged;
+
+    /** AuditDate and EventID of the last audit event candidate. */
+    private Date advAuditDate;
+    private long advAuditEventId;
+
     /** DataID of the last inserted item candidate. */
     private int  advInsertDataId;
 
@@ -61,6 +147,10 @@ class Checkpoint {
     private Date oldInsertDate;
     private long oldDeleteEventId;
     private Date oldDeleteDate;
+    private Date oldAuditDate;
+    private long oldAuditEventId;
+    private boolean oldAuditActive;
+    private int oldScopeRemovedDataId;
 
     /** Generic Constructor */
     Checkpoint() {
@@ -76,10 +166,14 @@ class Checkpoint {
     Checkpoint(String checkpoint) throws RepositoryException {
         if ((checkpoint != null) && (checkpoint.trim().length() > 0)) {
             try {
-                // Push entries beyond the first four into a fifth
-                // array element, which we ignore. This is to avoid
-                // failing completely on newer checkpoint strings.
-                String [] points = checkpoint.trim().split(",", 5);
+                // The fifth entry holds the time slices, if any, the
+                // sixth holds the audit checkpoint, the seventh holds
+                // the enrichment cursor, the eighth holds the scope,
+                // and the ninth holds the delete window. Push entries
+                // beyond the first nine into a tenth array element,
+                // which we ignore. This is to avoid failing completely
+                // on newer checkpoint strings.
+                String [] points = checkpoint.trim().split(",", 10);
                 if (points.length < 2)
                     throw new Exception();
 
@@ -107,6 +201,26 @@ class Checkpoint {
                         oldDeleteEventId = deleteEventId;
                     }
                 }
+
+                // The time slices are optional.
+                if ((points.length > 4) && (points[4].length() > 0))
+                    parseSlices(points[4]);
+
+                // The audit checkpoint is optional.
+                if ((points.length > 5) && (points[5].length() > 0))
+                    parseAudit(points[5]);
+
+                // The enrichment cursor is optional.
+                if ((points.length > 6) && (points[6].length() > 0))
+                    parseEnrichment(points[6]);
+
+                // The scope is optional.
+                if ((points.length > 7) && (points[7].length() > 0))
+                    parseScope(points[7]);
+
+                // The delete window is optional.
+                if ((points.length > 8) && (points[8].length() > 0))
+                    deleteWindow = DeleteWindow.parse(points[8]);
             } catch (Exception e) {
                 throw new LivelinkException(
                     "Invalid checkpoint: " + checkpoint, e, LOGGER);
@@ -114,6 +228,508 @@ class Checkpoint {
         }
     }
 
+    /**
+     * A slice of the ModifyDate range of a time-sliced initial
+     * traversal, other than the current one.
+     */
+    static class Slice {
+        /** ModifyDate of the last item inserted in this slice. */
+        final Date insertDate;
+
+        /** DataID of the last item inserted in this slice. */
+        final int insertDataId;
+
+        /** The end of the slice, exclusive, or null for the last slice. */
+        final Date insertEndDate;
+
+        Slice(Date insertDate, int insertDataId, Date insertEndDate) {
+            this.insertDate = insertDate;
+            this.insertDataId = insertDataId;
+            this.insertEndDate = insertEndDate;
+        }
+    }
+
+    /**
+     * Parses the time slices portion of a checkpoint string, which has
+     * the form <code>end[;date|id|end]...</code>, where the first end
+     * date belongs to the current slice, and an empty end date marks
+     * the last slice.
+     */
+    private void parseSlices(String portion) {
+        String[] entries = portion.split(";");
+        insertEndDate = parseEndDate(entries[0]);
+        for (int i = 1; i < entries.length; i++) {
+            String[] fields = entries[i].split("\\|", -1);
+            slices.add(new Slice(parseDate(fields[0]),
+                    Integer.parseInt(fields[1]), parseEndDate(fields[2])));
+        }
+    }
+
+    /**
+     * Parses the audit portion of a checkpoint string, which has the
+     * form <code>date|eventId|active</code>, where active is 1 once the
+     * audit events are being traversed.
+     */
+    private void parseAudit(String portion) {
+        String[] fields = portion.split("\\|", -1);
+        auditDate = parseDate(fields[0]);
+        auditEventId = Long.parseLong(fields[1]);
+        auditActive = fields[2].equals("1");
+        oldAuditDate = auditDate;
+        oldAuditEventId = auditEventId;
+        oldAuditActive = auditActive;
+    }
+
+    /**
+     * A secondary insert checkpoint, with an optional end, that takes
+     * turns with the insert checkpoint. During its turn, it is swapped
+     * with the insert checkpoint fields.
+     */
+    private static class Lane {
+        Date insertDate;
+        int insertDataId;
+        Date insertEndDate;
+        Date oldInsertDate;
+        int oldInsertDataId;
+
+        Lane(Date insertDate, int insertDataId, Date insertEndDate) {
+            this.insertDate = insertDate;
+            this.insertDataId = insertDataId;
+            this.insertEndDate = insertEndDate;
+            this.oldInsertDate = insertDate;
+            this.oldInsertDataId = insertDataId;
+        }
+
+        boolean hasChanged() {
+            return insertDate != oldInsertDate
+                || insertDataId != oldInsertDataId;
+        }
+
+        /** Gets the lane as a string of the form <code>date|id|end</code>. */
+        String format() {
+            return toEndDateString(insertDate) + '|' + insertDataId + '|'
+                + toEndDateString(insertEndDate);
+        }
+    }
+
+    /**
+     * Parses a lane from the given fields, of the form
+     * <code>date|id|end</code>, where an empty date starts at the
+     * beginning, and an empty end is unbounded.
+     */
+    private static Lane parseLane(String[] fields, int offset) {
+        return new Lane(parseEndDate(fields[offset]),
+            Integer.parseInt(fields[offset + 1]),
+            parseEndDate(fields[offset + 2]));
+    }
+
+    /**
+     * Parses the enrichment portion of a checkpoint string, which is a
+     * lane with an empty end while the first pass is running.
+     */
+    private void parseEnrichment(String portion) {
+        enrichLane = parseLane(portion.split("\\|", -1), 0);
+    }
+
+    /**
+     * Parses the scope portion of a checkpoint string, which has the
+     * form <code>included|excluded[|added|date|id|end|removed|id]</code>,
+     * where the node lists are separated by semicolons.
+     */
+    private void parseScope(String portion) {
+        String[] fields = portion.split("\\|", -1);
+        scopeIncluded = fields[0].replace(';', ',');
+        scopeExcluded = fields[1].replace(';', ',');
+        if (fields.length > 2) {
+            if (fields[5].length() > 0) {
+                scopeAddedNodes = fields[2].replace(';', ',');
+                scopeLane = parseLane(fields, 3);
+            }
+            if (fields[6].length() > 0) {
+                scopeRemovedNodes = fields[6].replace(';', ',');
+                scopeRemovedDataId = Integer.parseInt(fields[7]);
+                oldScopeRemovedDataId = scopeRemovedDataId;
+            }
+        }
+    }
+
+    private static Date parseDate(String value) {
+        Date date = dateFmt.parse(value);
+        if (date == null)
+            throw new IllegalArgumentException(value);
+        return date;
+    }
+
+    private static Date parseEndDate(String value) {
+        return (value.length() == 0) ? null : parseDate(value);
+    }
+
+    private static String toEndDateString(Date value) {
+        return (value == null) ? "" : dateFmt.toSqlString(value);
+    }
+
+    /**
+     * Splits the ModifyDate range from the current insert checkpoint to
+     * the given date into time slices of equal length. The current slice
+     * becomes the first one, and the last one has no end date, so that
+     * it picks up the items modified after the split.
+     *
+     * @param endDate the end of the range to split
+     * @param count the number of slices
+     */
+    void splitInsertRange(Date endDate, int count) {
+        long start = insertDate.getTime();
+        long length = (endDate.getTime() - start) / count;
+        // Round the bounds down to the second, the precision of ModifyDate.
+        length -= length % 1000L;
+        if (length <= 0)
+            return;
+        insertEndDate = new Date(start + length);
+        for (int i = 1; i < count; i++) {
+            // A DataID of 0 includes the items modified exactly at the bound.
+            Date sliceStart = new Date(start + i * length);
+            Date sliceEnd =
+                (i == count - 1) ? null : new Date(start + (i + 1) * length);
+            slices.add(new Slice(sliceStart, 0, sliceEnd));
+        }
+        log("SLICED INSERT CHECKPOINT", insertDate, insertDataId);
+    }
+
+    /**
+     * Splits the items modified at or after the given watermark into a
+     * head slice, leaving the current insert checkpoint to backfill the
+     * older items. The two slices take turns, so recent changes are not
+     * stuck behind a long backfill.
+     *
+     * @param watermark the start of the head slice
+     */
+    void splitHead(Date watermark) {
+        // Round the watermark down to the second, the precision of ModifyDate.
+        long millis = watermark.getTime();
+        Date start = new Date(millis - millis % 1000L);
+        insertEndDate = start;
+        slices.add(new Slice(start, 0, null));
+        log("HEAD INSERT CHECKPOINT", start, 0);
+    }
+
+    /** Gets whether the inserted items are being traversed in time slices. */
+    boolean isSliced() {
+        return insertEndDate != null || !slices.isEmpty();
+    }
+
+    /** Gets the other time slices, in the order they will be traversed. */
+    List<Slice> getSlices() {
+        return Collections.unmodifiableList(slices);
+    }
+
+    /**
+     * Makes the next time slice the current one, and moves the current
+     * one to the end of the line. The restore point becomes the start of
+     * the new current slice.
+     */
+    void rotateSlices() {
+        if (slices.isEmpty())
+            return;
+        slices.add(new Slice(insertDate, insertDataId, insertEndDate));
+        Slice next = slices.remove(0);
+        insertDate = next.insertDate;
+        insertDataId = next.insertDataId;
+        insertEndDate = next.insertEndDate;
+        oldInsertDate = insertDate;
+        oldInsertDataId = insertDataId;
+        log("SLICE INSERT CHECKPOINT", insertDate, insertDataId);
+    }
+
+    /**
+     * Moves on from the current time slice when it has no more
+     * candidates. A slice with an end date has caught up to the slice
+     * that follows it, so the two are merged, continuing from the
+     * checkpoint of the following slice. The last slice has caught up
+     * to the present, so we move on to the next slice instead.
+     *
+     * @return {@code true} if the current slice changed, or
+     *     {@code false} if there are no other slices
+     */
+    boolean nextSlice() {
+        if (insertEndDate != null) {
+            Slice successor = null;
+            for (Slice slice : slices) {
+                if (!slice.insertDate.before(insertEndDate)
+                        && (successor == null
+                            || slice.insertDate.before(successor.insertDate))) {
+                    successor = slice;
+                }
+            }
+            if (successor == null) {
+                // This shouldn't happen, but the safe fallback is to continue
+                // this slice without an end.
+                insertEndDate = null;
+            } else {
+                slices.remove(successor);
+                setInsertCheckpoint(successor.insertDate,
+                    successor.insertDataId);
+                insertEndDate = successor.insertEndDate;
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("MERGED TIME SLICE; " + (slices.size() + 1)
+                    + " SLICES REMAINING");
+            }
+            return true;
+        } else if (!slices.isEmpty()) {
+            rotateSlices();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Starts a two-phase crawl at the current insert checkpoint. The
+     * first pass feeds the items without their full metadata, and the
+     * enrichment pass feeds them again once the first pass catches up.
+     */
+    void startTwoPhase() {
+        enrichLane = new Lane(insertDate, insertDataId, null);
+        lanesChanged = true;
+        LOGGER.fine("STARTING TWO-PHASE CRAWL");
+    }
+
+    /**
+     * Gets whether the items at the insert checkpoint should be fed
+     * without their full metadata, because they are in the first pass
+     * of a two-phase crawl.
+     */
+    boolean isMetadataDeferred() {
+        return enrichLane != null && turn == null
+            && enrichLane.insertEndDate == null;
+    }
+
+    /** Gets whether the insert checkpoint is the enrichment cursor. */
+    boolean isEnrichmentTurn() {
+        return turn != null && turn == enrichLane;
+    }
+
+    /**
+     * Swaps the enrichment cursor in for the insert checkpoint, when
+     * the insert checkpoint has caught up. If the first pass has just
+     * caught up, the enrichment pass is bounded by its current position.
+     *
+     * @return {@code true} if the enrichment cursor was swapped in, or
+     *     {@code false} if there is no enrichment pass to run
+     */
+    boolean startEnrichmentTurn() {
+        if (enrichLane == null || turn != null)
+            return false;
+        if (enrichLane.insertEndDate == null) {
+            lanesChanged = true;
+            if (insertDate == null) {
+                // Nothing was traversed in the first pass.
+                enrichLane = null;
+                return false;
+            }
+            enrichLane.insertEndDate = getEndOfSecond(insertDate);
+            LOGGER.fine("FIRST PASS DONE; STARTING ENRICHMENT PASS");
+        }
+        startTurn(enrichLane);
+        return true;
+    }
+
+    /**
+     * Ends the enrichment pass when it has caught up to the end of the
+     * first pass, and swaps the insert checkpoint back in.
+     */
+    void finishEnrichment() {
+        if (!isEnrichmentTurn())
+            return;
+        endTurn();
+        enrichLane = null;
+        lanesChanged = true;
+        LOGGER.fine("ENRICHMENT PASS DONE");
+    }
+
+    /**
+     * Gets the included location nodes that the traversal reflects.
+     *
+     * @return a comma-separated string, or null if unknown
+     */
+    String getScopeIncluded() {
+        return scopeIncluded;
+    }
+
+    /**
+     * Gets the excluded location nodes that the traversal reflects.
+     *
+     * @return a comma-separated string, or null if unknown
+     */
+    String getScopeExcluded() {
+        return scopeExcluded;
+    }
+
+    /**
+     * Records the included and excluded location nodes that the
+     * traversal reflects.
+     *
+     * @param included a comma-separated string of node IDs, or empty
+     * @param excluded a comma-separated string of node IDs, or empty
+     */
+    void setScope(String included, String excluded) {
+        scopeIncluded = included;
+        scopeExcluded = excluded;
+        lanesChanged = true;
+    }
+
+    /**
+     * Starts the side traversals for a change in scope. The newly
+     * included nodes are traversed up to the given end date, since the
+     * insert checkpoint picks up their later items, and the items in
+     * the newly excluded nodes are checked for deletion. Pending side
+     * traversals are started over, with the nodes merged.
+     *
+     * @param addedNodes a comma-separated string of the newly included
+     *     nodes, an empty string for all nodes, or null for none
+     * @param addedEndDate the end of the side traversal, exclusive
+     * @param removedNodes a comma-separated string of the newly excluded
+     *     nodes, or null for none
+     */
+    void startScopeChange(String addedNodes, Date addedEndDate,
+        String removedNodes) {
+        if (addedNodes != null) {
+            if (scopeAddedNodes == null || addedNodes.length() == 0) {
+                scopeAddedNodes = addedNodes;
+            } else if (scopeAddedNodes.length() > 0) {
+                scopeAddedNodes = mergeNodes(scopeAddedNodes, addedNodes);
+            }
+            Date endDate = (scopeLane == null
+                || addedEndDate.after(scopeLane.insertEndDate))
+                ? addedEndDate : scopeLane.insertEndDate;
+            scopeLane = new Lane(null, 0, endDate);
+        }
+        if (removedNodes != null) {
+            scopeRemovedNodes = (scopeRemovedNodes == null)
+                ? removedNodes : mergeNodes(scopeRemovedNodes, removedNodes);
+            scopeRemovedDataId = 0;
+        }
+        lanesChanged = true;
+    }
+
+    private static String mergeNodes(String nodes, String moreNodes) {
+        Set<String> merged = new LinkedHashSet<String>();
+        merged.addAll(Arrays.asList(nodes.split(",")));
+        merged.addAll(Arrays.asList(moreNodes.split(",")));
+        return Joiner.on(',').join(merged);
+    }
+
+    /**
+     * Gets the newly excluded nodes whose items are being checked for
+     * deletion.
+     *
+     * @return a comma-separated string of node IDs, or null if there
+     *     are none
+     */
+    String getScopeRemovedNodes() {
+        return scopeRemovedNodes;
+    }
+
+    /** Gets the DataID of the last item checked for deletion. */
+    int getScopeRemovedDataId() {
+        return scopeRemovedDataId;
+    }
+
+    /**
+     * Advances the deletion check for the newly excluded nodes.
+     *
+     * @param dataId the DataID of the last item checked for deletion,
+     *     or 0 if there are no more items to check
+     */
+    void setScopeRemovedDataId(int dataId) {
+        if (dataId == 0) {
+            scopeRemovedNodes = null;
+            lanesChanged = true;
+            LOGGER.fine("SCOPE DELETIONS DONE");
+        }
+        scopeRemovedDataId = dataId;
+    }
+
+    /**
+     * Swaps the side traversal of the newly included nodes in for the
+     * insert checkpoint.
+     *
+     * @return the newly included nodes, as a comma-separated string,
+     *     or an empty string for all nodes, or null if there is no side
+     *     traversal to run
+     */
+    String startScopeTurn() {
+        if (scopeLane == null || turn != null)
+            return null;
+        startTurn(scopeLane);
+        return scopeAddedNodes;
+    }
+
+    /**
+     * Ends the side traversal of the newly included nodes when it has
+     * caught up, and swaps the insert checkpoint back in.
+     */
+    void finishScopeTurn() {
+        if (turn == null || turn != scopeLane)
+            return;
+        endTurn();
+        scopeLane = null;
+        scopeAddedNodes = null;
+        lanesChanged = true;
+        LOGGER.fine("SCOPE SIDE TRAVERSAL DONE");
+    }
+
+    /**
+     * Gets whether an enrichment pass, a side traversal of newly
+     * included nodes, or the deletion of newly excluded items is
+     * unfinished.
+     */
+    boolean hasSideWork() {
+        return enrichLane != null || scopeLane != null
+            || scopeRemovedNodes != null;
+    }
+
+    /** Gets whether the insert checkpoint is a side traversal. */
+    boolean isTurn() {
+        return turn != null;
+    }
+
+    /** Gets the start of the next second, the precision of ModifyDate. */
+    private static Date getEndOfSecond(Date date) {
+        long millis = date.getTime();
+        return new Date(millis - millis % 1000L + 1000L);
+    }
+
+    private void startTurn(Lane lane) {
+        swap(lane);
+        turn = lane;
+    }
+
+    private void endTurn() {
+        swap(turn);
+        turn = null;
+    }
+
+    /** Swaps the insert checkpoint and the given lane. */
+    private void swap(Lane lane) {
+        Date date = insertDate;
+        insertDate = lane.insertDate;
+        lane.insertDate = date;
+        int dataId = insertDataId;
+        insertDataId = lane.insertDataId;
+        lane.insertDataId = dataId;
+        date = insertEndDate;
+        insertEndDate = lane.insertEndDate;
+        lane.insertEndDate = date;
+        date = oldInsertDate;
+        oldInsertDate = lane.oldInsertDate;
+        lane.oldInsertDate = date;
+        dataId = oldInsertDataId;
+        oldInsertDataId = lane.oldInsertDataId;
+        lane.oldInsertDataId = dataId;
+        advInsertDate = null;
+    }
+
   /**
    * Logs the given checkpoint portion.
    *
@@ -167,27 +783,82 @@ class Checkpoint {
 
         // Set the new delete checkpoint.
         deleteDate = date;
+        deleteEventId = toEventId(eventId);
+        if (eventId != null)
+            log("DELETE CHECKPOINT", date, deleteEventId);
+    }
 
-        if (eventId == null) {
-            deleteEventId = 0;
-            return;
-        }
+    /**
+     * Gets whether the given delete event has already been fed.
+     *
+     * @param eventId the EventID of the delete event
+     * @throws RepositoryException if an unexpected runtime error occurs
+     */
+    boolean hasFedDelete(ClientValue eventId) throws RepositoryException {
+        return deleteWindow.containsEvent(toEventId(eventId));
+    }
+
+    /**
+     * Gets the EventID at or below which all of the delete events at
+     * the delete checkpoint date have been fed.
+     *
+     * @return the EventID, or -1 if the events have not been limited
+     */
+    long getDeleteFloorEventId() {
+        return (deleteDate == null) ? DeleteWindow.NO_FLOOR
+            : deleteWindow.getFloorEventId(deleteDate.getTime());
+    }
+
+    /**
+     * Gets whether a delete of the given item at the given date has
+     * already been fed. Later delete events for the same item at the
+     * same date can be skipped.
+     *
+     * @param date the AuditDate of the delete event
+     * @param dataId the DataID of the deleted item
+     */
+    boolean hasFedDelete(Date date, int dataId) {
+        return deleteWindow.containsDataId(date.getTime(), dataId);
+    }
+
+    /**
+     * Records a delete event that has been fed, or skipped as a
+     * repeat, in the window that is written with the checkpoint.
+     *
+     * @param date the AuditDate of the delete event
+     * @param eventId the EventID of the delete event
+     * @param dataId the DataID of the deleted item
+     * @throws RepositoryException if an unexpected runtime error occurs
+     */
+    void addFedDelete(Date date, ClientValue eventId, int dataId)
+            throws RepositoryException {
+        deleteWindow.add(date.getTime(), toEventId(eventId), dataId);
+    }
+
+    /**
+     * Converts an EventID value to a long. See
+     * <code>setDeleteCheckpoint</code> for the possible types.
+     *
+     * @param eventId the EventID value, or null
+     * @return the EventID, or 0 if the value is null
+     */
+    private static long toEventId(ClientValue eventId)
+            throws RepositoryException {
+        if (eventId == null)
+            return 0;
 
         switch (eventId.type()) {
         case ClientValue.INTEGER:
             // Oracle, Livelink 9.7 and earlier.
-            deleteEventId = eventId.toInteger();
-            break;
+            return eventId.toInteger();
 
         case ClientValue.DOUBLE:
             // SQL Server, Livelink 9.7 and earlier.
-            deleteEventId = (long) eventId.toDouble();
-            break;
+            return (long) eventId.toDouble();
 
         case ClientValue.LONG:
             // Oracle and SQL Server, Livelink 9.7.1.
-            deleteEventId = eventId.toLong();
-            break;
+            return eventId.toLong();
 
         default:
             // XXX: EventID is a NUMBER(10) in Oracle, and a NUMERIC(10,0)
@@ -197,10 +868,49 @@ class Checkpoint {
             // deletes. That is better than an infinite loop.
             LOGGER.info("UNKNOWN EVENT ID TYPE: " + eventId.type() +
                 "; value = " + eventId.toString2());
-            deleteEventId = 9999999999L;
-            break;
+            return 9999999999L;
         }
-        log("DELETE CHECKPOINT", date, deleteEventId);
+    }
+
+    /**
+     * Sets the audit portion of the checkpoint, which is not yet
+     * active.
+     *
+     * @param date the AuditDate of the last audit event
+     * @param eventId the EventID of the last audit event, or null
+     * @throws RepositoryException if an unexpected runtime error occurs
+     */
+    public void setAuditCheckpoint(Date date, ClientValue eventId)
+            throws RepositoryException {
+        auditDate = date;
+        auditEventId = toEventId(eventId);
+        auditActive = false;
+        log("AUDIT CHECKPOINT", date, auditEventId);
+    }
+
+    /**
+     * Sets the checkpoint for the last audit event candidate. The audit
+     * checkpoint is advanced to it by <code>advanceToEnd</code>, after
+     * the whole batch has been processed.
+     *
+     * @param date the AuditDate of the last audit event candidate
+     * @param eventId the EventID of the last audit event candidate
+     * @throws RepositoryException if an unexpected runtime error occurs
+     */
+    public void setAdvanceAuditCheckpoint(Date date, ClientValue eventId)
+            throws RepositoryException {
+        advAuditDate = date;
+        advAuditEventId = toEventId(eventId);
+        log("ADVANCE AUDIT CHECKPOINT", date, advAuditEventId);
+    }
+
+    /**
+     * Starts traversing the audit events, from the audit checkpoint
+     * recorded at the start of the initial traversal.
+     */
+    public void activateAudit() {
+        auditActive = true;
+        LOGGER.fine("ACTIVATING AUDIT CHECKPOINT");
     }
 
     /**
@@ -228,6 +938,10 @@ class Checkpoint {
             insertDate = advInsertDate;
             insertDataId = advInsertDataId;
         }
+        if (advAuditDate != null) {
+            auditDate = advAuditDate;
+            auditEventId = advAuditEventId;
+        }
     }
 
     /**
@@ -248,7 +962,14 @@ class Checkpoint {
         return (insertDate != oldInsertDate ||
                 insertDataId != oldInsertDataId ||
                 deleteDate != oldDeleteDate ||
-                deleteEventId != oldDeleteEventId);
+                deleteEventId != oldDeleteEventId ||
+                auditDate != oldAuditDate ||
+                auditEventId != oldAuditEventId ||
+                auditActive != oldAuditActive ||
+                scopeRemovedDataId != oldScopeRemovedDataId ||
+                lanesChanged ||
+                (enrichLane != null && enrichLane.hasChanged()) ||
+                (scopeLane != null && scopeLane.hasChanged()));
     }
 
     /**
@@ -266,8 +987,23 @@ class Checkpoint {
      * @returns the Checkpoint as a String.
      */
     public String toString() {
+        // The lanes are always written in their own places.
+        if (turn == null)
+            return format();
+        Lane lane = turn;
+        swap(lane);
+        try {
+            return format();
+        } finally {
+            swap(lane);
+        }
+    }
+
+    private String format() {
         // A null checkpoint is OK.
-        if ((insertDate == null) && (deleteDate == null))
+        if ((insertDate == null) && (deleteDate == null)
+            && (auditDate == null) && (enrichLane == null)
+            && (scopeIncluded == null))
             return null;
 
         StringBuffer buffer = new StringBuffer();
@@ -286,6 +1022,77 @@ class Checkpoint {
             buffer.append(deleteEventId);
         }
 
+        // The time slices, the audit checkpoint, the enrichment
+        // cursor, the scope, and the delete window are optional, and
+        // each one follows the ones before it, even if they are empty.
+        String[] portions = {
+            formatSlices(), formatAudit(), formatEnrichment(), formatScope(),
+            deleteWindow.format() };
+        int count = portions.length;
+        while (count > 0 && portions[count - 1].length() == 0)
+            count--;
+        if (count > 0 && deleteDate == null)
+            buffer.append(",,");
+        for (int i = 0; i < count; i++) {
+            buffer.append(',');
+            buffer.append(portions[i]);
+        }
+
         return  buffer.toString();
     }
+
+    private String formatSlices() {
+        if (!isSliced())
+            return "";
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(toEndDateString(insertEndDate));
+        for (Slice slice : slices) {
+            buffer.append(';');
+            buffer.append(dateFmt.toSqlString(slice.insertDate));
+            buffer.append('|');
+            buffer.append(slice.insertDataId);
+            buffer.append('|');
+            buffer.append(toEndDateString(slice.insertEndDate));
+        }
+        return buffer.toString();
+    }
+
+    private String formatAudit() {
+        if (auditDate == null)
+            return "";
+        return dateFmt.toSqlMillisString(auditDate) + '|' + auditEventId
+            + '|' + (auditActive ? '1' : '0');
+    }
+
+    private String formatEnrichment() {
+        return (enrichLane == null) ? "" : enrichLane.format();
+    }
+
+    private String formatScope() {
+        if (scopeIncluded == null)
+            return "";
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(scopeIncluded.replace(',', ';'));
+        buffer.append('|');
+        buffer.append(scopeExcluded.replace(',', ';'));
+        if (scopeLane != null || scopeRemovedNodes != null) {
+            buffer.append('|');
+            if (scopeLane == null) {
+                buffer.append("|||");
+            } else {
+                buffer.append(scopeAddedNodes.replace(',', ';'));
+                buffer.append('|');
+                buffer.append(scopeLane.format());
+            }
+            buffer.append('|');
+            if (scopeRemovedNodes != null) {
+                buffer.append(scopeRemovedNodes.replace(',', ';'));
+                buffer.append('|');
+                buffer.append(scopeRemovedDataId);
+            } else {
+                buffer.append('|');
+            }
+        }
+        return buffer.toString();
+    }
 }
@@ -0,0 +1,202 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A compressed set of object IDs. The IDs are split into chunks of
+ * 65536 consecutive values by their high 16 bits. A sparse chunk is
+ * stored as a sorted array of the low 16 bits, and a dense chunk is
+ * stored as a bitmap, so a chunk never takes more than 8 KB. Tens of
+ * millions of IDs take tens of megabytes.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class DataIdBitmap {
+  /** The most values in a sparse chunk, which is the size of a bitmap. */
+  private static final int MAX_SPARSE = 4096;
+
+  /** A chunk of 65536 consecutive values. */
+  private static final class Chunk {
+    /** The sorted low bits of a sparse chunk, or null. */
+    private char[] values = new char[4];
+
+    /** The bitmap of a dense chunk, or null. */
+    private long[] bits;
+
+    private int size;
+
+    boolean add(char low) {
+      if (bits != null) {
+        long mask = 1L << low;
+        if ((bits[low >>> 6] & mask) != 0) {
+          return false;
+        }
+        bits[low >>> 6] |= mask;
+        size++;
+        return true;
+      }
+
+      // The IDs usually arrive in order, so check the end first.
+      int index = (size == 0 || values[size - 1] < low)
+          ? -(size + 1) : Arrays.binarySearch(values, 0, size, low);
+      if (index >= 0) {
+        return false;
+      }
+      if (size == MAX_SPARSE) {
+        toBits();
+        return add(low);
+      }
+      index = -(index + 1);
+      if (size == values.length) {
+        values = Arrays.copyOf(values, Math.min(2 * size, MAX_SPARSE));
+      }
+      System.arraycopy(values, index, values, index + 1, size - index);
+      values[index] = low;
+      size++;
+      return true;
+    }
+
+    boolean contains(char low) {
+      if (bits != null) {
+        return (bits[low >>> 6] & (1L << low)) != 0;
+      } else {
+        return Arrays.binarySearch(values, 0, size, low) >= 0;
+      }
+    }
+
+    private void toBits() {
+      bits = new long[1024];
+      for (int i = 0; i < size; i++) {
+        bits[values[i] >>> 6] |= 1L << values[i];
+      }
+      values = null;
+    }
+
+    /**
+     * Adds the values in this chunk that are not in the other chunk
+     * to the given bitmap.
+     */
+    void andNot(int high, Chunk other, DataIdBitmap result) {
+      if (bits == null) {
+        for (int i = 0; i < size; i++) {
+          if (other == null || !other.contains(values[i])) {
+            result.add(high | values[i]);
+          }
+        }
+      } else {
+        for (int word = 0; word < bits.length; word++) {
+          long remaining = (other != null && other.bits != null)
+              ? bits[word] & ~other.bits[word] : bits[word];
+          while (remaining != 0) {
+            int bit = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            char low = (char) ((word << 6) | bit);
+            if (other == null || other.bits != null || !other.contains(low)) {
+              result.add(high | low);
+            }
+          }
+        }
+      }
+    }
+
+    int toArray(int high, int[] array, int offset) {
+      if (bits == null) {
+        for (int i = 0; i < size; i++) {
+          array[offset++] = high | values[i];
+        }
+      } else {
+        for (int word = 0; word < bits.length; word++) {
+          long remaining = bits[word];
+          while (remaining != 0) {
+            int bit = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            array[offset++] = high | (word << 6) | bit;
+          }
+        }
+      }
+      return offset;
+    }
+  }
+
+  /** The chunks, by the high 16 bits of their values. */
+  private final TreeMap<Integer, Chunk> chunks = new TreeMap<Integer, Chunk>();
+
+  private int size = 0;
+
+  /** Gets the number of IDs in the set. */
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Adds an ID to the set.
+   *
+   * @return {@code true} if the ID was added, or {@code false} if it
+   *     was already in the set
+   */
+  boolean add(int id) {
+    Integer high = id >> 16;
+    Chunk chunk = chunks.get(high);
+    if (chunk == null) {
+      chunk = new Chunk();
+      chunks.put(high, chunk);
+    }
+    if (chunk.add((char) id)) {
+      size++;
+      return true;
+    }
+    return false;
+  }
+
+  /** Adds the given IDs to the set. */
+  void addAll(int[] ids) {
+    for (int id : ids) {
+      add(id);
+    }
+  }
+
+  boolean contains(int id) {
+    Chunk chunk = chunks.get(id >> 16);
+    return chunk != null && chunk.contains((char) id);
+  }
+
+  /** Gets a new set of the IDs in this set that are not in the other. */
+  DataIdBitmap andNot(DataIdBitmap other) {
+    DataIdBitmap result = new DataIdBitmap();
+    for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) {
+      int high = entry.getKey() << 16;
+      entry.getValue().andNot(high, other.chunks.get(entry.getKey()), result);
+    }
+    return result;
+  }
+
+  /** Gets the IDs in ascending order. */
+  int[] toArray() {
+    int[] array = new int[size];
+    int offset = 0;
+    for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) {
+      offset = entry.getValue().toArray(entry.getKey() << 16, array, offset);
+    }
+    return array;
+  }
+}
@@ -0,0 +1,186 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Arrays;
+
+/**
+ * An immutable, sorted set of object IDs, backed by an int array.
+ * The set is written into SQL as a condition that collapses runs of
+ * consecutive IDs into ranges, which keeps the query text short when
+ * the IDs are dense, as they usually are for a batch of candidates.
+ */
+final class DataIdSet {
+  /** The empty set. */
+  static final DataIdSet EMPTY = new DataIdSet(new int[0]);
+
+  /** The shortest run of consecutive IDs that is written as a range. */
+  private static final int MIN_RANGE = 4;
+
+  /** The most IDs in one {@code in} list, which is the Oracle limit. */
+  static final int MAX_IN_LIST = 1000;
+
+  /** The IDs, sorted and without duplicates. */
+  private final int[] ids;
+
+  private DataIdSet(int[] ids) {
+    this.ids = ids;
+  }
+
+  /**
+   * Gets a set of the given IDs.
+   *
+   * @param ids an array of IDs, in any order, which is not modified
+   * @param count the number of IDs to use from the start of the array
+   */
+  static DataIdSet of(int[] ids, int count) {
+    if (count == 0) {
+      return EMPTY;
+    }
+    int[] sorted = Arrays.copyOf(ids, count);
+    Arrays.sort(sorted);
+    int size = 1;
+    for (int i = 1; i < count; i++) {
+      if (sorted[i] != sorted[size - 1]) {
+        sorted[size++] = sorted[i];
+      }
+    }
+    return new DataIdSet(
+        (size == count) ? sorted : Arrays.copyOf(sorted, size));
+  }
+
+  /**
+   * Gets a set of the IDs in the first rows of a recarray.
+   *
+   * @param rows the recarray
+   * @param count the number of rows to use
+   * @param column the name of the integer column holding the IDs
+   */
+  static DataIdSet of(ClientValue rows, int count, String column)
+      throws RepositoryException {
+    int[] ids = new int[count];
+    for (int i = 0; i < count; i++) {
+      ids[i] = rows.toInteger(i, column);
+    }
+    return of(ids, count);
+  }
+
+  /**
+   * Parses a comma-separated string of IDs.
+   *
+   * @param ids a comma-separated string of IDs, or null or empty
+   * @throws NumberFormatException if an ID is not an integer
+   */
+  static DataIdSet parse(String ids) {
+    if (ids == null || ids.length() == 0) {
+      return EMPTY;
+    }
+    String[] values = ids.split(",");
+    int[] parsed = new int[values.length];
+    for (int i = 0; i < values.length; i++) {
+      parsed[i] = Integer.parseInt(values[i].trim());
+    }
+    return of(parsed, parsed.length);
+  }
+
+  int size() {
+    return ids.length;
+  }
+
+  boolean isEmpty() {
+    return ids.length == 0;
+  }
+
+  /** Gets the ID at the given index, in ascending order. */
+  int get(int index) {
+    return ids[index];
+  }
+
+  boolean contains(int id) {
+    return Arrays.binarySearch(ids, id) >= 0;
+  }
+
+  /**
+   * Gets a SQL condition that matches the IDs in this set. Runs of
+   * consecutive IDs are written as {@code between} ranges, and the
+   * remaining IDs are written as {@code in} lists of at most
+   * {@link #MAX_IN_LIST} IDs each.
+   *
+   * @param column the column to match
+   * @return a SQL conditional expression string
+   */
+  String toSqlCondition(String column) {
+    if (ids.length == 0) {
+      return "1 = 0";
+    }
+    StringBuilder ranges = new StringBuilder();
+    StringBuilder singles = new StringBuilder();
+    int singleCount = 0;
+    int partCount = 0;
+    int start = 0;
+    while (start < ids.length) {
+      int end = start;
+      while (end + 1 < ids.length && ids[end + 1] == ids[end] + 1) {
+        end++;
+      }
+      if (end - start + 1 >= MIN_RANGE) {
+        ranges.append(" or ").append(column).append(" between ")
+            .append(ids[start]).append(" and ").append(ids[end]);
+        partCount++;
+      } else {
+        for (int i = start; i <= end; i++) {
+          if (singleCount % MAX_IN_LIST == 0) {
+            if (singleCount > 0) {
+              singles.setCharAt(singles.length() - 1, ')');
+              singles.append(" or ");
+            }
+            singles.append(column).append(" in (");
+            partCount++;
+          }
+          singles.append(ids[i]).append(',');
+          singleCount++;
+        }
+      }
+      start = end + 1;
+    }
+
+    StringBuilder buffer = new StringBuilder();
+    if (singles.length() > 0) {
+      singles.setCharAt(singles.length() - 1, ')');
+      buffer.append(singles);
+    }
+    if (ranges.length() > 0) {
+      // Skip the leading " or " if there is no in list.
+      buffer.append(ranges, (buffer.length() == 0) ? 4 : 0, ranges.length());
+    }
+    return (partCount == 1) ? buffer.toString() : "(" + buffer + ")";
+  }
+
+  /** Gets the IDs as a comma-separated string, in ascending order. */
+  @Override
+  public String toString() {
+    StringBuilder buffer = new StringBuilder();
+    for (int i = 0; i < ids.length; i++) {
+      if (i > 0) {
+        buffer.append(',');
+      }
+      buffer.append(ids[i]);
+    }
+    return buffer.toString();
+  }
+}
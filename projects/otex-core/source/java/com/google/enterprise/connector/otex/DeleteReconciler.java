@@ -0,0 +1,185 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the deleted items that were not traversed from the audit
+ * events, because deletes are not tracked or DAuditNew was purged.
+ * Each scan reads every DataID in the traversal scope, in DataID order
+ * and in chunks, into a bitmap. The items in the document state store
+ * when the scan started that are missing from the scan have been
+ * deleted.
+ * <p>
+ * The store holds the items that have actually been fed, and it is
+ * persistent, so no other state needs to survive a restart. A scan
+ * that is interrupted by a restart starts over, and deleted items
+ * that were found but not fed are found again by the next scan.
+ * Items that are first fed during a scan are not in its snapshot of
+ * the store, so they are never deleted by it.
+ */
+class DeleteReconciler {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(DeleteReconciler.class.getName());
+
+  /** The store of the fed items. */
+  private final DocumentStateStore store;
+
+  /** The time between the starts of the scans. */
+  private final long intervalMillis;
+
+  /** The items in the store when the current scan started. */
+  private DataIdBitmap fed = null;
+
+  /** The items found so far by the current scan. */
+  private DataIdBitmap current = null;
+
+  /** The last DataID read by the current scan. */
+  private int scanDataId = 0;
+
+  /** Whether a scan is in progress. */
+  private boolean scanning = false;
+
+  /** When the current scan started. */
+  private long scanStartMillis = 0;
+
+  /** When the next scan is due to start. */
+  private long nextScanMillis;
+
+  /** The deleted items that have not been fed yet, in DataID order. */
+  private int[] pendingDeletes = new int[0];
+
+  /** The index of the next pending delete. */
+  private int pendingIndex = 0;
+
+  /**
+   * Constructs a reconciler. The first scan is due one interval from
+   * now, so that restarting the connector does not start a scan.
+   *
+   * @param store the store of the fed items
+   * @param intervalMillis the time between the starts of the scans
+   * @param nowMillis the current time
+   */
+  DeleteReconciler(DocumentStateStore store, long intervalMillis,
+      long nowMillis) {
+    this.store = store;
+    this.intervalMillis = intervalMillis;
+    this.nextScanMillis = nowMillis + intervalMillis;
+  }
+
+  /**
+   * Gets whether a scan is in progress or due to start.
+   *
+   * @param nowMillis the current time
+   */
+  synchronized boolean isScanDue(long nowMillis) {
+    return scanning || nowMillis >= nextScanMillis;
+  }
+
+  /**
+   * Gets the last DataID read by the scan, starting a new scan if
+   * there is none in progress.
+   *
+   * @param nowMillis the current time
+   */
+  synchronized int getScanDataId(long nowMillis) {
+    if (!scanning) {
+      LOGGER.fine("DELETE RECONCILIATION: STARTING SCAN");
+      scanning = true;
+      scanStartMillis = nowMillis;
+      scanDataId = 0;
+      fed = store.getDataIds();
+      current = new DataIdBitmap();
+    }
+    return scanDataId;
+  }
+
+  /**
+   * Records a chunk of items read by the scan.
+   *
+   * @param dataIds the DataIDs, in ascending order
+   */
+  synchronized void addScanned(int[] dataIds) {
+    current.addAll(dataIds);
+    if (dataIds.length > 0) {
+      scanDataId = dataIds[dataIds.length - 1];
+    }
+  }
+
+  /**
+   * Completes the current scan, and finds the fed items that it did
+   * not find. Items that have been removed from the store since the
+   * scan started have already been deleted.
+   *
+   * @return the number of deleted items found
+   */
+  synchronized int finishScan() {
+    // Keep the deletes from the last scan that were not fed yet.
+    DataIdBitmap candidates = fed.andNot(current);
+    for (int i = pendingIndex; i < pendingDeletes.length; i++) {
+      if (!current.contains(pendingDeletes[i])) {
+        candidates.add(pendingDeletes[i]);
+      }
+    }
+
+    DataIdBitmap deletes = new DataIdBitmap();
+    for (int dataId : candidates.toArray()) {
+      if (store.get(dataId) != null) {
+        deletes.add(dataId);
+      }
+    }
+    pendingDeletes = deletes.toArray();
+    pendingIndex = 0;
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("DELETE RECONCILIATION: SCANNED " + current.size()
+          + " ITEMS; FOUND " + pendingDeletes.length + " DELETED ITEMS");
+    }
+    fed = null;
+    current = null;
+    nextScanMillis = scanStartMillis + intervalMillis;
+    scanning = false;
+    return pendingDeletes.length;
+  }
+
+  /**
+   * Gets the next deleted items to feed. They are not removed until
+   * {@link #setFed} is called.
+   *
+   * @param max the maximum number of items to get
+   * @return the DataIDs of the deleted items, in ascending order
+   */
+  synchronized int[] getPendingDeletes(int max) {
+    int end = Math.min(pendingDeletes.length, pendingIndex + max);
+    return Arrays.copyOfRange(pendingDeletes, pendingIndex, end);
+  }
+
+  /**
+   * Records that deleted items returned by {@link #getPendingDeletes}
+   * have been fed, and removes them from the store.
+   *
+   * @param count the number of items fed
+   */
+  synchronized void setFed(int count) {
+    int end = Math.min(pendingDeletes.length, pendingIndex + count);
+    for (int i = pendingIndex; i < end; i++) {
+      store.remove(pendingDeletes[i]);
+    }
+    pendingIndex = end;
+  }
+}
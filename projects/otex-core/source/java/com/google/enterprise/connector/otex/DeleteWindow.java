@@ -0,0 +1,203 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.util.logging.Logger;
+
+/**
+ * A bounded window of the delete events most recently fed, as pairs
+ * of EventID and DataID. The deletes query using the standard index
+ * reads again the events at the delete checkpoint date, so the window
+ * holds only the events at the latest AuditDate seen. Events with an
+ * earlier date cannot be read again, and are dropped when a later
+ * event is added.
+ * <p>
+ * The window is persisted in the checkpoint string, so duplicate
+ * deletes are filtered across batches and restarts. It also collapses
+ * multiple delete events for the same DataID at the same date.
+ * <p>
+ * The events at a date are added in EventID order. If the window
+ * fills up, the oldest event is replaced by a floor EventID, and every
+ * event at that date with an EventID at or below the floor has been
+ * fed. The deletes query skips those events, so the window never has
+ * to hold more than {@link #MAX_SIZE} of the events at one date.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class DeleteWindow {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(DeleteWindow.class.getName());
+
+  /**
+   * The maximum number of events held. This keeps the checkpoint
+   * string bounded if many items are deleted at the same time.
+   */
+  static final int MAX_SIZE = 500;
+
+  /** The AuditDate of the events in the window, in milliseconds. */
+  private long dateMillis = Long.MIN_VALUE;
+
+  /** The EventIDs, in a ring buffer starting at {@code start}. */
+  private final long[] eventIds = new long[MAX_SIZE];
+
+  /** The DataIDs, parallel to {@code eventIds}. */
+  private final int[] dataIds = new int[MAX_SIZE];
+
+  private int start = 0;
+  private int size = 0;
+
+  /**
+   * The highest EventID dropped from the window at its date, or
+   * {@code NO_FLOOR} if no events have been dropped.
+   */
+  private long floorEventId = NO_FLOOR;
+
+  /** The floor EventID value when no events have been dropped. */
+  static final long NO_FLOOR = -1;
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Gets the EventID at or below which all of the events at the given
+   * date have been fed.
+   *
+   * @param dateMillis the AuditDate, in milliseconds
+   * @return the floor EventID, or {@code NO_FLOOR} if there is none
+   *     for the given date
+   */
+  long getFloorEventId(long dateMillis) {
+    return (dateMillis == this.dateMillis) ? floorEventId : NO_FLOOR;
+  }
+
+  /** Gets whether the given event has been fed. */
+  boolean containsEvent(long eventId) {
+    if (floorEventId != NO_FLOOR && eventId <= floorEventId) {
+      return true;
+    }
+    for (int i = 0; i < size; i++) {
+      if (eventIds[(start + i) % MAX_SIZE] == eventId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets whether a delete for the given item at the given date has
+   * been fed.
+   */
+  boolean containsDataId(long dateMillis, int dataId) {
+    if (dateMillis != this.dateMillis) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      if (dataIds[(start + i) % MAX_SIZE] == dataId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds a fed delete event. If the event is later than the events
+   * in the window, they are dropped first. If the window is full, the
+   * oldest event is dropped, and the floor EventID is advanced to it.
+   *
+   * @param dateMillis the AuditDate of the event, in milliseconds
+   * @param eventId the EventID
+   * @param dataId the DataID of the deleted item
+   */
+  void add(long dateMillis, long eventId, int dataId) {
+    if (dateMillis < this.dateMillis) {
+      // An earlier event will not be read again.
+      return;
+    }
+    if (dateMillis > this.dateMillis) {
+      this.dateMillis = dateMillis;
+      start = 0;
+      size = 0;
+      floorEventId = NO_FLOOR;
+    }
+    if (size == MAX_SIZE) {
+      // Events at the same date are added in EventID order, so every
+      // event up to the oldest one in the window has been fed.
+      floorEventId = Math.max(floorEventId, eventIds[start]);
+      LOGGER.fine("DELETE WINDOW IS FULL; ADVANCING FLOOR TO EVENT "
+          + floorEventId);
+      start = (start + 1) % MAX_SIZE;
+      size--;
+    }
+    int index = (start + size) % MAX_SIZE;
+    eventIds[index] = eventId;
+    dataIds[index] = dataId;
+    size++;
+  }
+
+  /**
+   * Parses a window formatted by {@link #format}.
+   *
+   * @param portion a string of the form
+   *     <code>date|event:id;...[|floor]</code>, where the date is in
+   *     milliseconds
+   */
+  static DeleteWindow parse(String portion) {
+    DeleteWindow window = new DeleteWindow();
+    String[] fields = portion.split("\\|", -1);
+    long dateMillis = Long.parseLong(fields[0]);
+    if (fields.length > 1 && fields[1].length() > 0) {
+      for (String entry : fields[1].split(";")) {
+        int colon = entry.indexOf(':');
+        window.add(dateMillis, Long.parseLong(entry.substring(0, colon)),
+            Integer.parseInt(entry.substring(colon + 1)));
+      }
+    }
+    if (fields.length > 2 && fields[2].length() > 0) {
+      window.floorEventId = Long.parseLong(fields[2]);
+    }
+    return window;
+  }
+
+  /**
+   * Formats the window for the checkpoint string.
+   *
+   * @return a string of the form <code>date|event:id;...[|floor]</code>,
+   *     or an empty string if the window is empty
+   */
+  String format() {
+    if (size == 0) {
+      return "";
+    }
+    StringBuilder buffer = new StringBuilder();
+    buffer.append(dateMillis).append('|');
+    for (int i = 0; i < size; i++) {
+      int index = (start + i) % MAX_SIZE;
+      if (i > 0) {
+        buffer.append(';');
+      }
+      buffer.append(eventIds[index]).append(':').append(dataIds[index]);
+    }
+    if (floorEventId != NO_FLOOR) {
+      buffer.append('|').append(floorEventId);
+    }
+    return buffer.toString();
+  }
+}
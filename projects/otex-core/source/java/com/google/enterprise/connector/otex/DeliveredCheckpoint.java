@@ -0,0 +1,228 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the checkpoint after the last document delivered in a batch.
+ * If the Connector Manager abandons a batch that runs too long, it
+ * resumes the traversal from the checkpoint that started the batch.
+ * We resume from the last delivered document instead, so the work on
+ * the delivered documents is not repeated.
+ * <p>
+ * The checkpoints are optionally written to a file, so they survive a
+ * restart. The delivered checkpoint is written every few documents or
+ * seconds, rather than after each document. The file is written to a
+ * temporary file, synced, and renamed. It ends with a marker line, and
+ * a file that was not completely written is ignored.
+ * <p>
+ * This class is thread-safe.
+ */
+final class DeliveredCheckpoint {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(DeliveredCheckpoint.class.getName());
+
+  /** The file name in the document state directory. */
+  static final String FILE_NAME = "deliveredCheckpoint";
+
+  /** The last line of a completely written file. */
+  private static final String END_MARKER = ".";
+
+  private static final String ENCODING = "UTF-8";
+
+  /** The number of delivered documents between writes of the file. */
+  private static final int WRITE_DOCUMENTS = 20;
+
+  /** The longest time between writes of the file, in milliseconds. */
+  private static final long WRITE_MILLIS = 10000L;
+
+  /** The file to write the checkpoints to, or null. */
+  private final File file;
+
+  /** The number of delivered documents between writes of the file. */
+  private final int writeDocuments;
+
+  /** The longest time between writes of the file, in milliseconds. */
+  private final long writeMillis;
+
+  /** The number of delivered documents since the file was written. */
+  private int unwrittenDocuments = 0;
+
+  /** When the file was last written. */
+  private long writtenMillis = 0;
+
+  /** The checkpoint that started the batch, or an empty string. */
+  private String batchCheckpoint = "";
+
+  /** The checkpoint after the last delivered document, or null. */
+  private String deliveredCheckpoint = null;
+
+  /**
+   * Constructs an instance that holds the checkpoints in memory.
+   */
+  DeliveredCheckpoint() {
+    this.file = null;
+    this.writeDocuments = 0;
+    this.writeMillis = 0;
+  }
+
+  /**
+   * Constructs an instance that writes the checkpoints to a file, and
+   * reads the initial checkpoints from it, if it exists.
+   *
+   * @param file the file
+   */
+  DeliveredCheckpoint(File file) {
+    this(file, WRITE_DOCUMENTS, WRITE_MILLIS);
+  }
+
+  /**
+   * Constructs an instance that writes the checkpoints to a file, and
+   * reads the initial checkpoints from it, if it exists.
+   *
+   * @param file the file
+   * @param writeDocuments the number of delivered documents between
+   *     writes of the file
+   * @param writeMillis the longest time between writes of the file
+   */
+  DeliveredCheckpoint(File file, int writeDocuments, long writeMillis) {
+    this.file = file;
+    this.writeDocuments = writeDocuments;
+    this.writeMillis = writeMillis;
+    if (file.exists()) {
+      try {
+        read();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Cannot read " + file, e);
+      }
+    }
+  }
+
+  /**
+   * Starts a batch.
+   *
+   * @param checkpoint the checkpoint from the Connector Manager, or
+   *     {@code null} at the start of the traversal
+   * @return the checkpoint to resume the traversal from, which is the
+   *     checkpoint after the last delivered document if the same
+   *     checkpoint started the previous batch, or the given checkpoint
+   */
+  synchronized String startBatch(String checkpoint) {
+    String key = (checkpoint == null) ? "" : checkpoint;
+    if (deliveredCheckpoint != null && key.equals(batchCheckpoint)) {
+      // Keep the key, so that another abandoned batch resumes from
+      // its own last delivered document.
+      if (LOGGER.isLoggable(Level.INFO)) {
+        LOGGER.info("RESUMING ABANDONED BATCH FROM " + deliveredCheckpoint);
+      }
+      return deliveredCheckpoint;
+    }
+    batchCheckpoint = key;
+    deliveredCheckpoint = null;
+    write();
+    return checkpoint;
+  }
+
+  /**
+   * Forgets the checkpoints, so that the next batch is not resumed.
+   * This is used when the traversal is restarted.
+   */
+  synchronized void clear() {
+    batchCheckpoint = "";
+    deliveredCheckpoint = null;
+    write();
+  }
+
+  /**
+   * Records the checkpoint after a delivered document.
+   *
+   * @param checkpoint the checkpoint
+   */
+  synchronized void setDelivered(String checkpoint) {
+    deliveredCheckpoint = checkpoint;
+    if (++unwrittenDocuments >= writeDocuments
+        || System.currentTimeMillis() - writtenMillis >= writeMillis) {
+      write();
+    }
+  }
+
+  /** Gets the checkpoint after the last delivered document, or null. */
+  synchronized String getDelivered() {
+    return deliveredCheckpoint;
+  }
+
+  private void read() throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    InputStream in = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < bytes.length) {
+        int count = in.read(bytes, offset, bytes.length - offset);
+        if (count == -1) {
+          break;
+        }
+        offset += count;
+      }
+    } finally {
+      in.close();
+    }
+    String[] lines = new String(bytes, ENCODING).split("\n", -1);
+    if (lines.length == 4 && lines[2].equals(END_MARKER)) {
+      batchCheckpoint = lines[0];
+      deliveredCheckpoint = (lines[1].length() == 0) ? null : lines[1];
+    } else {
+      LOGGER.warning("Ignoring incomplete checkpoint file " + file);
+    }
+  }
+
+  /**
+   * Writes the checkpoints to the file, if there is one. Errors are
+   * logged, since the delivered checkpoint is only an optimization.
+   */
+  private void write() {
+    if (file == null) {
+      return;
+    }
+    unwrittenDocuments = 0;
+    writtenMillis = System.currentTimeMillis();
+    String content = batchCheckpoint + "\n"
+        + ((deliveredCheckpoint == null) ? "" : deliveredCheckpoint) + "\n"
+        + END_MARKER + "\n";
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(content.getBytes(ENCODING));
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      // Renaming over an existing file fails on Windows.
+      if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+        throw new IOException("Cannot rename " + temp + " to " + file);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Cannot write " + file, e);
+    }
+  }
+}
@@ -0,0 +1,183 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records where the items in the included locations fall in the
+ * traversal order, so that a traversal through a sparse region of
+ * DTree can skip straight to the next included item. The index is
+ * read ahead of the checkpoint in blocks, using DTreeAncestors, and
+ * extended as the checkpoint moves past it.
+ * <p>
+ * Items may be moved into the included locations without changing
+ * their ModifyDate, so the index is discarded after a few minutes.
+ */
+class DensityIndex {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(DensityIndex.class.getName());
+
+  /** Reads the included items that follow a checkpoint. */
+  interface Loader {
+    /**
+     * Gets the included items that follow the given checkpoint, in
+     * traversal order.
+     *
+     * @return a recarray with ModifyDate and DataID columns
+     */
+    ClientValue load(Date insertDate, int insertDataId, int size)
+        throws RepositoryException;
+  }
+
+  /** The number of included items to read in each query. */
+  static final int BLOCK_SIZE = 1000;
+
+  /** The most items to keep before starting over. */
+  private static final int MAX_SIZE = 10 * BLOCK_SIZE;
+
+  /** How long the index is trusted. */
+  private static final long MAX_AGE_MILLIS = 10 * 60 * 1000L;
+
+  private final Loader loader;
+
+  /** The ModifyDate of each item, in seconds. */
+  private final long[] seconds = new long[MAX_SIZE];
+
+  /** The DataID of each item. */
+  private final int[] dataIds = new int[MAX_SIZE];
+
+  /** The number of items in the index. */
+  private int size = 0;
+
+  /** Whether the last query reached the end of the included items. */
+  private boolean complete = false;
+
+  /** When the index was started. */
+  private long startMillis = 0;
+
+  DensityIndex(Loader loader) {
+    this.loader = loader;
+  }
+
+  /**
+   * Advances the checkpoint to just before the next included item, if
+   * that is past the current insert checkpoint.
+   *
+   * @param checkpoint the checkpoint to advance
+   * @return {@code true} if the checkpoint was advanced, or
+   *     {@code false} otherwise
+   * @throws RepositoryException if an error occurs reading the index
+   */
+  synchronized boolean skipAhead(Checkpoint checkpoint)
+      throws RepositoryException {
+    if (checkpoint.insertDate == null) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    if (now - startMillis > MAX_AGE_MILLIS) {
+      clear(now);
+    }
+
+    long cursorSeconds = checkpoint.insertDate.getTime() / 1000L;
+    int cursorDataId = checkpoint.insertDataId;
+    int next = search(cursorSeconds, cursorDataId);
+    if (next == size) {
+      if (complete && size > 0) {
+        return false;
+      }
+      if (size == 0 || compare(seconds[size - 1], dataIds[size - 1],
+              cursorSeconds, cursorDataId) < 0
+          || size + BLOCK_SIZE > MAX_SIZE) {
+        // Start over at the checkpoint.
+        clear(now);
+        load(checkpoint.insertDate, cursorDataId);
+      } else {
+        load(new Date(seconds[size - 1] * 1000L), dataIds[size - 1]);
+      }
+      next = search(cursorSeconds, cursorDataId);
+      if (next == size) {
+        return false;
+      }
+    }
+
+    // Stop just short of the next included item, since the checkpoint
+    // is exclusive.
+    Date nextDate = new Date(seconds[next] * 1000L);
+    int nextDataId = dataIds[next] - 1;
+    if (compare(seconds[next], nextDataId, cursorSeconds, cursorDataId) <= 0) {
+      return false;
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("SKIPPING AHEAD TO INCLUDED ITEM " + dataIds[next]);
+    }
+    checkpoint.setAdvanceCheckpoint(nextDate, nextDataId);
+    checkpoint.advanceToEnd();
+    return true;
+  }
+
+  private void clear(long now) {
+    size = 0;
+    complete = false;
+    startMillis = now;
+  }
+
+  private void load(Date insertDate, int insertDataId)
+      throws RepositoryException {
+    ClientValue items = loader.load(insertDate, insertDataId, BLOCK_SIZE);
+    int count = (items == null) ? 0 : items.size();
+    for (int i = 0; i < count && size < MAX_SIZE; i++) {
+      seconds[size] = items.toDate(i, "ModifyDate").getTime() / 1000L;
+      dataIds[size] = items.toInteger(i, "DataID");
+      size++;
+    }
+    complete = count < BLOCK_SIZE;
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.finer("DENSITY INDEX: " + size + " included items"
+          + (complete ? " (complete)" : ""));
+    }
+  }
+
+  /** Gets the index of the first item after the given position. */
+  private int search(long cursorSeconds, int cursorDataId) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (compare(seconds[mid], dataIds[mid], cursorSeconds, cursorDataId)
+          <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static int compare(long seconds1, int dataId1, long seconds2,
+      int dataId2) {
+    if (seconds1 != seconds2) {
+      return (seconds1 < seconds2) ? -1 : 1;
+    } else {
+      return (dataId1 < dataId2) ? -1 : ((dataId1 == dataId2) ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,564 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent map from DataID to the state of the item when it was
+ * last fed. The map is an open-addressing hash table with linear
+ * probing in a memory-mapped file, with fixed-size records of 32
+ * bytes. The table is grown by 25% when it is 80% full, so it takes
+ * between 40 and 50 bytes per item.
+ * <p>
+ * Each record has a checksum, and a record that does not match its
+ * checksum, for example after a crash while it was being written, is
+ * treated as missing. The table is grown by writing a new file with
+ * the next generation number, and the files with earlier generations
+ * are deleted when the new one is complete.
+ * <p>
+ * This class is thread-safe.
+ */
+final class DocumentStateStore {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(DocumentStateStore.class.getName());
+
+  /** The state of an item when it was last fed. */
+  static final class State {
+    /** The ModifyDate, in seconds. */
+    final long modifySeconds;
+
+    final int versionNumber;
+    final long contentSize;
+    final int aclHash;
+    final int metadataHash;
+
+    State(long modifyMillis, int versionNumber, long contentSize,
+        int aclHash, int metadataHash) {
+      this.modifySeconds = modifyMillis / 1000L;
+      this.versionNumber = versionNumber;
+      this.contentSize = contentSize;
+      this.aclHash = aclHash;
+      this.metadataHash = metadataHash;
+    }
+
+    /**
+     * Gets whether the content and the fed properties of the item are
+     * the same in both states. The ModifyDate is not compared.
+     *
+     * @param other the other state, or {@code null}
+     */
+    boolean hasSameFingerprint(State other) {
+      return other != null
+          && versionNumber == other.versionNumber
+          && contentSize == other.contentSize
+          && aclHash == other.aclHash
+          && metadataHash == other.metadataHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof State)) {
+        return false;
+      }
+      State other = (State) o;
+      return modifySeconds == other.modifySeconds
+          && versionNumber == other.versionNumber
+          && contentSize == other.contentSize
+          && aclHash == other.aclHash
+          && metadataHash == other.metadataHash;
+    }
+
+    @Override
+    public int hashCode() {
+      return mix((int) modifySeconds ^ versionNumber ^ (int) contentSize
+          ^ aclHash ^ metadataHash);
+    }
+
+    @Override
+    public String toString() {
+      return "{modifySeconds=" + modifySeconds
+          + ", versionNumber=" + versionNumber
+          + ", contentSize=" + contentSize
+          + ", aclHash=" + aclHash
+          + ", metadataHash=" + metadataHash + "}";
+    }
+  }
+
+  /** The file name prefix, followed by the generation number. */
+  static final String FILE_PREFIX = "documentState.";
+
+  private static final int MAGIC = 0x4C4C5354; // "LLST"
+  private static final int FORMAT_VERSION = 1;
+
+  /** The header length, which is the size of one record. */
+  private static final int HEADER_SIZE = 32;
+
+  /*
+   * The header layout. The complete flag is written last when the
+   * table is grown, and marks the generation as usable.
+   */
+  private static final int HEADER_MAGIC = 0;
+  private static final int HEADER_VERSION = 4;
+  private static final int HEADER_CAPACITY = 8;
+  private static final int HEADER_COMPLETE = 12;
+
+  /**
+   * The record length. The records are aligned so that a record is
+   * never split across pages.
+   */
+  static final int RECORD_SIZE = 32;
+
+  /*
+   * The record layout. A DataID of zero marks an empty slot, since
+   * Livelink object IDs are positive.
+   */
+  private static final int DATA_ID = 0;
+  private static final int MODIFY_SECONDS = 4;
+  private static final int VERSION_NUMBER = 8;
+  private static final int ACL_HASH = 12;
+  private static final int CONTENT_SIZE = 16;
+  private static final int METADATA_HASH = 24;
+  private static final int CHECKSUM = 28;
+
+  /** The initial number of slots. */
+  static final int INITIAL_CAPACITY = 1024;
+
+  /** The largest number of slots that fits in a mapped file. */
+  private static final int MAX_CAPACITY =
+      (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+  private static final float MAX_LOAD = 0.8f;
+
+  private final File directory;
+
+  private long generation;
+  private int capacity;
+  private int size;
+  private MappedByteBuffer buffer;
+
+  /**
+   * Opens the store in the given directory, creating it if needed.
+   *
+   * @param directory the directory holding the store files
+   * @throws IOException if the store cannot be read or created
+   */
+  static DocumentStateStore open(File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create directory " + directory);
+    }
+    return new DocumentStateStore(directory);
+  }
+
+  private DocumentStateStore(File directory) throws IOException {
+    this.directory = directory;
+
+    // Use the latest complete generation, and delete the others.
+    long latest = -1;
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Cannot list directory " + directory);
+    }
+    for (File file : files) {
+      long fileGeneration = getGeneration(file);
+      if (fileGeneration > latest && isComplete(file)) {
+        latest = fileGeneration;
+      }
+    }
+    if (latest == -1) {
+      generation = 0;
+      capacity = INITIAL_CAPACITY;
+      buffer = create(getFile(generation), capacity);
+      buffer.putInt(HEADER_COMPLETE, 1);
+    } else {
+      generation = latest;
+      buffer = map(getFile(generation), -1);
+      capacity = buffer.getInt(HEADER_CAPACITY);
+      size = 0;
+      for (int slot = 0; slot < capacity; slot++) {
+        if (buffer.getInt(offset(slot) + DATA_ID) != 0) {
+          size++;
+        }
+      }
+    }
+    deleteOtherGenerations();
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("DOCUMENT STATE STORE: " + getFile(generation) + " WITH "
+          + size + " ITEMS IN " + capacity + " SLOTS");
+    }
+  }
+
+  /** Gets the number of items in the store. */
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Gets the DataIDs of the items in the store.
+   *
+   * @return a new set of the DataIDs
+   */
+  synchronized DataIdBitmap getDataIds() {
+    DataIdBitmap dataIds = new DataIdBitmap();
+    for (int slot = 0; slot < capacity; slot++) {
+      int dataId = buffer.getInt(offset(slot) + DATA_ID);
+      if (dataId != 0) {
+        dataIds.add(dataId);
+      }
+    }
+    return dataIds;
+  }
+
+  /**
+   * Gets the state of an item.
+   *
+   * @param dataId the DataID of the item
+   * @return the state, or {@code null} if the item is not in the store
+   */
+  synchronized State get(int dataId) {
+    if (dataId <= 0) {
+      return null;
+    }
+    int slot = find(dataId);
+    if (slot < 0) {
+      return null;
+    }
+    int offset = offset(slot);
+    if (buffer.getInt(offset + CHECKSUM) != checksum(offset)) {
+      LOGGER.log(Level.FINEST, "CORRUPT DOCUMENT STATE FOR ID = {0,number,#}",
+          dataId);
+      return null;
+    }
+    return new State(
+        (buffer.getInt(offset + MODIFY_SECONDS) & 0xFFFFFFFFL) * 1000L,
+        buffer.getInt(offset + VERSION_NUMBER),
+        buffer.getLong(offset + CONTENT_SIZE),
+        buffer.getInt(offset + ACL_HASH),
+        buffer.getInt(offset + METADATA_HASH));
+  }
+
+  /**
+   * Records the state of an item, replacing any previous state.
+   *
+   * @param dataId the DataID of the item, which must be positive
+   * @param state the state of the item
+   * @throws IOException if the store must be grown and cannot be
+   */
+  synchronized void put(int dataId, State state) throws IOException {
+    if (dataId <= 0) {
+      throw new IllegalArgumentException("Invalid DataID " + dataId);
+    }
+    int slot = find(dataId);
+    if (slot < 0) {
+      if (size + 1 > capacity * MAX_LOAD) {
+        grow();
+      }
+      slot = -(find(dataId) + 1);
+      size++;
+    }
+    write(buffer, offset(slot), dataId, (int) state.modifySeconds,
+        state.versionNumber, state.contentSize, state.aclHash,
+        state.metadataHash);
+  }
+
+  /**
+   * Removes an item from the store.
+   *
+   * @param dataId the DataID of the item
+   * @return {@code true} if the item was in the store
+   */
+  synchronized boolean remove(int dataId) {
+    if (dataId <= 0) {
+      return false;
+    }
+    int slot = find(dataId);
+    if (slot < 0) {
+      return false;
+    }
+
+    // Shift back the following records that probed past this slot,
+    // so that lookups never stop early at an empty slot.
+    int empty = slot;
+    int next = empty;
+    while (true) {
+      next = (next + 1 == capacity) ? 0 : next + 1;
+      int nextOffset = offset(next);
+      int nextId = buffer.getInt(nextOffset + DATA_ID);
+      if (nextId == 0) {
+        break;
+      }
+      int home = home(nextId, capacity);
+      if (distance(home, next) >= distance(empty, next)) {
+        copy(nextOffset, offset(empty));
+        empty = next;
+      }
+    }
+    clear(offset(empty));
+    size--;
+    return true;
+  }
+
+  /**
+   * Removes all of the items from the store. The empty table is
+   * written as a new generation, so a crash leaves either the old
+   * table or the empty one.
+   *
+   * @throws IOException if the new table cannot be written
+   */
+  synchronized void clear() throws IOException {
+    long newGeneration = generation + 1;
+    MappedByteBuffer newBuffer =
+        create(getFile(newGeneration), INITIAL_CAPACITY);
+    newBuffer.force();
+    newBuffer.putInt(HEADER_COMPLETE, 1);
+    newBuffer.force();
+
+    LOGGER.fine("DOCUMENT STATE STORE: CLEARED " + size + " ITEMS");
+    buffer = newBuffer;
+    capacity = INITIAL_CAPACITY;
+    size = 0;
+    generation = newGeneration;
+    deleteOtherGenerations();
+  }
+
+  /**
+   * Writes the changes to the disk. The operating system writes the
+   * changes eventually even if the process crashes, so this is only
+   * needed to survive a crash of the host.
+   */
+  synchronized void flush() {
+    buffer.force();
+  }
+
+  /**
+   * Gets the slot holding the given DataID.
+   *
+   * @return the slot, or {@code -(slot + 1)} for the empty slot where
+   *     the DataID would be inserted
+   */
+  private int find(int dataId) {
+    int slot = home(dataId, capacity);
+    while (true) {
+      int id = buffer.getInt(offset(slot) + DATA_ID);
+      if (id == dataId) {
+        return slot;
+      } else if (id == 0) {
+        return -(slot + 1);
+      }
+      slot = (slot + 1 == capacity) ? 0 : slot + 1;
+    }
+  }
+
+  /** Copies the records into a new, larger generation. */
+  private void grow() throws IOException {
+    if (capacity == MAX_CAPACITY) {
+      throw new IOException("The document state store is full: " + size
+          + " items");
+    }
+    int newCapacity = (int) Math.min(MAX_CAPACITY, capacity * 5L / 4L);
+    long newGeneration = generation + 1;
+    File newFile = getFile(newGeneration);
+    MappedByteBuffer newBuffer = create(newFile, newCapacity);
+    for (int slot = 0; slot < capacity; slot++) {
+      int offset = offset(slot);
+      int dataId = buffer.getInt(offset + DATA_ID);
+      if (dataId != 0) {
+        int newSlot = home(dataId, newCapacity);
+        while (newBuffer.getInt(offset(newSlot) + DATA_ID) != 0) {
+          newSlot = (newSlot + 1 == newCapacity) ? 0 : newSlot + 1;
+        }
+        for (int i = 0; i < RECORD_SIZE; i += 4) {
+          newBuffer.putInt(offset(newSlot) + i, buffer.getInt(offset + i));
+        }
+      }
+    }
+    newBuffer.force();
+    newBuffer.putInt(HEADER_COMPLETE, 1);
+    newBuffer.force();
+
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("DOCUMENT STATE STORE: GREW TO " + newCapacity
+          + " SLOTS IN " + newFile);
+    }
+    buffer = newBuffer;
+    capacity = newCapacity;
+    generation = newGeneration;
+    deleteOtherGenerations();
+  }
+
+  /**
+   * Deletes the files with other generations. Mapped files cannot be
+   * deleted on some platforms, so failures are ignored, and the files
+   * are deleted when the store is next opened.
+   */
+  private void deleteOtherGenerations() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        long fileGeneration = getGeneration(file);
+        if (fileGeneration != -1 && fileGeneration != generation
+            && !file.delete()) {
+          LOGGER.finest("CANNOT DELETE " + file);
+        }
+      }
+    }
+  }
+
+  private File getFile(long generation) {
+    return new File(directory, FILE_PREFIX + generation);
+  }
+
+  /** Gets the generation of a store file, or -1 for other files. */
+  private static long getGeneration(File file) {
+    String name = file.getName();
+    if (!name.startsWith(FILE_PREFIX)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(name.substring(FILE_PREFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Gets whether a store file was completely written. */
+  private static boolean isComplete(File file) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        if (raf.length() < HEADER_SIZE) {
+          return false;
+        }
+        int magic = raf.readInt();
+        int version = raf.readInt();
+        long capacity = raf.readInt();
+        int complete = raf.readInt();
+        return magic == MAGIC && version == FORMAT_VERSION && complete == 1
+            && capacity > 0
+            && raf.length() == HEADER_SIZE + capacity * RECORD_SIZE;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Cannot read " + file, e);
+      return false;
+    }
+  }
+
+  /**
+   * Creates an empty store file. The file is not marked as complete.
+   */
+  private static MappedByteBuffer create(File file, int capacity)
+      throws IOException {
+    MappedByteBuffer buffer =
+        map(file, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+    buffer.putInt(HEADER_MAGIC, MAGIC);
+    buffer.putInt(HEADER_VERSION, FORMAT_VERSION);
+    buffer.putInt(HEADER_CAPACITY, capacity);
+    return buffer;
+  }
+
+  /**
+   * Maps a store file. The mapping remains valid after the file is
+   * closed.
+   *
+   * @param length the new length of the file, or -1 to keep the
+   *     current length
+   */
+  private static MappedByteBuffer map(File file, long length)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (length != -1) {
+        raf.setLength(0);
+        raf.setLength(length);
+      }
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+          raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static int offset(int slot) {
+    return HEADER_SIZE + slot * RECORD_SIZE;
+  }
+
+  /** Gets the first slot to probe for a DataID. */
+  private static int home(int dataId, int capacity) {
+    // Scale the mixed hash to the capacity, which need not be a power
+    // of two.
+    return (int) (((mix(dataId) & 0xFFFFFFFFL) * capacity) >>> 32);
+  }
+
+  /** Gets the number of probes from one slot to a later one. */
+  private int distance(int from, int to) {
+    return (to >= from) ? to - from : to + capacity - from;
+  }
+
+  private static void write(MappedByteBuffer buffer, int offset, int dataId,
+      int modifySeconds, int versionNumber, long contentSize, int aclHash,
+      int metadataHash) {
+    buffer.putInt(offset + MODIFY_SECONDS, modifySeconds);
+    buffer.putInt(offset + VERSION_NUMBER, versionNumber);
+    buffer.putInt(offset + ACL_HASH, aclHash);
+    buffer.putLong(offset + CONTENT_SIZE, contentSize);
+    buffer.putInt(offset + METADATA_HASH, metadataHash);
+    buffer.putInt(offset + DATA_ID, dataId);
+    buffer.putInt(offset + CHECKSUM, checksum(buffer, offset));
+  }
+
+  private void copy(int fromOffset, int toOffset) {
+    for (int i = 0; i < RECORD_SIZE; i += 4) {
+      buffer.putInt(toOffset + i, buffer.getInt(fromOffset + i));
+    }
+  }
+
+  private void clear(int offset) {
+    for (int i = 0; i < RECORD_SIZE; i += 4) {
+      buffer.putInt(offset + i, 0);
+    }
+  }
+
+  private int checksum(int offset) {
+    return checksum(buffer, offset);
+  }
+
+  /** Computes the checksum of the fields of a record. */
+  private static int checksum(MappedByteBuffer buffer, int offset) {
+    int hash = MAGIC;
+    for (int i = 0; i < CHECKSUM; i += 4) {
+      hash = mix(hash ^ buffer.getInt(offset + i));
+    }
+    return hash;
+  }
+
+  /** The MurmurHash3 finalizer, which spreads the bits of a value. */
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -189,10 +189,11 @@ class Genealogist {
    */
   protected void matchDescendants(ClientValue matching,
       StringBuilder descendants) throws RepositoryException {
-    for (int i = 0; i < matching.size(); i++) {
+    int[] matchingIds = new RecArrayColumns(matching).getIntColumn("DataID");
+    for (int i = 0; i < matchingIds.length; i++) {
       // We do not cache the matches, which are probably mostly documents.
       ArrayList<Integer> cachePossibles = new ArrayList<Integer>();
-      final int matchingId = matching.toInteger(i, "DataID");
+      final int matchingId = matchingIds[i];
       Integer parentId = matchingId;
 
       // TODO: Check for an interrupted traversal in this loop?
@@ -50,8 +50,9 @@ class HybridGenealogist extends Genealogist {
       StringBuilder descendants) throws RepositoryException {
     // First, check the matching nodes themselves.
     StringBuilder undecideds = new StringBuilder();
-    for (int i = 0; i < matching.size(); i++) {
-      final int matchingId = matching.toInteger(i, "DataID");
+    int[] matchingIds = new RecArrayColumns(matching).getIntColumn("DataID");
+    for (int i = 0; i < matchingIds.length; i++) {
+      final int matchingId = matchingIds[i];
       if (!matchParent(matchingId, matchingId,
               Collections.<Integer>emptyList(), descendants))
         undecideds.append(matchingId).append(',');
@@ -105,7 +106,8 @@ class HybridGenealogist extends Genealogist {
     // b.DataID, or Oracle will avoid using an index.
     queryCount++;
     ClientValue parents = sqlQueries.execute(client, null,
-        "HybridGenealogist.getParents", objectIds);
+        "HybridGenealogist.getParents",
+        DataIdSet.parse(objectIds).toSqlCondition("DataID"));
     return new Parents(parents);
   }
 
@@ -122,18 +124,28 @@ class HybridGenealogist extends Genealogist {
    * mishandle stepparents.
    */
   protected static final class Parents {
-    private final ClientValue parents;
+    /** A StepParentID value that is never a real object ID. */
+    private static final int NO_STEPPARENT = Integer.MIN_VALUE;
 
-    public Parents(ClientValue parents) {
-      this.parents = parents;
+    private final int[] dataIds;
+    private final int[] parentIds;
+    private final int[] stepParentIds;
+
+    public Parents(ClientValue parents) throws RepositoryException {
+      // Read the columns once up front, rather than looking up the
+      // column names in the recarray on every access.
+      RecArrayColumns columns = new RecArrayColumns(parents);
+      this.dataIds = columns.getIntColumn("DataID");
+      this.parentIds = columns.getIntColumn("ParentID");
+      this.stepParentIds = columns.getIntColumn("StepParentID", NO_STEPPARENT);
     }
 
     public int size() {
-      return parents.size();
+      return dataIds.length;
     }
 
     public int getDataID(int i) throws RepositoryException {
-        return parents.toInteger(i, "DataID");
+        return dataIds[i];
     }
 
     /**
@@ -143,9 +155,9 @@ class HybridGenealogist extends Genealogist {
      * @see HybridGenealogist#getParents
      */
     public int getParentID(int i) throws RepositoryException {
-      int parentId = parents.toInteger(i, "ParentID");
-      if (parentId == -1 && parents.isDefined(i, "StepParentID")) {
-        parentId = parents.toInteger(i, "StepParentID");
+      int parentId = parentIds[i];
+      if (parentId == -1 && stepParentIds[i] != NO_STEPPARENT) {
+        parentId = stepParentIds[i];
         if (LOGGER.isLoggable(Level.FINEST)) {
           LOGGER.finest("DESCENDANTS: Substituting " + parentId
               + " as stepparent for " + getDataID(i));
@@ -47,7 +47,20 @@ class IdentityUtils {
 
   public ClientValue getUserOrGroupById(int userId)
       throws RepositoryException {
-    ClientValue info = client.GetUserOrGroupByIDNoThrow(userId);
+    return getUserOrGroupById(userId,
+        client.GetUserOrGroupByIDNoThrow(userId));
+  }
+
+  /**
+   * Filters user or group information that has already been retrieved.
+   *
+   * @param userId the user or group ID
+   * @param info the result of {@code GetUserOrGroupByIDNoThrow}
+   * @return the information, or {@code null} if the user or group does
+   *     not exist or is disabled
+   */
+  public ClientValue getUserOrGroupById(int userId, ClientValue info)
+      throws RepositoryException {
     if (info == null || !info.hasValue() || isDisabled(userId, info)) {
       return null;
     } else {
@@ -88,6 +101,11 @@ class IdentityUtils {
       }
       int type = userInfo.toInteger("Type");
       ClientValue userData = userInfo.toValue("UserData");
+      if (userData != null && userData.type() == ClientValue.STRING) {
+        // UserData read from KUAF with ListNodes is a stringified assoc.
+        userData = Strings.isNullOrEmpty(userData.toString2())
+            ? null : userData.stringToValue();
+      }
 
       String namespace;
       try {
@@ -50,6 +50,13 @@ public class LivelinkAuthorizationManager
   private static final Predicate<CharSequence> INTEGER_PREDICATE =
       Predicates.contains(Pattern.compile("^-?\\d{1,10}$"));
 
+  /**
+   * The most docids in each authorization query. The SQL condition
+   * splits the IDs into {@code in} lists that Oracle accepts.
+   */
+  @VisibleForTesting
+  static final int MAX_DOCIDS_PER_QUERY = 10000;
+
   /** The connector contains configuration information. */
   private LivelinkConnector connector;
 
@@ -270,7 +277,7 @@ public class LivelinkAuthorizationManager
     Client client = clientFactory.createClient();
     client.ImpersonateUserEx(username, connector.getDomainName());
 
-    String docids;
+    DataIdSet docids;
     while ((docids = getDocids(iterator)) != null) {
       String ancestorNodes;
       String startNodes = connector.getIncludedLocationNodes();
@@ -282,14 +289,15 @@ public class LivelinkAuthorizationManager
 
       ClientValue results = sqlQueries.execute(client, "AUTHORIZATION QUERY",
           "LivelinkAuthorizationManager.addAuthorizedDocids",
-          /* 0 */ docids,
+          /* 0 */ docids.toSqlCondition("DataID"),
           /* 1 */ choice(undeleteVolumeId != 0), undeleteVolumeId,
           /* 3 */ choice(workflowVolumeId != 0), -workflowVolumeId,
           /* 5 */ choice(!showHiddenItems), Client.DISPLAYTYPE_HIDDEN,
           /* 7 */ choice(!Strings.isNullOrEmpty(startNodes)), startNodes,
           /* 9 */ ancestorNodes);
-      for (int i = 0; i < results.size(); i++)
-        authorized.add(creator.fromString(results.toString(i, "DataID")));
+      int[] dataIds = new RecArrayColumns(results).getIntColumn("DataID");
+      for (int i = 0; i < dataIds.length; i++)
+        authorized.add(creator.fromString(String.valueOf(dataIds[i])));
     }
   }
 
@@ -313,23 +321,31 @@ public class LivelinkAuthorizationManager
   }
 
   /**
-   * Builds a comma-separated string of up to 1,000 docids from the
-   * given iterator. At most, 1,000 docids will be added to the query
-   * due to SQL syntax limits in Oracle.
+   * Builds a set of up to {@link #MAX_DOCIDS_PER_QUERY} docids from
+   * the given iterator. Docids that are out of range for an object ID
+   * are skipped.
    *
    * @param docids the docids to include in the query
-   * @return the comma-separated string; null if no docids are provided
+   * @return the set of docids; null if no docids are provided
    */
   @VisibleForTesting
-  String getDocids(Iterator<String> iterator) {
+  DataIdSet getDocids(Iterator<String> iterator) {
     if (!iterator.hasNext())
       return null; 
 
-    StringBuilder buffer = new StringBuilder();
-    for (int i = 0; i < 1000 && iterator.hasNext(); i++ ) 
-      buffer.append(iterator.next()).append(',');
-    buffer.deleteCharAt(buffer.length() - 1);
-    return buffer.toString();
+    int[] buffer = new int[MAX_DOCIDS_PER_QUERY];
+    int count = 0;
+    for (int i = 0; i < MAX_DOCIDS_PER_QUERY && iterator.hasNext(); i++ ) {
+      String docid = iterator.next();
+      try {
+        buffer[count] = Integer.parseInt(docid);
+        count++;
+      } catch (NumberFormatException e) {
+        if (LOGGER.isLoggable(Level.FINEST))
+          LOGGER.finest("SKIPPING INVALID DOCID: " + docid);
+      }
+    }
+    return DataIdSet.of(buffer, count);
   }
 
   /**
@@ -28,6 +28,8 @@ import com.google.enterprise.connector.spi.RepositoryLoginException;
 import com.google.enterprise.connector.spi.Session;
 import com.google.enterprise.connector.spi.SpiConstants;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.Format;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
@@ -257,6 +259,87 @@ public class LivelinkConnector implements Connector {
   /** Whether to use a delete query that takes advantage of a standard index. */
   private boolean useIndexedDeleteQuery;
 
+  /** Whether to prefetch the next batch of candidates in the background. */
+  private boolean usePipelinedTraversal;
+
+  /** Whether to run the deleted items query concurrently. */
+  private boolean useConcurrentTraversalQueries;
+
+  /** The number of sessions used to collect document metadata. */
+  private int metadataSessions;
+
+  /** Whether to adapt the number of candidates to the query results. */
+  private boolean useAdaptiveBatchSize;
+
+  /** The number of time slices for the initial traversal. */
+  private int initialCrawlSlices;
+
+  /** Whether to skip sparse regions of DTree using DTreeAncestors. */
+  private boolean useDensityIndex;
+
+  /** The checkpoint age in hours that starts a freshness lane. */
+  private int freshnessLaneHours;
+
+  /** The audit events that drive the incremental traversal. */
+  private String auditTraversalEvents;
+
+  /** Whether to defer the full metadata to a second pass. */
+  private boolean useTwoPhaseCrawl;
+
+  /** How long an item must go unmodified before it is traversed. */
+  private int quietPeriodSeconds;
+
+  /** Whether to traverse changes to the location nodes incrementally. */
+  private boolean trackScopeChanges;
+
+  /** The longest time to skip traversals while there are no audit events. */
+  private int auditWatcherMaxIdleSeconds;
+
+  /** The time between scans for deleted items that were missed. */
+  private int deleteReconciliationIntervalSeconds;
+
+  /** The reconciler for deleted items that were missed, created on use. */
+  private DeleteReconciler deleteReconciler;
+
+  /** Whether the reconciler could not be created. */
+  private boolean deleteReconcilerFailed = false;
+
+  /** The directory of the fed document state, or an empty string. */
+  private String documentStateDirectory;
+
+  /** The fed document state, opened on first use. */
+  private DocumentStateStore documentStateStore;
+
+  /** Whether opening the document state store failed. */
+  private boolean documentStateStoreFailed = false;
+
+  /** Whether to skip documents that are unchanged since they were fed. */
+  private boolean skipUnchangedDocuments;
+
+  /** Whether to resume abandoned batches from the last document. */
+  private boolean useDeliveredCheckpoints;
+
+  /** The checkpoint after the last delivered document, created on use. */
+  private DeliveredCheckpoint deliveredCheckpoint;
+
+  /** Whether to read the ACLs for each batch with bulk queries. */
+  private boolean useBulkAclQueries;
+
+  /** Whether to read the category attributes with bulk queries. */
+  private boolean useBulkCategoryQueries;
+
+  /** The cached category definitions, created on use. */
+  private CategoryDefinitionCache categoryDefinitionCache;
+
+  /** Whether to read the VersionInfo with bulk queries. */
+  private boolean useBulkVersionQueries;
+
+  /** The number of connector instances sharing the repository. */
+  private int shardCount;
+
+  /** The shard of the repository traversed by this instance. */
+  private int shardIndex;
+
   /** Whether to use DTreeAncestors table instead of a slower method. */
   private boolean useDTreeAncestors;
 
@@ -1545,6 +1628,770 @@ public class LivelinkConnector implements Connector {
     return this.useIndexedDeleteQuery;
   }
 
+  /**
+   * Sets whether to prefetch the next batch of candidates and results
+   * on a second Livelink session while the current batch is being
+   * processed. This is only supported for direct connections, and not
+   * for HTTP tunneling, which creates a new session for each batch.
+   *
+   * @param usePipelinedTraversal {@code true} to prefetch the next
+   *     batch, or {@code false} to run the traversal queries on demand
+   * @since 3.4
+   */
+  public void setUsePipelinedTraversal(boolean usePipelinedTraversal) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("USE PIPELINED TRAVERSAL: " + usePipelinedTraversal);
+    this.usePipelinedTraversal = usePipelinedTraversal;
+  }
+
+  /**
+   * Gets whether to prefetch the next batch of candidates and results.
+   *
+   * @return {@code true} to prefetch the next batch, or {@code false}
+   *     to run the traversal queries on demand
+   * @since 3.4
+   */
+  boolean getUsePipelinedTraversal() {
+    return this.usePipelinedTraversal;
+  }
+
+  /**
+   * Sets whether to run the deleted items query on a separate Livelink
+   * session, concurrently with the candidates and results queries for
+   * the inserted items. This is only supported for direct connections.
+   *
+   * @param useConcurrentTraversalQueries {@code true} to run the
+   *     queries concurrently, or {@code false} to run them in sequence
+   * @since 3.4
+   */
+  public void setUseConcurrentTraversalQueries(
+      boolean useConcurrentTraversalQueries) {
+    if (LOGGER.isLoggable(Level.CONFIG)) {
+      LOGGER.config("USE CONCURRENT TRAVERSAL QUERIES: "
+          + useConcurrentTraversalQueries);
+    }
+    this.useConcurrentTraversalQueries = useConcurrentTraversalQueries;
+  }
+
+  /**
+   * Gets whether to run the deleted items query concurrently.
+   *
+   * @return {@code true} to run the queries concurrently, or
+   *     {@code false} to run them in sequence
+   * @since 3.4
+   */
+  boolean getUseConcurrentTraversalQueries() {
+    return this.useConcurrentTraversalQueries;
+  }
+
+  /**
+   * Sets the number of additional Livelink sessions used to collect
+   * the ObjectInfo, VersionInfo, and ACLs of the documents in each
+   * batch in parallel. The documents are still returned in order.
+   * This is only supported for direct connections.
+   *
+   * @param metadataSessions the number of sessions, or {@code 0} to
+   *     collect the metadata as each document is processed
+   * @since 3.4
+   */
+  public void setMetadataSessions(final int metadataSessions) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (metadataSessions < 0) {
+            throw new ConfigurationException(
+                "metadataSessions must not be negative.");
+          }
+          LivelinkConnector.this.metadataSessions = metadataSessions;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("METADATA SESSIONS: " + metadataSessions);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of sessions used to collect document metadata.
+   *
+   * @return the number of sessions, or {@code 0} to collect the
+   *     metadata as each document is processed
+   * @since 3.4
+   */
+  int getMetadataSessions() {
+    return this.metadataSessions;
+  }
+
+  /**
+   * Sets whether to adapt the number of candidates in each traversal
+   * query to the fraction of candidates that pass the filters and to
+   * the measured query times, rather than escalating from the batch
+   * hint by a fixed factor in sparse regions. The number of candidates
+   * is still limited to 1000 by the Oracle IN list limit.
+   *
+   * @param useAdaptiveBatchSize {@code true} to adapt the number of
+   *     candidates, or {@code false} to use the batch hint
+   * @since 3.4
+   */
+  public void setUseAdaptiveBatchSize(boolean useAdaptiveBatchSize) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("USE ADAPTIVE BATCH SIZE: " + useAdaptiveBatchSize);
+    this.useAdaptiveBatchSize = useAdaptiveBatchSize;
+  }
+
+  /**
+   * Gets whether to adapt the number of candidates in each query.
+   *
+   * @return {@code true} to adapt the number of candidates, or
+   *     {@code false} to use the batch hint
+   * @since 3.4
+   */
+  boolean getUseAdaptiveBatchSize() {
+    return this.useAdaptiveBatchSize;
+  }
+
+  /**
+   * Sets the number of time slices for the initial traversal. The
+   * ModifyDate range from the start date, or the earliest item to
+   * index, to the start of the traversal is split into slices of equal
+   * length, each with its own checkpoint. The batches take turns among
+   * the slices, and the slices are queried in parallel on additional
+   * Livelink sessions for direct connections. Each slice merges with
+   * the next one when it catches up to it, until a single checkpoint
+   * remains.
+   *
+   * @param initialCrawlSlices the number of slices, or {@code 0} or
+   *     {@code 1} to traverse the repository in a single pass
+   * @since 3.4
+   */
+  public void setInitialCrawlSlices(final int initialCrawlSlices) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (initialCrawlSlices < 0) {
+            throw new ConfigurationException(
+                "initialCrawlSlices must not be negative.");
+          }
+          LivelinkConnector.this.initialCrawlSlices = initialCrawlSlices;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("INITIAL CRAWL SLICES: " + initialCrawlSlices);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of time slices for the initial traversal.
+   *
+   * @return the number of slices
+   * @since 3.4
+   */
+  int getInitialCrawlSlices() {
+    return this.initialCrawlSlices;
+  }
+
+  /**
+   * Sets whether to skip over regions of DTree with no items in the
+   * included locations. When a batch of candidates has no results,
+   * the traversal finds the next included item using DTreeAncestors
+   * and advances the checkpoint straight to it. This has no effect if
+   * there are no included locations, or if
+   * <code>useDTreeAncestorsFirst</code> is {@code true}.
+   *
+   * @param useDensityIndex {@code true} to skip sparse regions, or
+   *     {@code false} to advance through them a batch at a time
+   * @since 3.4
+   */
+  public void setUseDensityIndex(boolean useDensityIndex) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("USE DENSITY INDEX: " + useDensityIndex);
+    this.useDensityIndex = useDensityIndex;
+  }
+
+  /**
+   * Gets whether to skip sparse regions of DTree.
+   *
+   * @return {@code true} to skip sparse regions, or {@code false} to
+   *     advance through them a batch at a time
+   * @since 3.4
+   */
+  boolean getUseDensityIndex() {
+    return this.useDensityIndex;
+  }
+
+  /**
+   * Sets the age of the insert checkpoint, in hours, at which the
+   * traversal splits off a freshness lane. The items modified since
+   * the split are traversed in a head slice that takes turns with the
+   * backfill of the older items, so recent changes are fed within
+   * minutes during a long reindex. The backfill merges into the head
+   * slice when it catches up.
+   *
+   * @param freshnessLaneHours the checkpoint age in hours, or
+   *     {@code 0} to traverse strictly in ModifyDate order
+   * @since 3.4
+   */
+  public void setFreshnessLaneHours(final int freshnessLaneHours) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (freshnessLaneHours < 0) {
+            throw new ConfigurationException(
+                "freshnessLaneHours must not be negative.");
+          }
+          LivelinkConnector.this.freshnessLaneHours = freshnessLaneHours;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("FRESHNESS LANE HOURS: " + freshnessLaneHours);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the age of the insert checkpoint that starts a freshness lane.
+   *
+   * @return the checkpoint age in hours, or {@code 0} if disabled
+   * @since 3.4
+   */
+  int getFreshnessLaneHours() {
+    return this.freshnessLaneHours;
+  }
+
+  /**
+   * Sets the audit events that drive the incremental traversal. When
+   * set, DTree is only scanned for the initial traversal. After that,
+   * the items named by these events in the DAuditNew table are
+   * traversed instead, starting from the last audit event when the
+   * initial traversal began. The AuditID values for events such as
+   * Create, Add Version, and Change Attributes vary with the Livelink
+   * version, and auditing must be enabled for each of them.
+   *
+   * @param auditTraversalEventsParam a comma-separated list of
+   *     AuditID values, or an empty string to scan DTree for changes
+   * @since 3.4
+   */
+  public void setAuditTraversalEvents(
+      final String auditTraversalEventsParam) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          auditTraversalEvents =
+              sanitizeListOfIntegers(auditTraversalEventsParam);
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUDIT TRAVERSAL EVENTS: "
+                + auditTraversalEvents);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the audit events that drive the incremental traversal.
+   *
+   * @return a comma-separated list of AuditID values, which may be empty
+   * @since 3.4
+   */
+  String getAuditTraversalEvents() {
+    return this.auditTraversalEvents;
+  }
+
+  /**
+   * Sets whether to split the initial traversal into two passes. The
+   * first pass feeds the items with only the WebNodes properties and
+   * their content, skipping the ObjectInfo, VersionInfo, category,
+   * ExtendedData, and ACL properties, which cost several server calls
+   * per item. Once the first pass catches up, the items are fed again
+   * with their full metadata, one batch at a time whenever there are
+   * no new changes to traverse.
+   *
+   * @param useTwoPhaseCrawl {@code true} to defer the full metadata to
+   *     a second pass, or {@code false} to feed it in a single pass
+   * @since 3.4
+   */
+  public void setUseTwoPhaseCrawl(boolean useTwoPhaseCrawl) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("USE TWO PHASE CRAWL: " + useTwoPhaseCrawl);
+    this.useTwoPhaseCrawl = useTwoPhaseCrawl;
+  }
+
+  /**
+   * Gets whether to defer the full metadata to a second pass.
+   *
+   * @return {@code true} to defer the full metadata to a second pass,
+   *     or {@code false} to feed it in a single pass
+   * @since 3.4
+   */
+  boolean getUseTwoPhaseCrawl() {
+    return this.useTwoPhaseCrawl;
+  }
+
+  /**
+   * Sets how long an item must go unmodified before it is traversed.
+   * Items modified within the quiet period are held back, and the
+   * checkpoint stops short of them, so that a burst of modifications
+   * to the same item is fed once. The quiet period is measured with
+   * the connector host clock against the ModifyDate in the database.
+   *
+   * @param quietPeriodSeconds the quiet period in seconds, or
+   *     {@code 0} to traverse items as soon as they are modified
+   * @since 3.4
+   */
+  public void setQuietPeriodSeconds(final int quietPeriodSeconds) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (quietPeriodSeconds < 0) {
+            throw new ConfigurationException(
+                "quietPeriodSeconds must not be negative.");
+          }
+          LivelinkConnector.this.quietPeriodSeconds = quietPeriodSeconds;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("QUIET PERIOD SECONDS: " + quietPeriodSeconds);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets how long an item must go unmodified before it is traversed.
+   *
+   * @return the quiet period in seconds, or {@code 0} if disabled
+   * @since 3.4
+   */
+  int getQuietPeriodSeconds() {
+    return this.quietPeriodSeconds;
+  }
+
+  /**
+   * Sets whether to traverse changes to the included and excluded
+   * location nodes incrementally. The location nodes are recorded in
+   * the checkpoint. When they change, the items in the newly included
+   * nodes are traversed in a side traversal up to the current
+   * checkpoint, and the items in the newly excluded nodes that are no
+   * longer included are deleted, without restarting the traversal.
+   *
+   * @param trackScopeChanges {@code true} to traverse changes to the
+   *     location nodes incrementally, or {@code false} to ignore them
+   * @since 3.4
+   */
+  public void setTrackScopeChanges(boolean trackScopeChanges) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("TRACK SCOPE CHANGES: " + trackScopeChanges);
+    this.trackScopeChanges = trackScopeChanges;
+  }
+
+  /**
+   * Gets whether to traverse changes to the location nodes
+   * incrementally.
+   *
+   * @return {@code true} to traverse changes to the location nodes
+   *     incrementally, or {@code false} to ignore them
+   * @since 3.4
+   */
+  boolean getTrackScopeChanges() {
+    return this.trackScopeChanges;
+  }
+
+  /**
+   * Sets the longest time to skip traversals while there are no new
+   * audit events. When a traversal finds no changes, the following
+   * traversals check the last EventID in DAuditNew, which is much
+   * cheaper than the full traversal queries, and skip the traversal
+   * if it has not changed. Since not every change is audited, the full
+   * traversal queries are still run after this time. This makes it
+   * practical to use a short traversal retry delay for fresher results.
+   *
+   * @param auditWatcherMaxIdleSeconds the longest time to skip
+   *     traversals, in seconds, or {@code 0} to always run them
+   * @since 3.4
+   */
+  public void setAuditWatcherMaxIdleSeconds(
+      final int auditWatcherMaxIdleSeconds) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (auditWatcherMaxIdleSeconds < 0) {
+            throw new ConfigurationException(
+                "auditWatcherMaxIdleSeconds must not be negative.");
+          }
+          LivelinkConnector.this.auditWatcherMaxIdleSeconds =
+              auditWatcherMaxIdleSeconds;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUDIT WATCHER MAX IDLE SECONDS: "
+                + auditWatcherMaxIdleSeconds);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the longest time to skip traversals while there are no new
+   * audit events.
+   *
+   * @return the time in seconds, or {@code 0} if disabled
+   * @since 3.4
+   */
+  int getAuditWatcherMaxIdleSeconds() {
+    return this.auditWatcherMaxIdleSeconds;
+  }
+
+  /**
+   * Sets the time between scans for deleted items that were not
+   * traversed, because deletes are not tracked, or the audit events
+   * were purged. Each scan reads all of the DataIDs in the traversal
+   * scope, in chunks, and deletes the fed items that are no longer
+   * there. The fed items are read from the document state store, so
+   * this requires the documentStateDirectory property. The first scan
+   * starts one interval after the connector starts.
+   *
+   * @param deleteReconciliationIntervalSeconds the time between the
+   *     scans, in seconds, or {@code 0} to not scan for deleted items
+   * @since 3.4
+   */
+  public void setDeleteReconciliationIntervalSeconds(
+      final int deleteReconciliationIntervalSeconds) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (deleteReconciliationIntervalSeconds < 0) {
+            throw new ConfigurationException(
+                "deleteReconciliationIntervalSeconds must not be negative.");
+          }
+          LivelinkConnector.this.deleteReconciliationIntervalSeconds =
+              deleteReconciliationIntervalSeconds;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("DELETE RECONCILIATION INTERVAL SECONDS: "
+                + deleteReconciliationIntervalSeconds);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the time between scans for deleted items that were missed.
+   *
+   * @return the time in seconds, or {@code 0} if disabled
+   * @since 3.4
+   */
+  int getDeleteReconciliationIntervalSeconds() {
+    return this.deleteReconciliationIntervalSeconds;
+  }
+
+  /**
+   * Gets the reconciler that finds the deleted items that were missed,
+   * creating it the first time. The reconciler is kept here so that
+   * its scans continue across traversal managers.
+   *
+   * @return the reconciler, or {@code null} if it is disabled or the
+   *     document state store is not available
+   * @since 3.4
+   */
+  synchronized DeleteReconciler getDeleteReconciler() {
+    if (deleteReconciler == null && !deleteReconcilerFailed
+        && deleteReconciliationIntervalSeconds > 0) {
+      DocumentStateStore store = getDocumentStateStore();
+      if (store == null) {
+        LOGGER.warning("The deleteReconciliationIntervalSeconds property "
+            + "requires the documentStateDirectory property; "
+            + "missed deleted items will not be found");
+        deleteReconcilerFailed = true;
+      } else {
+        deleteReconciler = new DeleteReconciler(store,
+            deleteReconciliationIntervalSeconds * 1000L,
+            System.currentTimeMillis());
+      }
+    }
+    return deleteReconciler;
+  }
+
+  /**
+   * Sets the directory holding the state of each document when it
+   * was last fed: the ModifyDate, version number, content size, and
+   * hashes of the ACL and metadata. The store takes less than 50 bytes
+   * per document. The connector work directory, which is available as
+   * <code>${googleConnectorWorkDir}</code> in the connector
+   * configuration, is a good choice.
+   *
+   * @param documentStateDirectory the directory, or an empty string to
+   *     not record the document state
+   * @since 3.4
+   */
+  public void setDocumentStateDirectory(final String documentStateDirectory) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          LivelinkConnector.this.documentStateDirectory =
+              documentStateDirectory.trim();
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("DOCUMENT STATE DIRECTORY: "
+                + LivelinkConnector.this.documentStateDirectory);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the directory holding the fed document state.
+   *
+   * @return the directory, or an empty string if disabled
+   * @since 3.4
+   */
+  String getDocumentStateDirectory() {
+    return this.documentStateDirectory;
+  }
+
+  /**
+   * Sets whether to skip documents whose content and fed properties
+   * are unchanged since they were last fed. Many changes to the
+   * ModifyDate, such as reserving an item, do not change anything
+   * that is fed. The content is identified by its version number and
+   * size, and the properties are compared using hashes. This requires
+   * the documentStateDirectory property.
+   *
+   * @param skipUnchangedDocuments {@code true} to skip unchanged
+   *     documents, or {@code false} to feed every modified document
+   * @since 3.4
+   */
+  public void setSkipUnchangedDocuments(boolean skipUnchangedDocuments) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("SKIP UNCHANGED DOCUMENTS: " + skipUnchangedDocuments);
+    this.skipUnchangedDocuments = skipUnchangedDocuments;
+  }
+
+  /**
+   * Gets whether to skip documents that are unchanged since they were
+   * last fed.
+   *
+   * @return {@code true} to skip unchanged documents
+   * @since 3.4
+   */
+  boolean getSkipUnchangedDocuments() {
+    return skipUnchangedDocuments;
+  }
+
+  /**
+   * Sets whether to track the checkpoint after each document is
+   * delivered. If the Connector Manager abandons a batch that takes
+   * too long, the next batch resumes after the last delivered
+   * document, rather than at the start of the abandoned batch. If
+   * the documentStateDirectory property is set, the checkpoint is
+   * saved there, and is used after a restart.
+   *
+   * @param useDeliveredCheckpoints {@code true} to resume abandoned
+   *     batches after the last delivered document, or {@code false}
+   *     to repeat them
+   * @since 3.4
+   */
+  public void setUseDeliveredCheckpoints(boolean useDeliveredCheckpoints) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("USE DELIVERED CHECKPOINTS: " + useDeliveredCheckpoints);
+    this.useDeliveredCheckpoints = useDeliveredCheckpoints;
+  }
+
+  /**
+   * Gets the checkpoint after the last delivered document, creating
+   * it the first time.
+   *
+   * @return the delivered checkpoint, or {@code null} if it is disabled
+   * @since 3.4
+   */
+  synchronized DeliveredCheckpoint getDeliveredCheckpoint() {
+    if (deliveredCheckpoint == null && useDeliveredCheckpoints) {
+      if (documentStateDirectory == null
+          || documentStateDirectory.length() == 0) {
+        deliveredCheckpoint = new DeliveredCheckpoint();
+      } else {
+        File directory = new File(documentStateDirectory);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+          LOGGER.warning("Cannot create directory " + directory);
+          deliveredCheckpoint = new DeliveredCheckpoint();
+        } else {
+          deliveredCheckpoint = new DeliveredCheckpoint(
+              new File(directory, DeliveredCheckpoint.FILE_NAME));
+        }
+      }
+    }
+    return deliveredCheckpoint;
+  }
+
+  /**
+   * Gets the store of the fed document state, opening it the first
+   * time. The store is an optimization, so if it cannot be opened, a
+   * warning is logged and the traversal continues without it.
+   *
+   * @return the store, or {@code null} if it is disabled or could not
+   *     be opened
+   * @since 3.4
+   */
+  synchronized DocumentStateStore getDocumentStateStore() {
+    if (documentStateStore == null && !documentStateStoreFailed
+        && documentStateDirectory != null
+        && documentStateDirectory.length() > 0) {
+      try {
+        documentStateStore =
+            DocumentStateStore.open(new File(documentStateDirectory));
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING,
+            "Cannot open the document state store in "
+            + documentStateDirectory, e);
+        documentStateStoreFailed = true;
+      }
+    }
+    return documentStateStore;
+  }
+
+  /**
+   * Sets whether to read the ACL entries for each batch of documents
+   * from the DTreeACL and KUAF tables with bulk queries, rather than
+   * calling GetObjectRights for each document and looking up each
+   * user and group separately. This only applies if pushAcls is
+   * {@code true}.
+   *
+   * @param useBulkAclQueries {@code true} to use bulk queries, or
+   *     {@code false} to use the per-document LAPI calls
+   * @since 3.4
+   */
+  public void setUseBulkAclQueries(boolean useBulkAclQueries) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("USE BULK ACL QUERIES: " + useBulkAclQueries);
+    this.useBulkAclQueries = useBulkAclQueries;
+  }
+
+  /**
+   * Gets whether to read the ACL entries with bulk queries.
+   *
+   * @return {@code true} to use bulk queries
+   * @since 3.4
+   */
+  boolean getUseBulkAclQueries() {
+    return useBulkAclQueries;
+  }
+
+  /**
+   * Sets whether to read the category attribute values for each batch
+   * of documents from the LLAttrData table with bulk queries, rather
+   * than reading each category of each document with LAPI. The
+   * category definitions are read with LAPI once, and cached.
+   *
+   * @param useBulkCategoryQueries {@code true} to use bulk queries,
+   *     or {@code false} to use the per-document LAPI calls
+   * @since 3.4
+   */
+  public void setUseBulkCategoryQueries(boolean useBulkCategoryQueries) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("USE BULK CATEGORY QUERIES: " + useBulkCategoryQueries);
+    this.useBulkCategoryQueries = useBulkCategoryQueries;
+  }
+
+  /**
+   * Gets whether to read the category attributes with bulk queries.
+   *
+   * @return {@code true} to use bulk queries
+   * @since 3.4
+   */
+  boolean getUseBulkCategoryQueries() {
+    return useBulkCategoryQueries;
+  }
+
+  /**
+   * Gets the cached category definitions, creating the cache the
+   * first time.
+   *
+   * @return the category definition cache
+   * @since 3.4
+   */
+  synchronized CategoryDefinitionCache getCategoryDefinitionCache() {
+    if (categoryDefinitionCache == null) {
+      categoryDefinitionCache = new CategoryDefinitionCache();
+    }
+    return categoryDefinitionCache;
+  }
+
+  /**
+   * Sets whether to read the VersionInfo fields for the current
+   * versions of each batch of documents from the DVersData table with
+   * bulk queries, rather than calling GetVersionInfo for each
+   * document. The includedVersionInfo fields must be DVersData column
+   * names, or the bulk queries fail, and GetVersionInfo is used.
+   *
+   * @param useBulkVersionQueries {@code true} to use bulk queries, or
+   *     {@code false} to use the per-document LAPI calls
+   * @since 3.4
+   */
+  public void setUseBulkVersionQueries(boolean useBulkVersionQueries) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("USE BULK VERSION QUERIES: " + useBulkVersionQueries);
+    this.useBulkVersionQueries = useBulkVersionQueries;
+  }
+
+  /**
+   * Gets whether to read the VersionInfo with bulk queries.
+   *
+   * @return {@code true} to use bulk queries
+   * @since 3.4
+   */
+  boolean getUseBulkVersionQueries() {
+    return useBulkVersionQueries;
+  }
+
+  /**
+   * Sets the number of connector instances that traverse the same
+   * repository in cooperation. Each instance traverses the items, and
+   * the deleted items, whose DataID modulo the shard count is its
+   * shard index, and keeps its own checkpoint.
+   *
+   * @param shardCount the number of instances, or {@code 0} or
+   *     {@code 1} to traverse the whole repository
+   * @since 3.4
+   */
+  public void setShardCount(final int shardCount) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (shardCount < 0) {
+            throw new ConfigurationException(
+                "shardCount must not be negative.");
+          }
+          LivelinkConnector.this.shardCount = shardCount;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("SHARD COUNT: " + shardCount);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of connector instances sharing the repository.
+   *
+   * @return the number of instances
+   * @since 3.4
+   */
+  int getShardCount() {
+    return this.shardCount;
+  }
+
+  /**
+   * Sets the shard of the repository traversed by this instance,
+   * which must be less than the shard count.
+   *
+   * @param shardIndex the zero-based shard index
+   * @since 3.4
+   */
+  public void setShardIndex(final int shardIndex) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (shardIndex < 0) {
+            throw new ConfigurationException(
+                "shardIndex must not be negative.");
+          }
+          LivelinkConnector.this.shardIndex = shardIndex;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("SHARD INDEX: " + shardIndex);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the shard of the repository traversed by this instance.
+   *
+   * @return the zero-based shard index
+   * @since 3.4
+   */
+  int getShardIndex() {
+    return this.shardIndex;
+  }
+
   /**
    * Sets whether or not to use the DTreeAncestors table for hierarchy data.
    *
@@ -2247,6 +3094,10 @@ public class LivelinkConnector implements Connector {
     for (int i = 0; i < propertyValidators.size(); i++) {
       propertyValidators.get(i).validate();
     }
+    if (shardCount > 1 && shardIndex >= shardCount) {
+      throw new ConfigurationException(
+          "shardIndex must be less than shardCount.");
+    }
 
     if (!useHttpTunneling) {
       LOGGER.finer("DISABLING HTTP TUNNELING");
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.otex;
 
+import com.google.common.base.Predicate;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.Property;
@@ -148,6 +149,27 @@ class LivelinkDocument implements Document {
       addProperty(names[j], getValue(names[j], value));
   }
 
+  /**
+   * Computes a hash of the names and values of the selected
+   * properties, in the order they were added. The values are hashed
+   * using their string forms, so binary values should not be selected.
+   *
+   * @param names selects the property names to include
+   * @return the hash
+   */
+  int hashProperties(Predicate<String> names) {
+    int hash = 1;
+    for (Map.Entry<String, List<Value>> entry : properties.entrySet()) {
+      if (names.apply(entry.getKey())) {
+        hash = 31 * hash + entry.getKey().hashCode();
+        for (Value value : entry.getValue()) {
+          hash = 31 * hash + String.valueOf(value).hashCode();
+        }
+      }
+    }
+    return hash;
+  }
+
   /**
    * Creates a <code>Value</code> (of the appropriate type) from
    * a <code>ClientValue</code>. Complex <code>ClientValue</code>
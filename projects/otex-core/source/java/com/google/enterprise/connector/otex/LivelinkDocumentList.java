@@ -14,9 +14,9 @@
 
 package com.google.enterprise.connector.otex;
 
-import static java.util.Collections.unmodifiableSet;
-
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.primitives.Ints;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
@@ -33,16 +33,20 @@ import com.google.enterprise.connector.spi.SpiConstants.PrincipalType;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.Value;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,6 +70,16 @@ class LivelinkDocumentList implements DocumentList {
     "UserID", "GroupID", "AssignedTo", "CreatedBy", "ReservedBy",
     "LockedBy", "Owner" };
 
+  /** Selects the ACL properties for the document state. */
+  private static final Predicate<String> ACL_PROPERTIES =
+      Predicates.in(Arrays.asList(SpiConstants.PROPNAME_ACLUSERS,
+              SpiConstants.PROPNAME_ACLGROUPS));
+
+  /** Selects the ACL and content properties. */
+  private static final Predicate<String> NON_METADATA_PROPERTIES =
+      Predicates.or(ACL_PROPERTIES,
+          Predicates.equalTo(SpiConstants.PROPNAME_CONTENT));
+
   /** Date formatter used to construct checkpoint dates */
   private final LivelinkDateFormat dateFormat =
       LivelinkDateFormat.getInstance();
@@ -102,18 +116,6 @@ class LivelinkDocumentList implements DocumentList {
   /** The table of Livelink deleted data, one row per object */
   private final ClientValue delArray;
 
-  /** A reference to the delete cache held by LivelinkTraversalManager. */
-  private final AtomicReference<Set<Integer>> delCacheReference;
-
-  /** The previous batch of deletes. */
-  private final Set<Integer> prevDelCache;
-
-  /**
-   * The next batch of deletes, accumulated as the DocumentList is
-   * processed. This will be set on the cache reference in checkpoint().
-   */
-  private final Set<Integer> nextDelCache;
-
   /** The TraversalContext from TraversalContextAware Interface */
   private final TraversalContext traversalContext;
 
@@ -137,15 +139,105 @@ class LivelinkDocumentList implements DocumentList {
 
   private final IdentityUtils identityUtils;
 
+  /**
+   * Whether to skip the metadata that requires server calls for each
+   * document, in the first pass of a two-phase crawl.
+   */
+  private final boolean deferMetadata;
+
+  /**
+   * The metadata being collected in parallel for each row of the
+   * recArray, or null if the metadata is collected as each document
+   * is processed.
+   */
+  private final List<Future<MetadataFetcher.ObjectMetadata>> pendingMetadata;
+
+  /** The state of the fed documents, or null if it is not recorded. */
+  private final DocumentStateStore documentStateStore;
+
+  /** Whether to skip documents whose state has not changed. */
+  private final boolean skipUnchangedDocuments;
+
+  /**
+   * The states of the documents returned since the last checkpoint,
+   * keyed by DataID, or {@code null} for a deleted document. The
+   * states are recorded when the checkpoint is taken, after the
+   * Connector Manager has fed the documents.
+   */
+  private final Map<Integer, DocumentStateStore.State> pendingStates =
+      new LinkedHashMap<Integer, DocumentStateStore.State>();
+
+  /** The checkpoint after the last delivered document, or null. */
+  private final DeliveredCheckpoint deliveredCheckpoint;
+
+  /**
+   * The checkpoint after the last document returned, or null. It is
+   * recorded as delivered when the next document is requested.
+   */
+  private String returnedCheckpoint = null;
+
+  /** The time limit for this batch. */
+  private final BatchDeadline deadline;
+
+  /** The ACL entries read in bulk for this batch, or null. */
+  private final BulkAclLoader aclLoader;
+
+  /** The VersionInfo read in bulk for this batch, or null. */
+  private final BulkVersionLoader versionLoader;
+
+  /**
+   * Selects the metadata properties for the document state. The
+   * ModifyDate properties are not included, since the ModifyDate
+   * changes without any changes to the other properties.
+   */
+  private final Predicate<String> metadataProperties;
+
   /**
    * Constructor for non-trivial document set.  Iterate over a
    * RecArray of items returned from Livelink.
    */
   LivelinkDocumentList(LivelinkConnector connector, Client client,
       ContentHandler contentHandler, ClientValue recArray, Field[] fields,
-      ClientValue delArray, AtomicReference<Set<Integer>> delCacheReference,
-      TraversalContext traversalContext, Checkpoint checkpoint,
-      String currentUsername) throws RepositoryException {
+      ClientValue delArray, TraversalContext traversalContext,
+      Checkpoint checkpoint, String currentUsername)
+      throws RepositoryException {
+    this(connector, client, contentHandler, recArray, fields, delArray,
+        traversalContext, checkpoint, currentUsername, null);
+  }
+
+  /**
+   * Constructor for non-trivial document set that may collect the
+   * per-object metadata in parallel.
+   *
+   * @param metadataFetcher the fetcher to collect the metadata with, or
+   *     {@code null} to collect it as each document is processed
+   */
+  LivelinkDocumentList(LivelinkConnector connector, Client client,
+      ContentHandler contentHandler, ClientValue recArray, Field[] fields,
+      ClientValue delArray, TraversalContext traversalContext,
+      Checkpoint checkpoint, String currentUsername,
+      MetadataFetcher metadataFetcher)
+      throws RepositoryException {
+    this(connector, client, contentHandler, recArray, fields, delArray,
+        traversalContext, checkpoint, currentUsername, metadataFetcher,
+        new BatchDeadline(traversalContext, System.currentTimeMillis()));
+  }
+
+  /**
+   * Constructor for non-trivial document set that may collect the
+   * per-object metadata in parallel, and ends the batch early when it
+   * is likely to run out of time.
+   *
+   * @param metadataFetcher the fetcher to collect the metadata with, or
+   *     {@code null} to collect it as each document is processed
+   * @param deadline the time limit for the batch
+   */
+  LivelinkDocumentList(LivelinkConnector connector, Client client,
+      ContentHandler contentHandler, ClientValue recArray, Field[] fields,
+      ClientValue delArray, TraversalContext traversalContext,
+      Checkpoint checkpoint, String currentUsername,
+      MetadataFetcher metadataFetcher, BatchDeadline deadline)
+      throws RepositoryException {
     this.connector = connector;
     this.client = client;
     this.contentHandler = contentHandler;
@@ -153,13 +245,45 @@ class LivelinkDocumentList implements DocumentList {
     this.nameHandler = new UserNameHandler(client);
     this.recArray = recArray;
     this.delArray = delArray;
-    this.delCacheReference = delCacheReference;
-    this.prevDelCache = delCacheReference.get();
-    this.nextDelCache = new HashSet<Integer>();
     this.fields = fields;
     this.traversalContext = traversalContext;
     this.checkpoint = checkpoint;
+    this.deadline = deadline;
     this.identityUtils = new IdentityUtils(connector, client);
+    this.deferMetadata =
+        (checkpoint != null) && checkpoint.isMetadataDeferred();
+    this.documentStateStore = connector.getDocumentStateStore();
+    this.skipUnchangedDocuments =
+        documentStateStore != null && connector.getSkipUnchangedDocuments();
+    this.deliveredCheckpoint = connector.getDeliveredCheckpoint();
+    this.aclLoader = (connector.getPushAcls()
+        && connector.getUseBulkAclQueries() && !deferMetadata
+        && recArray != null && recArray.size() > 0)
+        ? getAclLoader() : null;
+    if (connector.getUseBulkCategoryQueries() && !deferMetadata
+        && recArray != null && recArray.size() > 0) {
+      categoryHandler.loadBatch(new SqlQueries(connector.isSqlServer()),
+          recArray, recArray.size());
+    }
+    this.versionLoader = (connector.getUseBulkVersionQueries()
+        && !deferMetadata && recArray != null && recArray.size() > 0)
+        ? getVersionLoader() : null;
+    // Start collecting the rest of the metadata, to overlap it with
+    // the public content query. The object rights and VersionInfo are
+    // only needed if the bulk queries were not used or failed.
+    this.pendingMetadata = (metadataFetcher == null) ? null
+        : metadataFetcher.fetch(recArray, aclLoader == null,
+            versionLoader == null);
+    List<String> modifyDateNames = new ArrayList<String>();
+    if (fields != null) {
+      for (Field field : fields) {
+        if (field.fieldName.equalsIgnoreCase("ModifyDate")) {
+          modifyDateNames.addAll(Arrays.asList(field.propertyNames));
+        }
+      }
+    }
+    this.metadataProperties = Predicates.not(Predicates.or(
+            NON_METADATA_PROPERTIES, Predicates.in(modifyDateNames)));
 
     if (contentHandler instanceof RefreshableContentHandler) {
       ((RefreshableContentHandler) contentHandler).refresh();
@@ -178,7 +302,27 @@ class LivelinkDocumentList implements DocumentList {
    */
   @Override
   public Document nextDocument() throws RepositoryException {
-    if (docIterator.hasNext()) {
+    // The Connector Manager asks for the next document after it has
+    // delivered the last one.
+    if (returnedCheckpoint != null) {
+      deliveredCheckpoint.setDelivered(returnedCheckpoint);
+      returnedCheckpoint = null;
+    }
+
+    while (docIterator.hasNext()) {
+      // End the batch early if the next document is likely to run
+      // past the time limit. The checkpoint is not advanced to the
+      // end, so the next batch starts with the remaining documents.
+      long startMillis = System.currentTimeMillis();
+      if (docsProcessed > 0 && !deadline.hasTimeForDocument(startMillis)) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("ENDING BATCH EARLY AFTER " + docsProcessed
+              + " DOCUMENTS; AVERAGE COST " + (long) deadline.getAverageMillis()
+              + " ms");
+        }
+        return null;
+      }
+
       // If processing a document throws an exception, we will try to
       // determine if the failure is transient (like server not
       // responding), or permanent (like the document is corrupt and
@@ -186,9 +330,18 @@ class LivelinkDocumentList implements DocumentList {
       // rollback the checkpoint to allow the failed document to be
       // retried later. In the case of a permanent failure for a
       // document, we want to simply skip it and go onto the next.
+      boolean skipped = false;
       try {
         Document doc = docIterator.nextDocument();
         docsProcessed++;
+        if (doc != null && docIterator.isUnchanged()) {
+          // Skip the document, but keep the checkpoint that was set.
+          skipped = true;
+          continue;
+        }
+        if (doc != null && deliveredCheckpoint != null) {
+          returnedCheckpoint = checkpoint.toString();
+        }
         return doc;
       } catch (LivelinkIOException e) {
         return handleTransientException(e);
@@ -218,6 +371,12 @@ class LivelinkDocumentList implements DocumentList {
         // document contains permanent failures, and skip over it.
         docsProcessed++;
         throw new RepositoryDocumentException(t);
+      } finally {
+        if (skipped) {
+          deadline.skipDocument(startMillis, System.currentTimeMillis());
+        } else {
+          deadline.endDocument(startMillis, System.currentTimeMillis());
+        }
       }
     }
 
@@ -249,10 +408,15 @@ class LivelinkDocumentList implements DocumentList {
    */
   @Override
   public String checkpoint() throws RepositoryException {
-    // If we are not caching deletes, do not create a cache. If we are
-    // caching deletes, do not reset the cache to empty.
-    if (connector.getUseIndexedDeleteQuery() && !nextDelCache.isEmpty()) {
-      delCacheReference.set(unmodifiableSet(nextDelCache));
+    // Do not collect metadata for documents we will not return.
+    if (pendingMetadata != null) {
+      for (Future<MetadataFetcher.ObjectMetadata> metadata : pendingMetadata) {
+        metadata.cancel(false);
+      }
+    }
+    if (documentStateStore != null) {
+      recordDocumentStates();
+      documentStateStore.flush();
     }
     String cp = checkpoint.toString();
     if (LOGGER.isLoggable(Level.FINE))
@@ -260,6 +424,105 @@ class LivelinkDocumentList implements DocumentList {
     return cp;
   }
 
+  /**
+   * Records the states of the documents returned since the last
+   * checkpoint in the document state store.
+   */
+  private void recordDocumentStates() {
+    for (Map.Entry<Integer, DocumentStateStore.State> entry
+             : pendingStates.entrySet()) {
+      int dataId = entry.getKey();
+      if (entry.getValue() == null) {
+        documentStateStore.remove(dataId);
+      } else {
+        try {
+          documentStateStore.put(dataId, entry.getValue());
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING,
+              "Cannot record the document state for ID " + dataId, e);
+        }
+      }
+    }
+    pendingStates.clear();
+  }
+
+  /**
+   * Reads the ACLs for the batch with bulk queries. A failed query is
+   * logged, and we fall back to GetObjectRights.
+   *
+   * @return the loader, or {@code null} if the query failed
+   */
+  private BulkAclLoader getAclLoader() {
+    try {
+      return new BulkAclLoader(client,
+          new SqlQueries(connector.isSqlServer()), recArray, recArray.size());
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.WARNING,
+          "Bulk ACL query failed; using GetObjectRights", e);
+      return null;
+    }
+  }
+
+  /**
+   * Reads the VersionInfo for the batch with bulk queries. A failed
+   * query, such as one with a configured field that is not a DVersData
+   * column, is logged, and we fall back to GetVersionInfo.
+   *
+   * @return the loader, or {@code null} if the query failed
+   */
+  private BulkVersionLoader getVersionLoader() {
+    try {
+      return new BulkVersionLoader(client,
+          new SqlQueries(connector.isSqlServer()),
+          connector.getVersionInfoKeys(), recArray, recArray.size());
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.WARNING,
+          "Bulk VersionInfo query failed; using GetVersionInfo", e);
+      return null;
+    }
+  }
+
+  /**
+   * Gets whether a row needs the VersionInfo, either for the
+   * configured VersionInfo properties, or for the file name extension
+   * in the display URL. This is shared with {@link MetadataFetcher},
+   * so that it fetches the VersionInfo exactly when we would.
+   *
+   * @param connector the connector configuration
+   * @param recArray the recarray of documents
+   * @param row the row of the document
+   */
+  static boolean needsVersionInfo(LivelinkConnector connector,
+      ClientValue recArray, int row) throws RepositoryException {
+    return hasVersionInfoProperties(connector, recArray, row)
+        || needsVersionFileName(recArray, row);
+  }
+
+  /**
+   * Gets whether the configured VersionInfo properties apply to a
+   * row. See the MimeType, Version and DataSize comments in
+   * collectContentProperty(). If DataSize is not defined, then the
+   * item has no versions.
+   */
+  private static boolean hasVersionInfoProperties(
+      LivelinkConnector connector, ClientValue recArray, int row)
+      throws RepositoryException {
+    return connector.getVersionInfoKeys() != null
+        && recArray.toValue(row, "GoogleDataSize").isDefined();
+  }
+
+  /**
+   * Gets whether the display URL file name needs the extension from
+   * the VersionInfo FileName. We're guessing here that if MimeType is
+   * non-null then there should be a content.
+   */
+  private static boolean needsVersionFileName(ClientValue recArray, int row)
+      throws RepositoryException {
+    return recArray.isDefined(row, "MimeType")
+        && recArray.isDefined(row, "Name")
+        && recArray.toString(row, "Name").lastIndexOf('.') <= 0;
+  }
+
   /**
    * If we have a Public Content User specified, some of the
    * documents in the repository may be available to the public.
@@ -352,6 +615,11 @@ class LivelinkDocumentList implements DocumentList {
     /** The size of the recArray. */
     private final int insSize;
 
+    /** The DataID, OwnerID, and SubType columns of the recArray. */
+    private final int[] insDataIds;
+    private final int[] insVolumeIds;
+    private final int[] insSubTypes;
+
     /** The current row of the delArray. */
     private int delRow;
 
@@ -376,21 +644,43 @@ class LivelinkDocumentList implements DocumentList {
     /** The VersionInfo of the current row, [fetch delayed until needed] */
     private ClientValue versionInfo;
 
+    /** The metadata collected in parallel for the current row, or null. */
+    private MetadataFetcher.ObjectMetadata metadata;
+
     /** The Document Properties associated with the current row. */
     private LivelinkDocument props;
 
+    /** The size of the content to fetch for the current row, or -1. */
+    private long contentSize;
+
+    /** Whether the current row is unchanged since it was last fed. */
+    private boolean unchanged;
+
     LivelinkDocumentListIterator() throws RepositoryException {
       this.delRow = 0;
       this.delSize = (delArray == null) ? 0 : delArray.size();
 
       this.insRow = 0;
       this.insSize = (recArray == null) ? 0 : recArray.size();
+      RecArrayColumns insColumns = new RecArrayColumns(recArray);
+      this.insDataIds = insColumns.getIntColumn("DataID");
+      this.insVolumeIds = insColumns.getIntColumn("OwnerID");
+      this.insSubTypes = insColumns.getIntColumn("SubType");
     }
 
     public boolean hasNext() {
       return (insRow < insSize) || (delRow < delSize);
     }
 
+    /**
+     * Gets whether the last inserted item returned by
+     * {@link #nextDocument} is unchanged since it was last fed, and
+     * should be skipped.
+     */
+    public boolean isUnchanged() {
+      return unchanged;
+    }
+
     public LivelinkDocument nextDocument() throws RepositoryException {
       if (!hasNext())
         return null;
@@ -402,6 +692,8 @@ class LivelinkDocumentList implements DocumentList {
       int dateComp = 0;
       objectInfo = null;
       versionInfo = null;
+      metadata = null;
+      unchanged = false;
 
       // Peek at the next item to insert,
       if (insRow < insSize) {
@@ -416,20 +708,30 @@ class LivelinkDocumentList implements DocumentList {
         dateComp = 1;
       }
 
-      // ... and the next item to delete.
+      // ... and the next item to delete, skipping the events that
+      // were already fed, and repeated deletes of the same item.
       while (delRow < delSize) {
         try {
           int delId = delArray.toInteger(delRow, "DataID");
-          nextDelCache.add(delId);
-          if (prevDelCache.contains(delId)) {
+          ClientValue eventId = delArray.toValue(delRow, "EventID");
+          if (checkpoint.hasFedDelete(eventId)) {
             LOGGER.log(Level.FINEST, "DUPLICATE DELETE FOR ID = {0,number,#}",
                 delId);
             delRow++;
+            continue;
+          }
+          delDate = dateFormat.parse(delArray.toString(delRow,
+                  "GoogleAuditDate"));
+          if (checkpoint.hasFedDelete(delDate, delId)) {
+            LOGGER.log(Level.FINEST, "REPEATED DELETE FOR ID = {0,number,#}",
+                delId);
+            checkpoint.setDeleteCheckpoint(delDate, eventId);
+            checkpoint.addFedDelete(delDate, eventId, delId);
+            delDate = null;
+            delRow++;
           } else {
             LOGGER.log(Level.FINEST, "UNPROCESSED DELETE FOR ID = {0,number,#}",
                 delId);
-            delDate = dateFormat.parse(delArray.toString(delRow,
-                    "GoogleAuditDate"));
             break;
           }
         } catch (RepositoryException e1) {
@@ -457,9 +759,19 @@ class LivelinkDocumentList implements DocumentList {
       if (dateComp <= 0) {
         try {
           // Return an Inserted Item.
-          objectId = recArray.toInteger(insRow, "DataID");
+          objectId = insDataIds[insRow];
           props = new LivelinkDocument(objectId, fields.length*2);
           collectInsertedObjectAttributes();
+          DocumentStateStore.State state = getDocumentState(insDate);
+          unchanged = skipUnchangedDocuments
+              && state.hasSameFingerprint(documentStateStore.get(objectId));
+          if (unchanged) {
+            LOGGER.log(Level.FINER, "UNCHANGED DOCUMENT ID = {0,number,#}",
+                objectId);
+          } else {
+            collectContent();
+          }
+          putDocumentState(state);
         } finally {
           // Establish the checkpoint for this row.
           checkpoint.setInsertCheckpoint(insDate, objectId);
@@ -471,6 +783,11 @@ class LivelinkDocumentList implements DocumentList {
           objectId = delArray.toInteger(delRow, "DataID");
           props = new LivelinkDocument(objectId, 3);
           collectDeletedObjectAttributes(delDate);
+          if (documentStateStore != null) {
+            pendingStates.put(objectId, null);
+          }
+          checkpoint.addFedDelete(delDate,
+              delArray.toValue(delRow, "EventID"), objectId);
         } finally {
           // Establish the checkpoint for this row.
           checkpoint.setDeleteCheckpoint(delDate,
@@ -500,18 +817,87 @@ class LivelinkDocumentList implements DocumentList {
           Value.getStringValue(ActionType.DELETE.toString()));
     }
 
+    /**
+     * Gets the state of the current inserted item.
+     *
+     * @return the state, or {@code null} if there is no document
+     *     state store
+     */
+    private DocumentStateStore.State getDocumentState(Date modifyDate)
+        throws RepositoryException {
+      if (documentStateStore == null) {
+        return null;
+      }
+      int versionNumber = recArray.isDefined(insRow, "VersionNum")
+          ? recArray.toInteger(insRow, "VersionNum") : 0;
+      long dataSize = recArray.isDefined(insRow, "GoogleDataSize")
+          ? recArray.toLong(insRow, "GoogleDataSize") : -1L;
+      return new DocumentStateStore.State(modifyDate.getTime(),
+          versionNumber, dataSize, props.hashProperties(ACL_PROPERTIES),
+          props.hashProperties(metadataProperties));
+    }
+
+    /**
+     * Saves the state of the current inserted item, if there is a
+     * document state store, to be recorded at the next checkpoint.
+     */
+    private void putDocumentState(DocumentStateStore.State state) {
+      if (documentStateStore != null) {
+        pendingStates.put(objectId, state);
+      }
+    }
+
     /** Collect the various properties for this row. */
     private void collectInsertedObjectAttributes() throws RepositoryException {
-      volumeId = recArray.toInteger(insRow, "OwnerID");
-      subType  = recArray.toInteger(insRow, "SubType");
+      volumeId = insVolumeIds[insRow];
+      subType  = insSubTypes[insRow];
       ownerId = recArray.toInteger(insRow, "UserID");
 
+      metadata = getMetadata();
+      if (metadata != null) {
+        objectInfo = metadata.objectInfo;
+        versionInfo = metadata.versionInfo;
+      }
+      if (versionInfo == null && versionLoader != null) {
+        versionInfo = versionLoader.getVersionInfo(objectId);
+      }
+
       collectRecArrayProperties();
-      collectObjectInfoProperties();
-      collectVersionProperties();
-      collectCategoryAttributes();
+      if (!deferMetadata) {
+        collectObjectInfoProperties();
+        collectVersionProperties();
+        collectCategoryAttributes();
+      }
       collectDerivedProperties();
-      collectAclProperties();
+      if (!deferMetadata) {
+        collectAclProperties();
+      }
+    }
+
+    /**
+     * Gets the metadata collected in parallel for the current row.
+     *
+     * @return the metadata, or {@code null} if the metadata was not
+     *     collected in parallel, or if collecting it failed, in which
+     *     case we fall back to collecting it as the document is processed
+     */
+    private MetadataFetcher.ObjectMetadata getMetadata()
+        throws RepositoryException {
+      if (pendingMetadata == null) {
+        return null;
+      }
+      try {
+        return pendingMetadata.get(insRow).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new LivelinkException(e, LOGGER);
+      } catch (ExecutionException e) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("FAILED TO FETCH METADATA FOR ID " + objectId + ": "
+              + e.getCause());
+        }
+        return null;
+      }
     }
 
     /** Collects the recarray-based properties. */
@@ -551,7 +937,8 @@ class LivelinkDocumentList implements DocumentList {
       collectContentProperty();
 
       // Add the ExtendedData as MetaData properties.
-      collectExtendedDataProperties();
+      if (!deferMetadata)
+        collectExtendedDataProperties();
 
       // DISPLAYURL
       String displayUrl = isPublic ?
@@ -572,6 +959,7 @@ class LivelinkDocumentList implements DocumentList {
      */
     private String getDownloadFileName() {
       String fileName = null;
+      boolean needsExtension;
 
       // If we have content, try to include a filename in the displayUrl.
       try {
@@ -581,6 +969,7 @@ class LivelinkDocumentList implements DocumentList {
           return null;
         if (recArray.isDefined(insRow, "Name"))
           fileName = recArray.toString(insRow, "Name");
+        needsExtension = needsVersionFileName(recArray, insRow);
       } catch (RepositoryException e) {
         return null;
       }
@@ -588,7 +977,7 @@ class LivelinkDocumentList implements DocumentList {
       // If the name has no extension, pull the filename extension off
       // of the VersionInfo FileName.
       // TODO: The Livelink code uses a mimetype-to-extension map to do this.
-      if (fileName != null && fileName.lastIndexOf('.') <= 0) {
+      if (needsExtension && !deferMetadata) {
         try {
           if (versionInfo == null)
             versionInfo = client.GetVersionInfo(volumeId, objectId, 0);
@@ -633,6 +1022,7 @@ class LivelinkDocumentList implements DocumentList {
      * content is generated.
      */
     private void collectContentProperty() throws RepositoryException {
+      contentSize = -1L;
       if (LOGGER.isLoggable(Level.FINER))
         LOGGER.finer("CONTENT WITH SUBTYPE = " + subType);
 
@@ -695,11 +1085,24 @@ class LivelinkDocumentList implements DocumentList {
       if (size <= 0)
         return;
 
-      // If we pass the gauntlet, create a content stream property and
-      // add it to the property map. The size parameter is an int, but
-      // it is only a hint, so cap the long value at Integer.MAX_VALUE.
+      // If we pass the gauntlet, the content is fetched by
+      // collectContent, after checking whether the item has changed.
+      contentSize = size;
+    }
+
+    /**
+     * Creates a content stream property for the content found by
+     * {@link #collectContentProperty}, if any, and adds it to the
+     * property map.
+     */
+    private void collectContent() throws RepositoryException {
+      if (contentSize <= 0)
+        return;
+
+      // The size parameter is an int, but it is only a hint, so cap
+      // the long value at Integer.MAX_VALUE.
       InputStream is = contentHandler.getInputStream(volumeId, objectId, 0,
-          Ints.saturatedCast(size));
+          Ints.saturatedCast(contentSize));
       Value contentValue = Value.getBinaryValue(is);
       props.addProperty(SpiConstants.PROPNAME_CONTENT, contentValue);
     }
@@ -792,16 +1195,10 @@ class LivelinkDocumentList implements DocumentList {
     private void collectVersionProperties() throws RepositoryException {
       // First check for a request for version info data.
       // By default, no versionInfo fields are specified.
-      String[] fields = connector.getVersionInfoKeys();
-      if (fields == null)
-        return;
-
-      // Make sure this item has versions. See the MimeType, Version and
-      // DataSize comments in collectContentProperty().  If DataSize is
-      // not defined, then the item has no versions.
-      ClientValue dataSize = recArray.toValue(insRow, "GoogleDataSize");
-      if (!dataSize.isDefined())
+      // Make sure this item has versions.
+      if (!hasVersionInfoProperties(connector, recArray, insRow))
         return;
+      String[] fields = connector.getVersionInfoKeys();
 
       if (versionInfo == null)
         versionInfo = client.GetVersionInfo(volumeId, objectId, 0);
@@ -875,20 +1272,22 @@ class LivelinkDocumentList implements DocumentList {
 
       LOGGER.log(Level.FINEST, "ACL ENTRIES FOR ID: {0,number,#}", objectId);
 
-      ClientValue ownerInfo = identityUtils.getUserOrGroupById(ownerId);
-      ClientValue objectRightsInfo = client.GetObjectRights(objectId);
-      for (int i = 0; i < objectRightsInfo.size(); i++) {
-        int userId = objectRightsInfo.toInteger(i, "RightID");
-        int userPermissions = objectRightsInfo.toInteger(i, "Permissions");
-        boolean canRead = ((userPermissions & Client.PERM_SEECONTENTS) 
-            == Client.PERM_SEECONTENTS);
-
-        if (LOGGER.isLoggable(Level.FINEST)) {
-          LOGGER.finest("ACL ENTRY: UserID " + userId + ", Permissions "
-              + userPermissions + ", SeeContents " + canRead);
+      ClientValue ownerInfo = getUserOrGroupById(ownerId);
+      List<BulkAclLoader.Right> rights =
+          (aclLoader == null) ? null : aclLoader.getRights(objectId);
+      if (rights != null) {
+        for (BulkAclLoader.Right right : rights) {
+          collectAclEntry(right.rightId, right.permissions, ownerInfo,
+              principalFactory);
         }
-        if (canRead) {
-          getPrincipal(userId, ownerInfo, principalFactory);
+      } else {
+        ClientValue objectRightsInfo =
+            (metadata == null || metadata.objectRights == null)
+            ? client.GetObjectRights(objectId) : metadata.objectRights;
+        for (int i = 0; i < objectRightsInfo.size(); i++) {
+          collectAclEntry(objectRightsInfo.toInteger(i, "RightID"),
+              objectRightsInfo.toInteger(i, "Permissions"), ownerInfo,
+              principalFactory);
         }
       }
       // Always add System Administration group since admins have bypass rights.
@@ -902,6 +1301,21 @@ class LivelinkDocumentList implements DocumentList {
           principalFactory.groupPrincipals);
     }
 
+    private void collectAclEntry(int userId, int userPermissions,
+        ClientValue ownerInfo, AclPrincipalFactory principalFactory)
+        throws RepositoryException {
+      boolean canRead = ((userPermissions & Client.PERM_SEECONTENTS) 
+          == Client.PERM_SEECONTENTS);
+
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("ACL ENTRY: UserID " + userId + ", Permissions "
+            + userPermissions + ", SeeContents " + canRead);
+      }
+      if (canRead) {
+        getPrincipal(userId, ownerInfo, principalFactory);
+      }
+    }
+
     private void getPrincipal(int userId, ClientValue ownerInfo,
         AclPrincipalFactory principalFactory) throws RepositoryException {
       if (userId < 0) {
@@ -920,8 +1334,8 @@ class LivelinkDocumentList implements DocumentList {
             break;
           case Client.RIGHT_GROUP:
             if (ownerInfo != null) {
-              ClientValue userInfo = identityUtils.getUserOrGroupById(
-                  ownerInfo.toInteger("GroupID"));
+              ClientValue userInfo =
+                  getUserOrGroupById(ownerInfo.toInteger("GroupID"));
               if (userInfo != null) {
                 identityUtils.getPrincipal(userInfo, principalFactory);
               }
@@ -932,13 +1346,30 @@ class LivelinkDocumentList implements DocumentList {
                 "Unexpected user or group ID: {0,number,#}", userId);
         }
       } else {
-        ClientValue userInfo = identityUtils.getUserOrGroupById(userId);
+        ClientValue userInfo = getUserOrGroupById(userId);
         if (userInfo != null) {
           identityUtils.getPrincipal(userInfo, principalFactory);
         }
       }
     }
 
+    /**
+     * Gets the user or group information, using the metadata collected
+     * in parallel or in bulk if it is available.
+     */
+    private ClientValue getUserOrGroupById(int userId)
+        throws RepositoryException {
+      if (metadata != null && metadata.userInfo.containsKey(userId)) {
+        return identityUtils.getUserOrGroupById(userId,
+            metadata.userInfo.get(userId));
+      } else if (aclLoader != null) {
+        return identityUtils.getUserOrGroupById(userId,
+            aclLoader.getUserInfo(userId));
+      } else {
+        return identityUtils.getUserOrGroupById(userId);
+      }
+    }
+
     private class AclPrincipalFactory
         implements IdentityUtils.PrincipalFactory<Value> {
       private final List<Value> userPrincipals = new ArrayList<Value>();
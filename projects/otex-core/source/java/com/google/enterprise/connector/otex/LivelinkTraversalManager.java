@@ -17,7 +17,9 @@ package com.google.enterprise.connector.otex;
 import static com.google.enterprise.connector.otex.SqlQueries.choice;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.DocumentList;
@@ -29,11 +31,24 @@ import com.google.enterprise.connector.spi.TraversalManager;
 import com.google.enterprise.connector.util.EmptyDocumentList;
 import com.google.enterprise.connector.util.TraversalTimer;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -96,6 +111,7 @@ class LivelinkTraversalManager
     // ListNodes requires the DataID and PermID columns to be
     // included here. This implementation requires DataID,
     // ModifyDate, MimeType, Name, SubType, OwnerID, and DataSize.
+    // VersionNum is used to identify the content in the document state.
     ArrayList<Field> list = new ArrayList<Field>();
 
     list.add(new Field("DataID", "ID", SpiConstants.PROPNAME_DOCID));
@@ -117,6 +133,7 @@ class LivelinkTraversalManager
     list.add(new Field("GoogleDataSize"));
 
     list.add(new Field("PermID"));
+    list.add(new Field("VersionNum"));
 
     // Make sure the alias prefix does not collide. This test is more
     // stringent than we need (we only use "alias4, alias5, etc., so
@@ -129,6 +146,22 @@ class LivelinkTraversalManager
     DEFAULT_FIELDS = list.toArray(new Field[0]);
   }
 
+  /**
+   * A ModifyDate later than any item, for results queries that are
+   * not bounded by the candidates.
+   */
+  private static final Date END_OF_TIME =
+      LivelinkDateFormat.getInstance().parse("9999-12-31 23:59:59");
+
+  /** The number of DataIDs read in each query of a reconciliation scan. */
+  private static final int RECONCILIATION_CHUNK_SIZE = 10000;
+
+  /**
+   * The most queries of a reconciliation scan to run in each batch, so
+   * that the scan does not hold up the traversal.
+   */
+  private static final int RECONCILIATION_CHUNKS_PER_BATCH = 3;
+
   /**
    * The WebNodes derived view to use with the full {@code selectList}
    * on Oracle. The cast is necessary or Livelink treats the
@@ -200,13 +233,109 @@ class LivelinkTraversalManager
   private TraversalContext traversalContext = null;
 
   /**
-   * A cache to filter duplicate deletes when useIndexedDeleteQuery = false.
-   * The cache holds the deletes from the most recently checkpointed batch.
-   * The held Set itself should be immutable. It will be replaced on each
-   * batch, but should not be modified in place.
+   * The content types seen in the results, mapped to whether the
+   * TraversalContext excludes them. The excluded types are filtered
+   * out of later results queries.
+   */
+  private final ConcurrentMap<String, Boolean> mimeTypes =
+      new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * The clients used to prefetch the next batch of candidates and
+   * results, or null if pipelined traversal is disabled. These are
+   * separate sessions from {@code traversalClient} and
+   * {@code sysadminClient}, so that the prefetch queries do not wait
+   * on the LAPI calls made while the current batch is processed.
+   */
+  private Client prefetchTraversalClient = null;
+  private Client prefetchSysadminClient = null;
+
+  /**
+   * The background thread used for prefetching, or null if pipelined
+   * traversal is disabled.
+   */
+  private ExecutorService prefetchExecutor = null;
+
+  /**
+   * The client used to run the deleted items query concurrently with
+   * the inserted items queries, or null to run them in sequence.
+   */
+  private Client deletesClient = null;
+
+  /** The thread used to query the deleted items, or null. */
+  private ExecutorService deletesExecutor = null;
+
+  /**
+   * The fetcher used to collect document metadata in parallel, or
+   * null to collect it as each document is processed.
+   */
+  private MetadataFetcher metadataFetcher = null;
+
+  /**
+   * The controller for the number of candidates in each query, or
+   * null to use the batch hint and a fixed escalation.
+   */
+  private final BatchSizer batchSizer;
+
+  /**
+   * The watcher used to skip traversals while there are no new audit
+   * events, or null to always run the traversal queries.
+   */
+  private final AuditWatcher auditWatcher;
+
+  /**
+   * The reconciler used to find deleted items that were missed, or
+   * null to only find deleted items from the audit events.
    */
-  private final AtomicReference<Set<Integer>> deletesCache =
-      new AtomicReference<Set<Integer>>(Collections.<Integer>emptySet());
+  private final DeleteReconciler deleteReconciler;
+
+  /**
+   * The index used to skip sparse regions of DTree, or null to
+   * advance through them one batch of candidates at a time.
+   */
+  private final DensityIndex densityIndex;
+
+  /**
+   * The sessions used to query the slices of a time-sliced initial
+   * traversal in parallel, or null to query each slice in turn.
+   */
+  private SessionPool slicePool = null;
+
+  /**
+   * The pending candidates and results for the time slices, keyed by
+   * the slice checkpoint they follow.
+   */
+  private final ConcurrentMap<String, Future<ClientValue[]>> sliceFetches =
+      new ConcurrentHashMap<String, Future<ClientValue[]>>();
+
+  /** When the current batch started, in milliseconds. */
+  private long batchStartMillis;
+
+  /** Whether the current batch held back any candidates. */
+  private boolean heldBack;
+
+  /** The pending prefetch of the next batch, if any. */
+  private final AtomicReference<Prefetch> prefetch =
+      new AtomicReference<Prefetch>();
+
+  /** A batch of candidates and results queried ahead of time. */
+  private static class Prefetch {
+    /** The insert checkpoint that the prefetched batch follows. */
+    final String insertCheckpoint;
+
+    /** The batch size used for the candidates query. */
+    final int batchsz;
+
+    /** The candidates and results, or null if there are no candidates. */
+    final Future<ClientValue[]> future;
+
+    Prefetch(String insertCheckpoint, int batchsz,
+        Future<ClientValue[]> future) {
+      this.insertCheckpoint = insertCheckpoint;
+      this.batchsz = batchsz;
+      this.future = future;
+    }
+  }
 
   LivelinkTraversalManager(LivelinkConnector connector,
       Client traversalClient, String traversalUsername, Client sysadminClient,
@@ -216,6 +345,32 @@ class LivelinkTraversalManager
     this.traversalClient = traversalClient;
     this.sysadminClient = sysadminClient;
     this.contentHandler = contentHandler;
+    this.batchSizer =
+        (connector.getUseAdaptiveBatchSize()) ? new BatchSizer() : null;
+    int auditWatcherMaxIdleSeconds = connector.getAuditWatcherMaxIdleSeconds();
+    this.auditWatcher = (auditWatcherMaxIdleSeconds > 0)
+        ? new AuditWatcher(auditWatcherMaxIdleSeconds * 1000L) : null;
+    this.deleteReconciler = connector.getDeleteReconciler();
+
+    // The density index is only useful if the candidates query does
+    // not already restrict the candidates to the included locations.
+    if (connector.getUseDensityIndex()
+        && !Strings.isNullOrEmpty(connector.getIncludedLocationNodes())
+        && !connector.getUseDTreeAncestorsFirst()) {
+      this.densityIndex = new DensityIndex(new DensityIndex.Loader() {
+          @Override
+          public ClientValue load(Date insertDate, int insertDataId,
+              int size) throws RepositoryException {
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.insertDate = insertDate;
+            checkpoint.insertDataId = insertDataId;
+            return getCandidates(checkpoint, size,
+                LivelinkTraversalManager.this.sysadminClient, true);
+          }
+        });
+    } else {
+      this.densityIndex = null;
+    }
 
     this.isSqlServer = connector.isSqlServer();
     this.sqlQueries = new SqlQueries(this.isSqlServer);
@@ -246,6 +401,67 @@ class LivelinkTraversalManager
     }
   }
 
+  /**
+   * Sets the sessions used to prefetch the next batch.
+   *
+   * @param prefetchTraversalClient a second session for the traversal
+   *     user, or {@code null} to disable prefetching
+   * @param prefetchSysadminClient a second session for the system
+   *     administrator, which may be the same as
+   *     {@code prefetchTraversalClient}
+   */
+  void setPrefetchClients(Client prefetchTraversalClient,
+      Client prefetchSysadminClient) {
+    this.prefetchTraversalClient = prefetchTraversalClient;
+    this.prefetchSysadminClient = prefetchSysadminClient;
+    this.prefetchExecutor = (prefetchTraversalClient == null)
+        ? null : newExecutor("LivelinkPrefetch-%d");
+  }
+
+  /**
+   * Sets the session used to query the deleted items concurrently.
+   *
+   * @param deletesClient a separate session for the system
+   *     administrator, or {@code null} to query the deleted items in
+   *     sequence with the inserted items
+   */
+  void setDeletesClient(Client deletesClient) {
+    this.deletesClient = deletesClient;
+    this.deletesExecutor = (deletesClient == null)
+        ? null : newExecutor("LivelinkDeletes-%d");
+  }
+
+  /**
+   * Sets the fetcher used to collect document metadata in parallel.
+   *
+   * @param metadataFetcher the fetcher, or {@code null} to collect the
+   *     metadata as each document is processed
+   */
+  void setMetadataFetcher(MetadataFetcher metadataFetcher) {
+    this.metadataFetcher = metadataFetcher;
+  }
+
+  /**
+   * Sets the sessions used to query the slices of a time-sliced
+   * initial traversal in parallel.
+   *
+   * @param slicePool the sessions, or {@code null} to query each slice
+   *     when it is traversed
+   */
+  void setSlicePool(SessionPool slicePool) {
+    this.slicePool = slicePool;
+  }
+
+  /**
+   * Gets a single thread executor. The thread times out when idle, so
+   * an abandoned traversal manager does not leak it.
+   */
+  private static ExecutorService newExecutor(String nameFormat) {
+    return new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat(nameFormat).build());
+  }
+
   /**
    * Gets the startDate checkpoint.  We attempt to forge an initial
    * checkpoint based upon information gleaned from any startDate or
@@ -258,7 +474,7 @@ class LivelinkTraversalManager
    * <code>ListNodes</code> but does not and cannot select either
    * DataID or PermID.
    */
-  private String getStartCheckpoint() {
+  private String getStartCheckpoint() throws RepositoryException {
     // Checkpoint we are forging.
     Checkpoint checkpoint = new Checkpoint();
 
@@ -269,11 +485,41 @@ class LivelinkTraversalManager
     if (startDate != null)
       checkpoint.setInsertCheckpoint(startDate, 0);
 
+    // Split the initial traversal into time slices, which are
+    // traversed in turn, and queried in parallel if we have the
+    // sessions for it.
+    int initialCrawlSlices = connector.getInitialCrawlSlices();
+    if (initialCrawlSlices > 1) {
+      if (startDate == null) {
+        LOGGER.warning("The initial traversal cannot be split into time "
+            + "slices without a start date or items to index.");
+      } else {
+        checkpoint.splitInsertRange(new Date(), initialCrawlSlices);
+      }
+    }
+
     // We don't care about any existing Delete events in the audit
     // logs, since we're just starting the traversal.
     if (deleteSupported)
       forgeInitialDeleteCheckpoint(checkpoint);
 
+    // Record the location nodes, to detect changes to them later.
+    if (connector.getTrackScopeChanges()) {
+      checkpoint.setScope(
+          Strings.nullToEmpty(connector.getIncludedLocationNodes()),
+          Strings.nullToEmpty(connector.getExcludedLocationNodes()));
+    }
+
+    // The enrichment pass of a two-phase crawl starts where the first
+    // pass does.
+    if (connector.getUseTwoPhaseCrawl())
+      checkpoint.startTwoPhase();
+
+    // The audit events that occur during the initial traversal are
+    // traversed after it, so start at the last one.
+    if (isAuditTraversal())
+      forgeInitialAuditCheckpoint(checkpoint);
+
     String startCheckpoint = checkpoint.toString();
     if (LOGGER.isLoggable(Level.FINE))
       LOGGER.fine("START CHECKPOINT: " + startCheckpoint);
@@ -307,6 +553,23 @@ class LivelinkTraversalManager
     }
   }
 
+  /**
+   * Forge an audit checkpoint from the last event in the audit log.
+   * Unlike the delete checkpoint, we cannot fall back to the current
+   * time, because that could skip events, so errors are thrown.
+   */
+  private void forgeInitialAuditCheckpoint(Checkpoint checkpoint)
+      throws RepositoryException {
+    ClientValue results = getLastAuditEvent();
+    if (results.size() > 0) {
+      checkpoint.setAuditCheckpoint(
+          dateFormat.parse(results.toString(0, "GoogleAuditDate")),
+          results.toValue(0, "EventID"));
+    } else {
+      checkpoint.setAuditCheckpoint(new Date(0L), null);
+    }
+  }
+
   /**
    * A separate method for testability, because the caller handles all
    * exceptions, making it hard to test the query for correctness.
@@ -327,7 +590,8 @@ class LivelinkTraversalManager
    * including the starting nodes themselves, from among the candidates.
    *
    * @param startNodes a comma-separated string of object IDs
-   * @param candidatesList a comma-separated string of candidate object IDs
+   * @param candidatesCondition a SQL condition matching the candidate
+   *     object IDs
    * @return a SQL conditional expression string
    */
   /*
@@ -335,7 +599,7 @@ class LivelinkTraversalManager
    *
    *    DataID in (select connect_by_root DataID DataID
    *        from DTree where DataID in (<ancestorNodes>)
-   *        start with DataID in (<candidatesList>)
+   *        start with <candidatesCondition>
    *        connect by DataID = prior ParentID)
    *
    * This failed, however, at a customer site, for unknown reasons.
@@ -343,11 +607,12 @@ class LivelinkTraversalManager
    * "with ... as (select ...) select ...", is not possible due to the
    * ListNodes "select {columns} from {view} a where {query}" format.
    */
-  private String getDescendants(String startNodes, String candidatesList) {
+  private String getDescendants(String startNodes,
+      String candidatesCondition) {
     String ancestorNodes = Genealogist.getAncestorNodes(startNodes);
     return sqlQueries.getWhere(null,
         "LivelinkTraversalManager.getDescendants",
-        startNodes, candidatesList, ancestorNodes);
+        startNodes, candidatesCondition, ancestorNodes);
   }
 
   @VisibleForTesting
@@ -406,6 +671,23 @@ class LivelinkTraversalManager
           (startCheckpoint == null ? "" : " from " + startCheckpoint) +
           ".");
     }
+
+    // A restarted traversal does not resume an abandoned batch.
+    DeliveredCheckpoint deliveredCheckpoint =
+        connector.getDeliveredCheckpoint();
+    if (deliveredCheckpoint != null) {
+      deliveredCheckpoint.clear();
+    }
+
+    // Every document is fed again, so forget the fed document state.
+    DocumentStateStore documentStateStore = connector.getDocumentStateStore();
+    if (documentStateStore != null) {
+      try {
+        documentStateStore.clear();
+      } catch (IOException e) {
+        throw new LivelinkException(e, LOGGER);
+      }
+    }
     return listNodes(startCheckpoint);
   }
 
@@ -427,13 +709,69 @@ class LivelinkTraversalManager
     // delay.
     traversalClient.GetCurrentUserID();
 
-    return listNodes(checkpoint);
+    if (auditWatcher == null) {
+      return listNodes(checkpoint);
+    }
+
+    // Skip the traversal if nothing has been audited since the last
+    // traversal that found no changes, unless there is work to do that
+    // does not depend on new audit events.
+    String lastEventId = getLastAuditEventId();
+    if (lastEventId != null && !hasPendingWork(checkpoint)
+        && auditWatcher.isQuiet(lastEventId, System.currentTimeMillis())) {
+      LOGGER.fine("RESULTSET: no new audit events.");
+      return null;
+    }
+    auditWatcher.setBusy();
+    DocumentList list = listNodes(checkpoint);
+    if (list == null && lastEventId != null && !hasPendingWork(checkpoint)) {
+      auditWatcher.setIdle(lastEventId, System.currentTimeMillis());
+    }
+    return list;
+  }
+
+  /**
+   * Gets whether the traversal has work to do even if nothing new has
+   * been audited: candidates held back by the quiet period, a pending
+   * enrichment pass or scope change, or missed deleted items to find
+   * or feed.
+   *
+   * @param checkpointStr the checkpoint string
+   */
+  private boolean hasPendingWork(String checkpointStr)
+      throws RepositoryException {
+    if (heldBack) {
+      return true;
+    }
+    if (deleteReconciler != null
+        && (deleteReconciler.getPendingDeletes(1).length > 0
+            || deleteReconciler.isScanDue(System.currentTimeMillis()))) {
+      return true;
+    }
+    return new Checkpoint(checkpointStr).hasSideWork();
+  }
+
+  /**
+   * Gets the EventID of the last audit event, as a string.
+   *
+   * @return the EventID, or null if it is not available
+   */
+  private String getLastAuditEventId() {
+    try {
+      ClientValue results = getLastAuditEvent();
+      return (results.size() > 0) ? results.toString(0, "EventID") : null;
+    } catch (RepositoryException e) {
+      LOGGER.warning("Error checking for new audit events: "
+          + e.getMessage());
+      return null;
+    }
   }
 
   /** {@inheritDoc} */
   @Override
   public void setTraversalContext(TraversalContext traversalContext) {
     this.traversalContext = traversalContext;
+    mimeTypes.clear();
   }
 
   /**
@@ -500,6 +838,24 @@ class LivelinkTraversalManager
    */
   private DocumentList listNodes(String checkpointStr)
       throws RepositoryException {
+    batchStartMillis = System.currentTimeMillis();
+    heldBack = false;
+
+    // Every part of the batch shares the time limit.
+    TraversalTimer timer = new TraversalTimer(traversalContext);
+
+    // If the last batch from this checkpoint was abandoned, resume
+    // after the last document it delivered.
+    boolean resumed = false;
+    DeliveredCheckpoint deliveredCheckpoint =
+        connector.getDeliveredCheckpoint();
+    if (deliveredCheckpoint != null) {
+      String startCheckpointStr = deliveredCheckpoint.startBatch(checkpointStr);
+      resumed = startCheckpointStr != null
+          && !startCheckpointStr.equals(checkpointStr);
+      checkpointStr = startCheckpointStr;
+    }
+
     Checkpoint checkpoint = new Checkpoint(checkpointStr);
     int batchsz = batchSize;
 
@@ -509,35 +865,133 @@ class LivelinkTraversalManager
       forgeInitialDeleteCheckpoint(checkpoint);
     }
 
+    // Likewise, forge an audit checkpoint if we need one. Once the
+    // initial traversal is done, the audit events drive the traversal.
+    if (isAuditTraversal() && checkpoint.auditDate == null) {
+      forgeInitialAuditCheckpoint(checkpoint);
+    }
+
+    // If the location nodes have changed, traverse the differences
+    // first, without disturbing the rest of the checkpoint.
+    if (connector.getTrackScopeChanges()) {
+      updateScope(checkpoint);
+      DocumentList list = listScopeChange(checkpoint);
+      if (list != null) {
+        return list;
+      }
+    }
+
+    // Delete the missed deleted items, if any have been found.
+    if (deleteReconciler != null) {
+      DocumentList list = listReconciledDeletes(checkpoint, timer);
+      if (list != null) {
+        return list;
+      }
+
+      // The scan may have used up the time for this batch.
+      if (!timer.isTicking()) {
+        return new EmptyDocumentList(checkpoint.toString());
+      }
+    }
+
+    if (isAuditTraversal()) {
+      if (checkpoint.auditActive) {
+        return listAuditEvents(checkpoint, timer);
+      }
+    }
+
+    // If we are far behind, traverse the recent changes in a head
+    // slice that takes turns with the backfill.
+    int freshnessLaneHours = connector.getFreshnessLaneHours();
+    if (freshnessLaneHours > 0 && !checkpoint.isSliced()) {
+      Date now = new Date();
+      if (checkpoint.insertDate == null || now.getTime()
+          - checkpoint.insertDate.getTime() > freshnessLaneHours * 3600000L) {
+        if (LOGGER.isLoggable(Level.INFO))
+          LOGGER.info("STARTING FRESHNESS LANE AT " + now);
+        checkpoint.splitHead(now);
+      }
+    }
+
+    // Each batch of a time-sliced traversal works on the next slice.
+    // A resumed batch already has the slice of the abandoned batch.
+    if (!resumed) {
+      checkpoint.rotateSlices();
+    }
+
     // If our available content appears to be sparsely distributed
     // across the repository, we want to give ourself a chance to
     // accelerate through the sparse regions, grabbing larger sets
     // of candidates looking for something applicable.  However,
     // we cannot do this indefinitely or we will run afoul of the
     // Connector Manager's thread timeout.
-    TraversalTimer timer = new TraversalTimer(traversalContext);
+    long deadline = getDeadline();
     while (timer.isTicking()) {
-      ClientValue candidates = getCandidates(checkpoint, batchsz);
-      ClientValue deletes = getDeletes(checkpoint, batchsz);
+      int candidatesSize = (batchSizer == null) ? batchsz
+          : batchSizer.getCandidatesSize(batchSize,
+              getRemainingMillis(deadline));
+
+      // The deletes query is independent of the inserts queries, so
+      // start it first, and overlap it with the candidates and results
+      // queries if we can.
+      Future<ClientValue> pendingDeletes = startDeletes(checkpoint, batchsz);
+      long startMillis = System.currentTimeMillis();
+      ClientValue[] prefetched = (checkpoint.isSliced())
+          ? takeSliceFetch(checkpoint)
+          : takePrefetch(checkpoint, candidatesSize);
+      startSliceFetches(checkpoint);
+      ClientValue candidates = (prefetched == null)
+          ? getCandidates(checkpoint, candidatesSize) : prefetched[0];
       ClientValue results = null;
 
-      int numInserts = (candidates == null) ? 0 : candidates.size();
-      int numDeletes = (deletes == null) ? 0 : deletes.size();
+      int numCandidates = countCandidates(candidates, checkpoint);
+      int numInserts = 0;
 
-      if ((numInserts + numDeletes) == 0) {
-        if (checkpoint.hasChanged()) {
-          break;      // Force a new checkpoint.
-        } else {
-          LOGGER.fine("RESULTSET: no rows.");
-          return null;  // No new documents available.
+      // When a time slice runs out of candidates, move on to the next
+      // one. The deletes are queried again with the new slice.
+      if (numCandidates == 0 && checkpoint.nextSlice()) {
+        if (pendingDeletes != null) {
+          pendingDeletes.cancel(false);
+        }
+        continue;
+      }
+
+      // When the first pass of a two-phase crawl has caught up, and
+      // whenever there are no new changes after that, the enrichment
+      // pass takes a turn. It is done when it catches up to the end
+      // of the first pass.
+      if (numCandidates == 0) {
+        boolean isEnrichmentTurn = checkpoint.isEnrichmentTurn();
+        if (isEnrichmentTurn) {
+          checkpoint.finishEnrichment();
+        }
+        if (isEnrichmentTurn || checkpoint.startEnrichmentTurn()) {
+          if (pendingDeletes != null) {
+            pendingDeletes.cancel(false);
+          }
+          continue;
         }
       }
 
+      // When the initial traversal catches up, switch to the audit
+      // events.
+      if (numCandidates == 0 && isAuditTraversal()) {
+        if (pendingDeletes != null) {
+          pendingDeletes.cancel(false);
+        }
+        if (LOGGER.isLoggable(Level.INFO))
+          LOGGER.info("INITIAL TRAVERSAL DONE; TRAVERSING AUDIT EVENTS.");
+        checkpoint.activateAudit();
+        return listAuditEvents(checkpoint, timer);
+      }
+
       // Apply the inclusion, exclusions, and permissions to the
       // candidates.
-      if (numInserts > 0) {
+      Date nextInsertDate = checkpoint.insertDate;
+      int nextInsertDataId = checkpoint.insertDataId;
+      if (numCandidates > 0) {
         if (LOGGER.isLoggable(Level.FINE))
-          LOGGER.fine("CANDIDATES SET: " + numInserts + " rows.");
+          LOGGER.fine("CANDIDATES SET: " + numCandidates + " rows.");
 
         // Check for bad results from the candidates query.
         checkCandidatesTimeWarp(candidates, checkpoint);
@@ -545,38 +999,67 @@ class LivelinkTraversalManager
         // Remember the last insert candidate, so we may advance
         // past all the candidates for the next batch.
         Date highestModifyDate =
-            candidates.toDate(numInserts - 1, "ModifyDate");
-        checkpoint.setAdvanceCheckpoint(highestModifyDate,
-            candidates.toInteger(numInserts - 1, "DataID"));
-
-        StringBuilder buffer = new StringBuilder();
-        for (int i = 0; i < numInserts; i++) {
-          buffer.append(candidates.toInteger(i, "DataID"));
-          buffer.append(',');
+            candidates.toDate(numCandidates - 1, "ModifyDate");
+        nextInsertDate = highestModifyDate;
+        nextInsertDataId = candidates.toInteger(numCandidates - 1, "DataID");
+        checkpoint.setAdvanceCheckpoint(nextInsertDate, nextInsertDataId);
+
+        if (prefetched == null) {
+          results = getResults(getCandidateIds(candidates, numCandidates),
+              highestModifyDate);
+        } else {
+          results = prefetched[1];
         }
-        buffer.deleteCharAt(buffer.length() - 1);
-        results = getResults(buffer.toString(), highestModifyDate);
         numInserts = (results == null) ? 0 : results.size();
       }
+      if (batchSizer != null) {
+        // We don't know how long the prefetched queries took.
+        batchSizer.update(numCandidates, numInserts, (prefetched == null)
+            ? System.currentTimeMillis() - startMillis : -1L);
+      }
+
+      ClientValue deletes = getDeletes(pendingDeletes, checkpoint, batchsz);
+      int numDeletes = (deletes == null) ? 0 : deletes.size();
+
+      if ((numCandidates + numDeletes) == 0) {
+        if (checkpoint.hasChanged()) {
+          break;      // Force a new checkpoint.
+        } else {
+          LOGGER.fine("RESULTSET: no rows.");
+          return null;  // No new documents available.
+        }
+      }
 
       if ((numInserts + numDeletes) > 0) {
         if (LOGGER.isLoggable(Level.FINE)) {
           LOGGER.fine("RESULTSET: " + numInserts + " rows.  " +
               "DELETESET: " + numDeletes + " rows.");
         }
+        // The next batch starts at the insert checkpoint, not at the
+        // enrichment cursor.
+        if (!checkpoint.isTurn()) {
+          startNextFetch(checkpoint, nextInsertDate, nextInsertDataId);
+        }
         return new LivelinkDocumentList(connector, traversalClient,
-            contentHandler, results, fields, deletes, deletesCache,
-            traversalContext, checkpoint, currentUsername);
+            contentHandler, results, fields, deletes, traversalContext,
+            checkpoint, currentUsername,
+            (checkpoint.isMetadataDeferred()) ? null : metadataFetcher,
+            new BatchDeadline(traversalContext, batchStartMillis));
       }
 
       // If nothing is passing our filter, we probably have a
       // sparse database.  Grab larger candidate sets, hoping
-      // to run into anything interesting.
-      batchsz = Math.min(1000, batchsz * 10);
+      // to run into anything interesting. The BatchSizer, if we
+      // have one, has already adjusted to the empty results.
+      batchsz = BatchSizer.getSparseCandidatesSize(batchsz);
 
       // Advance the checkpoint to the end of this batch of
-      // candidates and grab the next batch.
+      // candidates and grab the next batch. If we know where the next
+      // included item is, skip straight to it.
       checkpoint.advanceToEnd();
+      if (densityIndex != null) {
+        densityIndex.skipAhead(checkpoint);
+      }
       if (LOGGER.isLoggable(Level.FINER))
         LOGGER.finer("SKIPPING PAST " + checkpoint.toString());
     }
@@ -585,10 +1068,654 @@ class LivelinkTraversalManager
     // passed the restrictions.  However, there are still more candidates
     // to consider.  Indicate to the Connector Manager that this batch
     // has no documents, but to reschedule us immediately to keep looking.
+    LOGGER.fine("RESULTSET: 0 rows, so far.");
+    if (!checkpoint.isTurn()) {
+      startNextFetch(checkpoint, checkpoint.insertDate,
+          checkpoint.insertDataId);
+    }
+    return new EmptyDocumentList(checkpoint.toString());
+  }
+
+  /**
+   * Compares the location nodes in the checkpoint to the configured
+   * ones, and starts the side traversals for any differences.
+   */
+  private void updateScope(Checkpoint checkpoint) {
+    String included = Strings.nullToEmpty(connector.getIncludedLocationNodes());
+    String excluded = Strings.nullToEmpty(connector.getExcludedLocationNodes());
+    String oldIncluded = checkpoint.getScopeIncluded();
+    String oldExcluded = checkpoint.getScopeExcluded();
+    if (oldIncluded == null) {
+      checkpoint.setScope(included, excluded);
+      return;
+    }
+    if (included.equals(oldIncluded) && excluded.equals(oldExcluded)) {
+      return;
+    }
+
+    Set<String> includedSet = toNodeSet(included);
+    Set<String> excludedSet = toNodeSet(excluded);
+    Set<String> oldIncludedSet = toNodeSet(oldIncluded);
+    Set<String> oldExcludedSet = toNodeSet(oldExcluded);
+
+    // Newly included nodes, and nodes that are no longer excluded.
+    Set<String> added = new LinkedHashSet<String>(includedSet);
+    added.removeAll(oldIncludedSet);
+    for (String node : oldExcludedSet) {
+      if (!excludedSet.contains(node))
+        added.add(node);
+    }
+
+    // Newly excluded nodes, and nodes that are no longer included.
+    Set<String> removed = new LinkedHashSet<String>(excludedSet);
+    removed.removeAll(oldExcludedSet);
+    for (String node : oldIncludedSet) {
+      if (!includedSet.contains(node))
+        removed.add(node);
+    }
+
+    String addedNodes;
+    if (includedSet.isEmpty() && !oldIncludedSet.isEmpty()) {
+      // Everything is newly included.
+      addedNodes = "";
+    } else {
+      addedNodes = (added.isEmpty()) ? null : Joiner.on(',').join(added);
+    }
+    if (oldIncludedSet.isEmpty() && !includedSet.isEmpty()) {
+      LOGGER.warning("The items outside of the new included location "
+          + "nodes will not be deleted.");
+    }
+
+    // The insert checkpoint picks up the items after it. If it is
+    // split into time slices or driven by audit events, we cannot
+    // tell where that is, so go up to the present.
+    Date addedEndDate;
+    if (checkpoint.isSliced() || checkpoint.auditActive) {
+      addedEndDate = new Date();
+    } else if (checkpoint.insertDate != null) {
+      addedEndDate = new Date(checkpoint.insertDate.getTime() + 1000L);
+    } else {
+      addedNodes = null;
+      addedEndDate = null;
+    }
+
+    if (LOGGER.isLoggable(Level.INFO)) {
+      LOGGER.info("LOCATION NODES CHANGED: added nodes = " + addedNodes
+          + "; removed nodes = " + removed);
+    }
+    checkpoint.startScopeChange(addedNodes, addedEndDate,
+        (removed.isEmpty()) ? null : Joiner.on(',').join(removed));
+    checkpoint.setScope(included, excluded);
+  }
+
+  private static Set<String> toNodeSet(String nodes) {
+    Set<String> nodeSet = new LinkedHashSet<String>();
+    for (String node : nodes.split(",")) {
+      if (node.length() > 0)
+        nodeSet.add(node);
+    }
+    return nodeSet;
+  }
+
+  /**
+   * Gets the next batch of the side traversals for a change to the
+   * location nodes. The deletions are done before the additions.
+   *
+   * @return a batch of results, or null if the side traversals are done
+   */
+  private DocumentList listScopeChange(Checkpoint checkpoint)
+      throws RepositoryException {
+    // Delete the items in the newly excluded nodes, unless they are
+    // still included some other way.
+    String removedNodes = checkpoint.getScopeRemovedNodes();
+    if (removedNodes != null) {
+      ClientValue candidates = getScopeRemovals(removedNodes,
+          checkpoint.getScopeRemovedDataId(), batchSize);
+      int numCandidates = (candidates == null) ? 0 : candidates.size();
+      if (numCandidates == 0) {
+        checkpoint.setScopeRemovedDataId(0);
+      } else {
+        Set<Integer> included = new HashSet<Integer>();
+        ClientValue results = getResults(
+            getCandidateIds(candidates, numCandidates), END_OF_TIME);
+        for (int i = 0; results != null && i < results.size(); i++) {
+          included.add(results.toInteger(i, "DataID"));
+        }
+        List<Integer> dataIds = new ArrayList<Integer>();
+        for (int i = 0; i < numCandidates; i++) {
+          int dataId = candidates.toInteger(i, "DataID");
+          if (!included.contains(dataId))
+            dataIds.add(dataId);
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("SCOPE DELETIONS: " + dataIds.size() + " of "
+              + numCandidates + " rows.");
+        }
+        return new ScopeDeleteDocumentList(
+            connector.getDocumentStateStore(), checkpoint, dataIds,
+            candidates.toInteger(numCandidates - 1, "DataID"));
+      }
+    }
+
+    // Traverse the items in the newly included nodes, up to the end
+    // of the side traversal.
+    String addedNodes = checkpoint.startScopeTurn();
+    if (addedNodes != null) {
+      ClientValue candidates = getCandidates(checkpoint, batchSize,
+          sysadminClient, (addedNodes.length() == 0) ? null : addedNodes);
+      int numCandidates = countCandidates(candidates, checkpoint);
+      if (numCandidates == 0) {
+        checkpoint.finishScopeTurn();
+      } else {
+        Date highestModifyDate =
+            candidates.toDate(numCandidates - 1, "ModifyDate");
+        checkpoint.setAdvanceCheckpoint(highestModifyDate,
+            candidates.toInteger(numCandidates - 1, "DataID"));
+        ClientValue results = getResults(
+            getCandidateIds(candidates, numCandidates), highestModifyDate);
+        int numResults = (results == null) ? 0 : results.size();
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("SCOPE ADDITIONS: " + numResults + " of "
+              + numCandidates + " rows.");
+        }
+        if (numResults > 0) {
+          return new LivelinkDocumentList(connector, traversalClient,
+              contentHandler, results, fields, null, traversalContext,
+              checkpoint, currentUsername, metadataFetcher,
+              new BatchDeadline(traversalContext, batchStartMillis));
+        }
+        checkpoint.advanceToEnd();
+        return new EmptyDocumentList(checkpoint.toString());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Continues the reconciliation scan for missed deleted items, if it
+   * is due, and returns the deleted items that have been found. Each
+   * batch reads a few chunks of the scan, and then goes on with the
+   * traversal.
+   *
+   * @param checkpoint the checkpoint, which is not changed
+   * @param timer the timer for this batch
+   * @return a batch of deletions, or null if there are none
+   */
+  private DocumentList listReconciledDeletes(Checkpoint checkpoint,
+      TraversalTimer timer) throws RepositoryException {
+    int[] deletes = deleteReconciler.getPendingDeletes(batchSize);
+    if (deletes.length == 0
+        && deleteReconciler.isScanDue(System.currentTimeMillis())) {
+      String excludedVolumes = connector.getExcludedVolumeTypes();
+      String excludedNodeTypes = connector.getExcludedNodeTypes();
+
+      // The location nodes can only be applied using DTreeAncestors.
+      // Without them, the scan covers more items than are traversed,
+      // which is safe because only the fed items are deleted.
+      String includedNodes = "";
+      String excludedNodes = "";
+      if (connector.getUseDTreeAncestors()) {
+        includedNodes =
+            Strings.nullToEmpty(connector.getIncludedLocationNodes());
+        excludedNodes =
+            Strings.nullToEmpty(connector.getExcludedLocationNodes());
+      }
+      int chunks = 0;
+      while (chunks++ < RECONCILIATION_CHUNKS_PER_BATCH && timer.isTicking()) {
+        int dataId =
+            deleteReconciler.getScanDataId(System.currentTimeMillis());
+        ClientValue ids = sqlQueries.execute(sysadminClient, null,
+            "LivelinkTraversalManager.getReconciliationIds",
+            dataId, RECONCILIATION_CHUNK_SIZE,
+            choice(!Strings.isNullOrEmpty(excludedVolumes)), excludedVolumes,
+            choice(!Strings.isNullOrEmpty(excludedNodeTypes)),
+            excludedNodeTypes,
+            choice(isSharded()), connector.getShardCount(),
+            connector.getShardIndex(),
+            choice(!includedNodes.isEmpty()),
+            Genealogist.getAncestorNodes(includedNodes), includedNodes,
+            choice(!excludedNodes.isEmpty()),
+            Genealogist.getAncestorNodes(excludedNodes), excludedNodes);
+        int[] dataIds = new RecArrayColumns(ids).getIntColumn("DataID");
+        if (dataIds.length == 0) {
+          if (deleteReconciler.finishScan() > 0) {
+            deletes = deleteReconciler.getPendingDeletes(batchSize);
+          }
+          break;
+        }
+        deleteReconciler.addScanned(dataIds);
+      }
+    }
+    if (deletes.length == 0) {
+      return null;
+    }
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("RECONCILED DELETES: " + deletes.length + " rows.");
+    return new ReconciledDeleteDocumentList(deleteReconciler, checkpoint,
+        deletes);
+  }
+
+  private ClientValue getScopeRemovals(String nodes, int dataId, int batchsz)
+      throws RepositoryException {
+    return sqlQueries.execute(sysadminClient, "SCOPE DELETIONS QUERY",
+        "LivelinkTraversalManager.getScopeRemovals",
+        Genealogist.getAncestorNodes(nodes), nodes, dataId, batchsz,
+        choice(isSharded()), connector.getShardCount(),
+        connector.getShardIndex());
+  }
+
+  /**
+   * Traverses the items named by the configured audit events, along
+   * with the deleted items. The audit checkpoint is only advanced
+   * when a batch has been completely processed, so an item may be
+   * traversed more than once, but no changes will be missed.
+   *
+   * @param checkpoint the checkpoint, with an active audit checkpoint
+   * @param timer the timer for this batch
+   * @return a batch of results, or null if there are no changes
+   */
+  private DocumentList listAuditEvents(Checkpoint checkpoint,
+      TraversalTimer timer) throws RepositoryException {
+    int batchsz = batchSize;
+    while (timer.isTicking()) {
+      Future<ClientValue> pendingDeletes = startDeletes(checkpoint, batchsz);
+      ClientValue events = getAuditEvents(checkpoint, batchsz);
+      int numEvents = (events == null) ? 0 : events.size();
+      ClientValue results = null;
+      if (numEvents > 0) {
+        if (LOGGER.isLoggable(Level.FINE))
+          LOGGER.fine("AUDIT EVENTS: " + numEvents + " rows.");
+        checkpoint.setAdvanceAuditCheckpoint(
+            dateFormat.parse(
+                events.toString(numEvents - 1, "GoogleAuditDate")),
+            events.toValue(numEvents - 1, "EventID"));
+
+        // The items may have been modified again since the event, so
+        // do not restrict the results by ModifyDate.
+        DataIdSet candidateIds = getAuditCandidateIds(events);
+        if (!candidateIds.isEmpty())
+          results = getResults(candidateIds, END_OF_TIME);
+      }
+      int numInserts = (results == null) ? 0 : results.size();
+
+      ClientValue deletes = getDeletes(pendingDeletes, checkpoint, batchsz);
+      int numDeletes = (deletes == null) ? 0 : deletes.size();
+
+      if ((numEvents + numDeletes) == 0) {
+        if (checkpoint.hasChanged()) {
+          break;      // Force a new checkpoint.
+        } else {
+          LOGGER.fine("RESULTSET: no rows.");
+          return null;  // No new documents available.
+        }
+      }
+
+      if ((numInserts + numDeletes) > 0) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("RESULTSET: " + numInserts + " rows.  " +
+              "DELETESET: " + numDeletes + " rows.");
+        }
+        return new LivelinkDocumentList(connector, traversalClient,
+            contentHandler, results, fields, deletes, traversalContext,
+            checkpoint, currentUsername, metadataFetcher,
+            new BatchDeadline(traversalContext, batchStartMillis));
+      }
+
+      // None of the items passed our filters.
+      checkpoint.advanceToEnd();
+    }
+
     LOGGER.fine("RESULTSET: 0 rows, so far.");
     return new EmptyDocumentList(checkpoint.toString());
   }
 
+  /**
+   * Gets the distinct items named by the audit events, which may be
+   * empty. Some events do not name an item.
+   */
+  private DataIdSet getAuditCandidateIds(ClientValue events)
+      throws RepositoryException {
+    int[] dataIds = new int[events.size()];
+    int count = 0;
+    for (int i = 0; i < events.size(); i++) {
+      if (events.isDefined(i, "DataID")) {
+        int dataId = events.toInteger(i, "DataID");
+        if (dataId > 0)
+          dataIds[count++] = dataId;
+      }
+    }
+    return DataIdSet.of(dataIds, count);
+  }
+
+  @VisibleForTesting
+  ClientValue getAuditEvents(Checkpoint checkpoint, int batchsz)
+      throws RepositoryException {
+    String auditDate = (isSqlServer)
+        ? dateFormat.toSqlMillisString(checkpoint.auditDate)
+        : dateFormat.toSqlString(checkpoint.auditDate);
+    return sqlQueries.execute(sysadminClient, "AUDIT EVENTS QUERY",
+        "LivelinkTraversalManager.getAuditEvents",
+        auditDate, checkpoint.auditEventId,
+        connector.getAuditTraversalEvents(), batchsz,
+        choice(isSharded()), connector.getShardCount(),
+        connector.getShardIndex());
+  }
+
+  /** Gets whether audit events drive the incremental traversal. */
+  private boolean isAuditTraversal() {
+    return !Strings.isNullOrEmpty(connector.getAuditTraversalEvents());
+  }
+
+  /**
+   * Gets the time when the Connector Manager will consider this batch
+   * to have timed out.
+   *
+   * @return the deadline in milliseconds, or -1 if there is no limit
+   */
+  private long getDeadline() {
+    return (traversalContext == null) ? -1L : System.currentTimeMillis()
+        + traversalContext.traversalTimeLimitSeconds() * 1000L;
+  }
+
+  /**
+   * Gets the time remaining before the deadline.
+   *
+   * @return the time remaining in milliseconds, or -1 if there is no limit
+   */
+  private long getRemainingMillis(long deadline) {
+    return (deadline < 0) ? -1L
+        : Math.max(0L, deadline - System.currentTimeMillis());
+  }
+
+  /**
+   * Gets the number of candidates to consider, which are the ones
+   * before the end of the current time slice, if there is one, and
+   * before the quiet period, if there is one. The candidates are
+   * sorted by ModifyDate.
+   */
+  private int countCandidates(ClientValue candidates, Checkpoint checkpoint)
+      throws RepositoryException {
+    int size = (candidates == null) ? 0 : candidates.size();
+    Date endDate = getCandidatesEndDate(checkpoint);
+    if (endDate == null) {
+      return size;
+    }
+    int count = 0;
+    while (count < size && candidates.toDate(count, "ModifyDate")
+        .before(endDate)) {
+      count++;
+    }
+    if (count < size) {
+      heldBack = true;
+      if (LOGGER.isLoggable(Level.FINER)) {
+        LOGGER.finer("HOLDING BACK " + (size - count)
+            + " CANDIDATES AT OR AFTER " + dateFormat.toSqlString(endDate));
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Gets the end of the ModifyDate range to consider, exclusive, which
+   * is the earlier of the end of the current time slice and the start
+   * of the quiet period.
+   *
+   * @return the end date, or null if the range is unbounded
+   */
+  private Date getCandidatesEndDate(Checkpoint checkpoint) {
+    int quietPeriodSeconds = connector.getQuietPeriodSeconds();
+    if (quietPeriodSeconds <= 0) {
+      return checkpoint.insertEndDate;
+    }
+    Date quietDate = new Date(
+        System.currentTimeMillis() - quietPeriodSeconds * 1000L);
+    return (checkpoint.insertEndDate != null
+        && checkpoint.insertEndDate.before(quietDate))
+        ? checkpoint.insertEndDate : quietDate;
+  }
+
+  /** Gets the first candidate object IDs. */
+  private DataIdSet getCandidateIds(ClientValue candidates, int count)
+      throws RepositoryException {
+    return DataIdSet.of(candidates, count, "DataID");
+  }
+
+  /** Gets the insert portion of a checkpoint as a string. */
+  private String getInsertCheckpoint(Date insertDate, int insertDataId) {
+    return dateFormat.toSqlString(insertDate) + ',' + insertDataId;
+  }
+
+  /** Gets a time slice checkpoint as a string. */
+  private String getSliceCheckpoint(Date insertDate, int insertDataId,
+      Date insertEndDate) {
+    String end = (insertEndDate == null)
+        ? "" : dateFormat.toSqlString(insertEndDate);
+    return getInsertCheckpoint(insertDate, insertDataId) + ',' + end;
+  }
+
+  /**
+   * Queries the candidates that follow the given checkpoint, and the
+   * results for the ones before the end of its time slice.
+   *
+   * @return an array of the candidates and results
+   */
+  private ClientValue[] getCandidatesAndResults(Checkpoint checkpoint,
+      int batchsz, Client traversalClient, Client sysadminClient)
+      throws RepositoryException {
+    ClientValue candidates =
+        getCandidates(checkpoint, batchsz, sysadminClient);
+    int numCandidates = countCandidates(candidates, checkpoint);
+    if (numCandidates == 0) {
+      return new ClientValue[] { candidates, null };
+    }
+    Date highestModifyDate =
+        candidates.toDate(numCandidates - 1, "ModifyDate");
+    ClientValue results = getResults(
+        getCandidateIds(candidates, numCandidates), highestModifyDate,
+        traversalClient, sysadminClient);
+    return new ClientValue[] { candidates, results };
+  }
+
+  /**
+   * Starts querying the batch that follows the given insert checkpoint
+   * for the current slice of a time-sliced traversal, or for the
+   * traversal as a whole.
+   */
+  private void startNextFetch(Checkpoint checkpoint, Date insertDate,
+      int insertDataId) {
+    if (checkpoint.isSliced()) {
+      startSliceFetch(insertDate, insertDataId, checkpoint.insertEndDate);
+    } else {
+      startPrefetch(insertDate, insertDataId);
+    }
+  }
+
+  /**
+   * Starts querying the candidates and results for the other time
+   * slices on the pooled sessions, if they are not already pending,
+   * and discards the pending queries for the slices that have moved on.
+   */
+  private void startSliceFetches(Checkpoint checkpoint) {
+    if (slicePool == null || !checkpoint.isSliced()) {
+      return;
+    }
+    Set<String> current = new HashSet<String>();
+    if (checkpoint.insertDate != null) {
+      current.add(getSliceCheckpoint(checkpoint.insertDate,
+              checkpoint.insertDataId, checkpoint.insertEndDate));
+    }
+    for (Checkpoint.Slice slice : checkpoint.getSlices()) {
+      current.add(startSliceFetch(slice.insertDate, slice.insertDataId,
+              slice.insertEndDate));
+    }
+    Iterator<Map.Entry<String, Future<ClientValue[]>>> it =
+        sliceFetches.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Future<ClientValue[]>> entry = it.next();
+      if (!current.contains(entry.getKey())) {
+        if (LOGGER.isLoggable(Level.FINE))
+          LOGGER.fine("DISCARDING SLICE CANDIDATES AFTER " + entry.getKey());
+        entry.getValue().cancel(false);
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Starts querying the candidates and results for a time slice on the
+   * pooled sessions, unless they are already pending.
+   *
+   * @return the slice checkpoint string, or {@code null} if the slice
+   *     starts at the beginning
+   */
+  private String startSliceFetch(Date insertDate, int insertDataId,
+      Date insertEndDate) {
+    if (insertDate == null) {
+      return null;
+    }
+    String sliceCheckpoint =
+        getSliceCheckpoint(insertDate, insertDataId, insertEndDate);
+    if (slicePool == null || sliceFetches.containsKey(sliceCheckpoint)) {
+      return sliceCheckpoint;
+    }
+
+    final Checkpoint next = new Checkpoint();
+    next.insertDate = insertDate;
+    next.insertDataId = insertDataId;
+    next.insertEndDate = insertEndDate;
+    final int batchsz = (batchSizer == null)
+        ? batchSize : batchSizer.getCandidatesSize(batchSize, -1L);
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("FETCHING SLICE CANDIDATES AFTER " + sliceCheckpoint);
+    sliceFetches.putIfAbsent(sliceCheckpoint, slicePool.submit(
+        new SessionPool.Task<ClientValue[]>() {
+          @Override
+          public ClientValue[] call(Client traversalClient,
+              Client sysadminClient) throws RepositoryException {
+            return getCandidatesAndResults(next, batchsz, traversalClient,
+                sysadminClient);
+          }
+        }));
+    return sliceCheckpoint;
+  }
+
+  /**
+   * Gets the candidates and results queried ahead of time for the
+   * current time slice, waiting for the queries to finish if necessary.
+   *
+   * @return an array of the candidates and results, or {@code null}
+   *     if there are no usable results
+   */
+  private ClientValue[] takeSliceFetch(Checkpoint checkpoint) {
+    if (checkpoint.insertDate == null) {
+      return null;
+    }
+    String sliceCheckpoint = getSliceCheckpoint(checkpoint.insertDate,
+        checkpoint.insertDataId, checkpoint.insertEndDate);
+    Future<ClientValue[]> future = sliceFetches.remove(sliceCheckpoint);
+    if (future == null) {
+      return null;
+    }
+    try {
+      ClientValue[] fetched = future.get();
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("USING SLICE CANDIDATES AFTER " + sliceCheckpoint);
+      return fetched;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      // Fall back to running the queries on the main sessions.
+      LOGGER.log(Level.WARNING, "SLICE QUERY FAILED AFTER "
+          + sliceCheckpoint, e.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Starts querying the candidates and results that follow the given
+   * insert checkpoint on the prefetch sessions, if pipelined
+   * traversal is enabled. The deletes are not prefetched, because the
+   * delete checkpoint depends on how much of the current batch is
+   * processed.
+   *
+   * @param insertDate the ModifyDate the next batch will start after
+   * @param insertDataId the DataID the next batch will start after
+   */
+  private void startPrefetch(Date insertDate, final int insertDataId) {
+    if (prefetchExecutor == null || insertDate == null) {
+      return;
+    }
+
+    final Checkpoint next = new Checkpoint();
+    next.insertDate = insertDate;
+    next.insertDataId = insertDataId;
+    final int batchsz = (batchSizer == null)
+        ? batchSize : batchSizer.getCandidatesSize(batchSize, -1L);
+    String insertCheckpoint = getInsertCheckpoint(insertDate, insertDataId);
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("PREFETCHING CANDIDATES AFTER " + insertCheckpoint);
+
+    Future<ClientValue[]> future = prefetchExecutor.submit(
+        new Callable<ClientValue[]>() {
+          @Override
+          public ClientValue[] call() throws RepositoryException {
+            return getCandidatesAndResults(next, batchsz,
+                prefetchTraversalClient, prefetchSysadminClient);
+          }
+        });
+    Prefetch previous = prefetch.getAndSet(
+        new Prefetch(insertCheckpoint, batchsz, future));
+    if (previous != null) {
+      previous.future.cancel(false);
+    }
+  }
+
+  /**
+   * Gets the prefetched candidates and results, if they follow the
+   * given checkpoint, waiting for the queries to finish if necessary.
+   *
+   * @param checkpoint the current checkpoint
+   * @param batchsz the current batch size, which is ignored with
+   *     adaptive batch sizes
+   * @return an array of the candidates and results, or {@code null}
+   *     if there is no usable prefetched batch
+   */
+  private ClientValue[] takePrefetch(Checkpoint checkpoint, int batchsz) {
+    Prefetch pending = prefetch.getAndSet(null);
+    if (pending == null) {
+      return null;
+    }
+    if (checkpoint.insertDate == null
+        || (batchSizer == null && pending.batchsz != batchsz)
+        || !pending.insertCheckpoint.equals(getInsertCheckpoint(
+            checkpoint.insertDate, checkpoint.insertDataId))) {
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("DISCARDING PREFETCHED CANDIDATES AFTER "
+            + pending.insertCheckpoint);
+      }
+      pending.future.cancel(false);
+      return null;
+    }
+
+    try {
+      ClientValue[] prefetched = pending.future.get();
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("USING PREFETCHED CANDIDATES AFTER "
+            + pending.insertCheckpoint);
+      }
+      return prefetched;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      // Fall back to running the queries on the main sessions.
+      LOGGER.log(Level.WARNING, "PREFETCH FAILED AFTER "
+          + pending.insertCheckpoint, e.getCause());
+      return null;
+    }
+  }
+
   /** Check for bad results from the candidates query. */
   @VisibleForTesting
   void checkCandidatesTimeWarp(ClientValue candidates, Checkpoint checkpoint)
@@ -644,17 +1771,98 @@ class LivelinkTraversalManager
    * Filters the candidates down and returns the main recarray needed
    * for the DocumentList.
    *
-   * @param candidatesList a comma-separated string of candidate object IDs
+   * @param candidateIds the candidate object IDs
    * @param highestModifyDate the latest ModifyDate among the candidates
    * @return the main query results
    */
   @VisibleForTesting
-  ClientValue getResults(String candidatesList, Date highestModifyDate)
+  ClientValue getResults(DataIdSet candidateIds, Date highestModifyDate)
       throws RepositoryException {
+    return getResults(candidateIds, highestModifyDate, traversalClient,
+        sysadminClient);
+  }
+
+  /**
+   * Filters the candidates down using the given sessions.
+   *
+   * @param traversalClient the client for the main query
+   * @param sysadminClient the client for the non-hierarchical filter
+   */
+  private ClientValue getResults(DataIdSet candidateIds,
+      Date highestModifyDate, Client traversalClient, Client sysadminClient)
+      throws RepositoryException {
+    String candidatesCondition = candidateIds.toSqlCondition("DataID");
+    ClientValue results = getFilteredResults(candidatesCondition,
+        highestModifyDate, traversalClient, sysadminClient);
+
+    // If there are newly excluded content types in the results, run
+    // the query again to filter them out before the documents are
+    // fetched. This happens once for each excluded content type.
+    if (results != null && checkMimeTypes(results)) {
+      results = getFilteredResults(candidatesCondition, highestModifyDate,
+          traversalClient, sysadminClient);
+    }
+    return results;
+  }
+
+  /**
+   * Checks the content types in the results against the
+   * TraversalContext.
+   *
+   * @return {@code true} if the results contain newly excluded content
+   *     types, or {@code false} otherwise
+   */
+  private boolean checkMimeTypes(ClientValue results)
+      throws RepositoryException {
+    if (traversalContext == null) {
+      return false;
+    }
+    boolean isExcluded = false;
+    for (int i = 0; i < results.size(); i++) {
+      if (!results.isDefined(i, "MimeType"))
+        continue;
+      String mimeType = results.toString(i, "MimeType");
+      if (!mimeTypes.containsKey(mimeType)) {
+        boolean excluded =
+            traversalContext.mimeTypeSupportLevel(mimeType) < 0;
+        if (excluded && LOGGER.isLoggable(Level.FINE))
+          LOGGER.fine("EXCLUDING CONTENT TYPE FROM RESULTS: " + mimeType);
+        mimeTypes.put(mimeType, excluded);
+        isExcluded |= excluded;
+      }
+    }
+    return isExcluded;
+  }
+
+  /**
+   * Gets the excluded content types seen so far, as a comma-separated
+   * list of SQL string literals.
+   *
+   * @return the excluded content types, or null if there are none
+   */
+  private String getExcludedMimeTypes() {
+    StringBuilder buffer = new StringBuilder();
+    for (Map.Entry<String, Boolean> entry : mimeTypes.entrySet()) {
+      if (entry.getValue()) {
+        if (buffer.length() > 0)
+          buffer.append(',');
+        buffer.append('\'').append(entry.getKey().replace("'", "''"))
+            .append('\'');
+      }
+    }
+    return (buffer.length() == 0) ? null : buffer.toString();
+  }
+
+  /** Gets the results filtered by the configured restrictions. */
+  private ClientValue getFilteredResults(String candidatesCondition,
+      Date highestModifyDate, Client traversalClient, Client sysadminClient)
+      throws RepositoryException {
+    String excludedMimeTypes = getExcludedMimeTypes();
     if (genealogist == null) {
       // We're either using DTreeAncestors, or we don't need it.
-      return getMatching(candidatesList, highestModifyDate, true,
-          webnodesViewResults, selectList, traversalClient);
+      return getMatching(candidatesCondition, highestModifyDate, true,
+          excludedMimeTypes, webnodesViewResults, selectList,
+          traversalClient);
     } else {
       // We're not using DTreeAncestors but we need the ancestors.
       // If there's a SQL WHERE condition, we need to consistently
@@ -662,10 +1870,12 @@ class LivelinkTraversalManager
       String sqlWhereCondition = connector.getSqlWhereCondition();
       String view =
           (Strings.isNullOrEmpty(sqlWhereCondition)) ? "DTree" : "WebNodes";
-      ClientValue matching = getMatching(candidatesList, highestModifyDate,
-          false, view, new String[] { "DataID" }, sysadminClient);
-      return (matching.size() == 0)
-          ? null : getMatchingDescendants(matching, highestModifyDate);
+      ClientValue matching = getMatching(candidatesCondition,
+          highestModifyDate,
+          false, null, view, new String[] { "DataID" }, sysadminClient);
+      return (matching.size() == 0) ? null
+          : getMatchingDescendants(matching, highestModifyDate,
+              excludedMimeTypes, traversalClient);
     }
   }
 
@@ -674,27 +1884,41 @@ class LivelinkTraversalManager
    * restrictions using DTreeAncestors, but not does not filter the
    * results by hierarchy without DTreeAncestors.
    *
-   * @param candidatesList a comma-separated string of candidate object IDs
+   * @param candidatesCondition a SQL condition matching the candidate
+   *     object IDs
    * @param highestModifyDate the latest ModifyDate among the candidates
    * @param sortResults {@code true} to use an ORDER BY clause on the query,
    *     or {@code false} to let the database use any order
+   * @param excludedMimeTypes a comma-separated string of quoted content
+   *     types to exclude, or null to not filter by content type
    * @param view the database view to select from
    * @param columns the select list
    * @param client the Livelink client to use to execute the query
    * @return the matching results, which may be the main query results,
    *     or which may need to have the hierarchical filtering applied
    */
-  private ClientValue getMatching(String candidatesList, Date highestModifyDate,
-      boolean sortResults, String view, String[] columns, Client client)
+  private ClientValue getMatching(String candidatesCondition,
+      Date highestModifyDate, boolean sortResults, String excludedMimeTypes,
+      String view, String[] columns, Client client)
       throws RepositoryException {
-    return client.ListNodes(
-        getMatchingQuery(candidatesList, highestModifyDate, sortResults),
+    return client.ListNodes(getMatchingQuery(candidatesCondition,
+            highestModifyDate, sortResults, excludedMimeTypes),
         view, columns);
   }
 
+  /**
+   * Gets the matching query for a comma-separated string of candidate
+   * object IDs.
+   */
   @VisibleForTesting
   String getMatchingQuery(String candidatesList, Date highestModifyDate,
       boolean sortResults) {
+    return getMatchingQuery("DataID in (" + candidatesList + ")",
+        highestModifyDate, sortResults, getExcludedMimeTypes());
+  }
+
+  private String getMatchingQuery(String candidatesCondition,
+      Date highestModifyDate, boolean sortResults, String excludedMimeTypes) {
     String startNodes = connector.getIncludedLocationNodes();
     String excludedVolumes = connector.getExcludedVolumeTypes();
     String excludedNodeTypes = connector.getExcludedNodeTypes();
@@ -707,10 +1931,10 @@ class LivelinkTraversalManager
       if (connector.getUseDTreeAncestorsFirst()) {
         startDescendants = null;
       } else {
-        startDescendants = getDescendants(startNodes, candidatesList);
+        startDescendants = getDescendants(startNodes, candidatesCondition);
       }
       excludedDescendants = (Strings.isNullOrEmpty(excludedLocationNodes))
-          ? null : getDescendants(excludedLocationNodes, candidatesList);
+          ? null : getDescendants(excludedLocationNodes, candidatesCondition);
     } else {
       startDescendants = null;
       excludedDescendants = null;
@@ -718,7 +1942,7 @@ class LivelinkTraversalManager
 
     return sqlQueries.getWhere("RESULTS QUERY",
         "LivelinkTraversalManager.getMatching",
-        /* 0 */ candidatesList,
+        /* 0 */ candidatesCondition,
         /* 1 */ choice(Strings.isNullOrEmpty(startNodes)), // [sic]
         /* 2 */ choice(!Strings.isNullOrEmpty(startDescendants)),
         /* 3 */ startDescendants,
@@ -731,7 +1955,9 @@ class LivelinkTraversalManager
         /* 10 */ choice(!Strings.isNullOrEmpty(sqlWhereCondition)),
         /* 11 */ sqlWhereCondition,
         /* 12 */ getTimestampLiteral(highestModifyDate),
-        /* 13 */ choice(sortResults));
+        /* 13 */ choice(sortResults),
+        /* 14 */ choice(!Strings.isNullOrEmpty(excludedMimeTypes)),
+        /* 15 */ excludedMimeTypes);
   }
 
   /**
@@ -740,20 +1966,29 @@ class LivelinkTraversalManager
    *
    * @param matching the candidates matching the non-hierarchical filters
    * @param highestModifyDate the latest ModifyDate among the candidates
+   * @param excludedMimeTypes a comma-separated string of quoted content
+   *     types to exclude, or null to not filter by content type
+   * @param traversalClient the client for the main query
    * @return the main query results
    */
   private ClientValue getMatchingDescendants(ClientValue matching,
-      Date highestModifyDate) throws RepositoryException {
+      Date highestModifyDate, String excludedMimeTypes,
+      Client traversalClient)
+      throws RepositoryException {
     String descendants;
     // We are using the same genealogist for multiple traversal batches, which
-    // might be done from different threads (although never concurrently).
+    // might be done from different threads, and concurrently with a
+    // prefetch of the next batch.
     synchronized (genealogist) {
       descendants = genealogist.getMatchingDescendants(matching);
     }
     if (descendants != null) {
       String query = sqlQueries.getWhere(null,
-          "LivelinkTraversalManager.getMatchingDescendants", descendants,
-          getTimestampLiteral(highestModifyDate));
+          "LivelinkTraversalManager.getMatchingDescendants",
+          DataIdSet.parse(descendants).toSqlCondition("DataID"),
+          getTimestampLiteral(highestModifyDate),
+          choice(!Strings.isNullOrEmpty(excludedMimeTypes)),
+          excludedMimeTypes);
       return traversalClient.ListNodes(query, webnodesViewResults, selectList);
     } else {
       return null;
@@ -777,36 +2012,119 @@ class LivelinkTraversalManager
   @VisibleForTesting
   ClientValue getCandidates(Checkpoint checkpoint,
       int batchsz) throws RepositoryException {
-    String startNodes;
+    return getCandidates(checkpoint, batchsz, sysadminClient);
+  }
+
+  private ClientValue getCandidates(Checkpoint checkpoint, int batchsz,
+      Client sysadminClient) throws RepositoryException {
+    return getCandidates(checkpoint, batchsz, sysadminClient,
+        connector.getUseDTreeAncestorsFirst());
+  }
+
+  /**
+   * Gets the candidates that follow the checkpoint.
+   *
+   * @param useDTreeAncestorsFirst {@code true} to only select
+   *     candidates in the included locations, using DTreeAncestors
+   */
+  private ClientValue getCandidates(Checkpoint checkpoint, int batchsz,
+      Client sysadminClient, boolean useDTreeAncestorsFirst)
+      throws RepositoryException {
+    return getCandidates(checkpoint, batchsz, sysadminClient,
+        (useDTreeAncestorsFirst) ? connector.getIncludedLocationNodes() : null);
+  }
+
+  /**
+   * Gets the candidates that follow the checkpoint.
+   *
+   * @param startNodes a comma-separated list of the nodes to select
+   *     candidates from, using DTreeAncestors, or null or empty to
+   *     select candidates from all nodes
+   */
+  private ClientValue getCandidates(Checkpoint checkpoint, int batchsz,
+      Client sysadminClient, String startNodes) throws RepositoryException {
     String ancestorNodes;
-    if (connector.getUseDTreeAncestorsFirst()) {
-      startNodes = connector.getIncludedLocationNodes();
-      if (Strings.isNullOrEmpty(startNodes)) {
-        ancestorNodes = null;
-      } else {
-        ancestorNodes = Genealogist.getAncestorNodes(startNodes);
-      }
-    } else {
-      startNodes = null;
+    if (Strings.isNullOrEmpty(startNodes)) {
       ancestorNodes = null;
+    } else {
+      ancestorNodes = Genealogist.getAncestorNodes(startNodes);
     }
 
     String insertDate = (checkpoint.insertDate != null)
         ? dateFormat.toSqlString(checkpoint.insertDate) : null;
 
+    // The excluded node types never match, so there is no point in
+    // moving them through the results query.
+    String excludedNodeTypes = connector.getExcludedNodeTypes();
+
     return sysadminClient.ListNodes(
         sqlQueries.getWhere("CANDIDATES QUERY",
             "LivelinkTraversalManager.getCandidates",
             choice(!Strings.isNullOrEmpty(startNodes)),
             ancestorNodes, startNodes,
             choice(checkpoint.insertDate != null), insertDate,
-            checkpoint.insertDataId, batchsz),
+            checkpoint.insertDataId, batchsz,
+            choice(isSharded()), connector.getShardCount(),
+            connector.getShardIndex(),
+            choice(!Strings.isNullOrEmpty(excludedNodeTypes)),
+            excludedNodeTypes,
+            choice(!Strings.isNullOrEmpty(startNodes)
+                || checkpoint.insertDate != null)),
         sqlQueries.getFrom("CANDIDATES VIEW",
             "LivelinkTraversalManager.getCandidates",
             choice(!Strings.isNullOrEmpty(startNodes))),
         sqlQueries.getSelect("LivelinkTraversalManager.getCandidates"));
   }
 
+  /**
+   * Starts the deleted items query on the deletes session, if the
+   * queries are run concurrently.
+   *
+   * @return the pending deletes, or {@code null} if the deleted items
+   *     should be queried when they are needed
+   */
+  private Future<ClientValue> startDeletes(final Checkpoint checkpoint,
+      final int batchsz) {
+    if (deletesExecutor == null || !deleteSupported) {
+      return null;
+    }
+    // Copy the delete checkpoint, since the caller may advance the
+    // insert checkpoint while the query is running.
+    final Checkpoint deleteCheckpoint = new Checkpoint();
+    deleteCheckpoint.deleteDate = checkpoint.deleteDate;
+    deleteCheckpoint.deleteEventId = checkpoint.deleteEventId;
+    return deletesExecutor.submit(new Callable<ClientValue>() {
+        @Override
+        public ClientValue call() throws RepositoryException {
+          return getDeletes(deleteCheckpoint, batchsz, deletesClient);
+        }
+      });
+  }
+
+  /**
+   * Gets the deleted items, waiting for a pending query if there is
+   * one, or running the query now if not.
+   */
+  private ClientValue getDeletes(Future<ClientValue> pendingDeletes,
+      Checkpoint checkpoint, int batchsz) throws RepositoryException {
+    if (pendingDeletes == null) {
+      return getDeletes(checkpoint, batchsz, sysadminClient);
+    }
+    try {
+      return pendingDeletes.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LivelinkException(e, LOGGER);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RepositoryException) {
+        throw (RepositoryException) cause;
+      } else {
+        throw new LivelinkException(e, LOGGER);
+      }
+    }
+  }
+
   /** Fetches the list of Deleted Items candidates. */
   /*
    * I try limit the list of delete candidates to those
@@ -818,8 +2136,8 @@ class LivelinkTraversalManager
    * an explicitly included location, or an explicitly
    * excluded location.
    */
-  private ClientValue getDeletes(Checkpoint checkpoint, int batchsz)
-      throws RepositoryException {
+  private ClientValue getDeletes(Checkpoint checkpoint, int batchsz,
+      Client sysadminClient) throws RepositoryException {
     if (deleteSupported == false) {
       return null;
     }
@@ -830,17 +2148,18 @@ class LivelinkTraversalManager
     String excludedNodeTypes = connector.getExcludedNodeTypes();
 
     if (connector.getUseIndexedDeleteQuery()) {
-      ClientValue deletes =
-          getDeletesStandardIndex(deleteDate, excludedNodeTypes);
+      ClientValue deletes = getDeletesStandardIndex(deleteDate,
+          checkpoint.getDeleteFloorEventId(), excludedNodeTypes,
+          sysadminClient);
       if (deletes != null) {
-        // Check to see if all the results are cached. If only some of them
-        // are cached, we will let LivelinkDocumentList filter those out.
-        LOGGER.log(Level.FINER, "CHECKING CACHE FOR: {0} deletes.",
+        // Check to see if all the results were already fed. If only
+        // some of them were, we will let LivelinkDocumentList filter
+        // those out.
+        LOGGER.log(Level.FINER, "CHECKING DELETE WINDOW FOR: {0} deletes.",
             deletes.size());
-        Set<Integer> prevDelCache = deletesCache.get();
         for (int i = 0; i < deletes.size(); i++) {
           int delId = deletes.toInteger(i, "DataID");
-          if (prevDelCache.contains(delId)) {
+          if (checkpoint.hasFedDelete(deletes.toValue(i, "EventID"))) {
             LOGGER.log(Level.FINEST, "DUPLICATE DELETE FOR ID = {0,number,#}",
                 delId);
           } else {
@@ -850,29 +2169,42 @@ class LivelinkTraversalManager
           }
         }
       }
-      // There were no deletes, or all the deletes were cached.
+      // There were no deletes, or all the deletes were already fed.
       return null;
     } else {
       return getDeletesCustomIndex(deleteDate, checkpoint.deleteEventId,
-          excludedNodeTypes, batchsz);
+          excludedNodeTypes, batchsz, sysadminClient);
     }
   }
 
   private ClientValue getDeletesCustomIndex(String deleteDate,
-      long deleteEventId, String excludedNodeTypes, int batchsz)
-      throws RepositoryException {
+      long deleteEventId, String excludedNodeTypes, int batchsz,
+      Client sysadminClient) throws RepositoryException {
     return sqlQueries.execute(sysadminClient, "DELETE CANDIDATES QUERY",
         "LivelinkTraversalManager.getDeletesCustomIndex",
         deleteDate, deleteEventId,
         choice(!Strings.isNullOrEmpty(excludedNodeTypes)), excludedNodeTypes,
-        batchsz);
+        batchsz, choice(isSharded()), connector.getShardCount(),
+        connector.getShardIndex());
   }
 
   private ClientValue getDeletesStandardIndex(String deleteDate,
-      String excludedNodeTypes) throws RepositoryException {
+      long floorEventId, String excludedNodeTypes, Client sysadminClient)
+      throws RepositoryException {
     return sqlQueries.execute(sysadminClient, "DELETE CANDIDATES QUERY",
         "LivelinkTraversalManager.getDeletesStandardIndex",
         deleteDate,
-        choice(!Strings.isNullOrEmpty(excludedNodeTypes)), excludedNodeTypes);
+        choice(!Strings.isNullOrEmpty(excludedNodeTypes)), excludedNodeTypes,
+        choice(isSharded()), connector.getShardCount(),
+        connector.getShardIndex(),
+        choice(floorEventId != DeleteWindow.NO_FLOOR), floorEventId);
+  }
+
+  /**
+   * Gets whether this connector instance traverses one shard of the
+   * DataID space, in cooperation with other instances.
+   */
+  private boolean isSharded() {
+    return connector.getShardCount() > 1;
   }
 }
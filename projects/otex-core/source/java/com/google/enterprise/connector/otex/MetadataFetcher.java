@@ -0,0 +1,185 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the per-object LAPI metadata for a batch of documents in
+ * parallel, using a bounded pool of Livelink sessions. The
+ * <code>LivelinkDocumentList</code> still builds the documents one at
+ * a time, in checkpoint order, but it takes the ObjectInfo,
+ * VersionInfo, object rights, and ACL user and group information from
+ * these results instead of making the round trips itself.
+ * <p>
+ * Category attributes are not collected here, because the
+ * <code>CategoryHandler</code> caches the category definitions.
+ */
+class MetadataFetcher {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(MetadataFetcher.class.getName());
+
+  /** The LAPI metadata for a single object. */
+  static class ObjectMetadata {
+    /** The ObjectInfo assoc, or null if it is not needed. */
+    ClientValue objectInfo;
+
+    /**
+     * The VersionInfo assoc, or null if it is not needed or was read
+     * with bulk queries.
+     */
+    ClientValue versionInfo;
+
+    /**
+     * The object rights recarray, or null if ACLs are not pushed or
+     * were read with bulk queries.
+     */
+    ClientValue objectRights;
+
+    /**
+     * The unfiltered user or group information for the owner and the
+     * ACL entries, keyed by user or group ID.
+     */
+    final Map<Integer, ClientValue> userInfo =
+        new HashMap<Integer, ClientValue>();
+  }
+
+  /** The connector contains configuration information. */
+  private final LivelinkConnector connector;
+
+  /** The idle sessions. There is one session for each thread. */
+  private final BlockingQueue<Client> clients;
+
+  /** The pool of threads that collect the metadata. */
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Constructs a fetcher that uses the given sessions.
+   *
+   * @param connector the connector configuration
+   * @param clients the sessions, which must be logged in as, or
+   *     impersonating, the traversal user
+   */
+  MetadataFetcher(LivelinkConnector connector, List<Client> clients) {
+    this.connector = connector;
+    this.clients = new ArrayBlockingQueue<Client>(clients.size(), false,
+        clients);
+    this.executor = new ThreadPoolExecutor(clients.size(), clients.size(),
+        60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("LivelinkMetadata-%d").build());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Starts collecting the metadata for each row of the recarray.
+   *
+   * @param recArray the main traversal query results
+   * @param fetchAcls {@code true} to collect the object rights and the
+   *     ACL user and group information, or {@code false} if they were
+   *     already read for the batch with bulk queries
+   * @param fetchVersionInfo {@code true} to collect the VersionInfo
+   *     where it is needed, or {@code false} if it was already read
+   *     for the batch with bulk queries
+   * @return the pending metadata for each row, in recarray order
+   * @throws RepositoryException if an error occurs reading the recarray
+   */
+  List<Future<ObjectMetadata>> fetch(ClientValue recArray,
+      final boolean fetchAcls, boolean fetchVersionInfo)
+      throws RepositoryException {
+    int size = (recArray == null) ? 0 : recArray.size();
+    List<Future<ObjectMetadata>> pending =
+        new ArrayList<Future<ObjectMetadata>>(size);
+    for (int row = 0; row < size; row++) {
+      // Read the recarray here rather than in the pool threads, since
+      // ClientValue implementations are not necessarily thread-safe.
+      final int objectId = recArray.toInteger(row, "DataID");
+      final int volumeId = recArray.toInteger(row, "OwnerID");
+      final int subType = recArray.toInteger(row, "SubType");
+      final int ownerId = recArray.toInteger(row, "UserID");
+      final boolean needsVersionInfo = fetchVersionInfo
+          && LivelinkDocumentList.needsVersionInfo(connector, recArray, row);
+      pending.add(executor.submit(new Callable<ObjectMetadata>() {
+          @Override
+          public ObjectMetadata call() throws RepositoryException {
+            Client client = clients.remove();
+            try {
+              return fetch(client, objectId, volumeId, subType, ownerId,
+                  needsVersionInfo, fetchAcls);
+            } finally {
+              clients.add(client);
+            }
+          }
+        }));
+    }
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("FETCHING METADATA FOR " + size + " ROWS.");
+    return pending;
+  }
+
+  private ObjectMetadata fetch(Client client, int objectId, int volumeId,
+      int subType, int ownerId, boolean needsVersionInfo, boolean fetchAcls)
+      throws RepositoryException {
+    ObjectMetadata metadata = new ObjectMetadata();
+
+    if (connector.getObjectInfoKeys() != null
+        || connector.getExtendedDataKeys(subType) != null) {
+      metadata.objectInfo = client.GetObjectInfo(volumeId, objectId);
+    }
+    if (needsVersionInfo) {
+      metadata.versionInfo = client.GetVersionInfo(volumeId, objectId, 0);
+    }
+
+    if (fetchAcls && connector.getPushAcls()) {
+      ClientValue objectRights = client.GetObjectRights(objectId);
+      addUserInfo(client, metadata, ownerId);
+      for (int i = 0; i < objectRights.size(); i++) {
+        int userId = objectRights.toInteger(i, "RightID");
+        int userPermissions = objectRights.toInteger(i, "Permissions");
+        if (userId >= 0 && (userPermissions & Client.PERM_SEECONTENTS)
+            == Client.PERM_SEECONTENTS) {
+          addUserInfo(client, metadata, userId);
+        }
+      }
+      metadata.objectRights = objectRights;
+    }
+    return metadata;
+  }
+
+  private void addUserInfo(Client client, ObjectMetadata metadata,
+      int userId) throws RepositoryException {
+    if (!metadata.userInfo.containsKey(userId)) {
+      metadata.userInfo.put(userId, client.GetUserOrGroupByIDNoThrow(userId));
+    }
+  }
+}
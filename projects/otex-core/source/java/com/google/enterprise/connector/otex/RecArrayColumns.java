@@ -0,0 +1,117 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A columnar view of a recarray. Each column is read from the
+ * recarray once, the first time it is requested, into a primitive
+ * array, by field index rather than by looking up the field name in
+ * every row. Callers in loops should get the column array once and
+ * index into it.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class RecArrayColumns {
+  private final ClientValue recArray;
+
+  private final int size;
+
+  /** The integer columns read so far. */
+  private final Map<String, int[]> intColumns = new HashMap<String, int[]>();
+
+  /**
+   * Constructs a view of the given recarray.
+   *
+   * @param recArray a recarray, or null for an empty view
+   */
+  RecArrayColumns(ClientValue recArray) {
+    this.recArray = recArray;
+    this.size = (recArray == null) ? 0 : recArray.size();
+  }
+
+  /** Gets the number of rows. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Gets an integer column. Every row must have a value.
+   *
+   * @param field the column name
+   * @return the values, which must not be modified
+   * @throws RepositoryException if the column has not already been
+   *     read and reading it fails
+   */
+  int[] getIntColumn(String field) throws RepositoryException {
+    int[] column = intColumns.get(field);
+    if (column == null) {
+      column = new int[size];
+      if (size > 0) {
+        int index = getFieldIndex(field);
+        for (int i = 0; i < size; i++) {
+          column[i] = recArray.toInteger(i, index);
+        }
+      }
+      intColumns.put(field, column);
+    }
+    return column;
+  }
+
+  /**
+   * Gets an integer column that may have undefined values.
+   *
+   * @param field the column name
+   * @param undefinedValue the value to use for undefined values
+   * @return the values, which must not be modified
+   * @throws RepositoryException if the column has not already been
+   *     read and reading it fails
+   */
+  int[] getIntColumn(String field, int undefinedValue)
+      throws RepositoryException {
+    String key = field + '|' + undefinedValue;
+    int[] column = intColumns.get(key);
+    if (column == null) {
+      column = new int[size];
+      if (size > 0) {
+        int index = getFieldIndex(field);
+        for (int i = 0; i < size; i++) {
+          ClientValue value = recArray.toValue(i, index);
+          column[i] =
+              (value.isDefined()) ? value.toInteger() : undefinedValue;
+        }
+      }
+      intColumns.put(key, column);
+    }
+    return column;
+  }
+
+  /** Gets the index of the named field in the recarray. */
+  private int getFieldIndex(String field) throws RepositoryException {
+    Enumeration<String> names = recArray.enumerateNames();
+    for (int i = 0; names.hasMoreElements(); i++) {
+      if (names.nextElement().equals(field)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(field);
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the items found by a {@link DeleteReconciler}. The
+ * checkpoint is not changed; instead, the items returned by this list
+ * are removed from the reconciler when the checkpoint is taken.
+ */
+class ReconciledDeleteDocumentList implements DocumentList {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(ReconciledDeleteDocumentList.class.getName());
+
+  private final DeleteReconciler reconciler;
+
+  private final Checkpoint checkpoint;
+
+  /** The DataIDs of the items to delete. */
+  private final int[] dataIds;
+
+  /** The index of the next item to delete. */
+  private int index = 0;
+
+  /** The number of items already reported to the reconciler. */
+  private int reported = 0;
+
+  /**
+   * Constructs a list of deletions.
+   *
+   * @param reconciler the reconciler that found the deleted items
+   * @param checkpoint the current checkpoint
+   * @param dataIds the DataIDs of the items to delete
+   */
+  ReconciledDeleteDocumentList(DeleteReconciler reconciler,
+      Checkpoint checkpoint, int[] dataIds) {
+    this.reconciler = reconciler;
+    this.checkpoint = checkpoint;
+    this.dataIds = dataIds;
+  }
+
+  @Override
+  public Document nextDocument() throws RepositoryException {
+    if (index == dataIds.length) {
+      return null;
+    }
+
+    int dataId = dataIds[index++];
+    if (LOGGER.isLoggable(Level.FINEST))
+      LOGGER.finest("DELETING RECONCILED ID = " + dataId);
+    return ScopeDeleteDocumentList.getDeleteDocument(dataId);
+  }
+
+  @Override
+  public String checkpoint() throws RepositoryException {
+    reconciler.setFed(index - reported);
+    reported = index;
+    String cp = checkpoint.toString();
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("CHECKPOINT: " + cp);
+    return cp;
+  }
+}
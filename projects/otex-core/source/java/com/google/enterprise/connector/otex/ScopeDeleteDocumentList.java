@@ -0,0 +1,119 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.SpiConstants.ActionType;
+import com.google.enterprise.connector.spi.Value;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the items that were removed from the traversal by a change
+ * to the excluded or included location nodes. The items are checked
+ * in DataID order, and the checkpoint records the last one checked.
+ * The deleted items are removed from the document state store when
+ * the checkpoint is taken, so that they are fed again if they are
+ * included again later.
+ */
+class ScopeDeleteDocumentList implements DocumentList {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(ScopeDeleteDocumentList.class.getName());
+
+  /** The store of the fed items, or null. */
+  private final DocumentStateStore store;
+
+  private final Checkpoint checkpoint;
+
+  /** The DataIDs of the items to delete, in ascending order. */
+  private final List<Integer> dataIds;
+
+  /** The DataID of the last item checked for this batch. */
+  private final int lastDataId;
+
+  /** The index of the next item to delete. */
+  private int index = 0;
+
+  /** The number of items already removed from the store. */
+  private int removed = 0;
+
+  /**
+   * Constructs a list of deletions.
+   *
+   * @param store the store of the fed items, or null
+   * @param checkpoint the checkpoint to advance
+   * @param dataIds the DataIDs of the items to delete, in ascending order
+   * @param lastDataId the DataID of the last item checked, which is
+   *     at least as large as the DataIDs to delete
+   */
+  ScopeDeleteDocumentList(DocumentStateStore store, Checkpoint checkpoint,
+      List<Integer> dataIds, int lastDataId) {
+    this.store = store;
+    this.checkpoint = checkpoint;
+    this.dataIds = dataIds;
+    this.lastDataId = lastDataId;
+  }
+
+  @Override
+  public Document nextDocument() throws RepositoryException {
+    if (index == dataIds.size()) {
+      checkpoint.setScopeRemovedDataId(lastDataId);
+      return null;
+    }
+
+    int dataId = dataIds.get(index++);
+    if (LOGGER.isLoggable(Level.FINEST))
+      LOGGER.finest("DELETING OUT OF SCOPE ID = " + dataId);
+    checkpoint.setScopeRemovedDataId(dataId);
+    return getDeleteDocument(dataId);
+  }
+
+  /**
+   * Gets a document that deletes the given item, with the current
+   * time as the last modified time.
+   */
+  static LivelinkDocument getDeleteDocument(int dataId)
+      throws RepositoryException {
+    LivelinkDocument props = new LivelinkDocument(dataId, 3);
+    props.addProperty(SpiConstants.PROPNAME_DOCID,
+        Value.getLongValue(dataId));
+    props.addProperty(SpiConstants.PROPNAME_LASTMODIFIED,
+        Value.getDateValue(Calendar.getInstance()));
+    props.addProperty(SpiConstants.PROPNAME_ACTION,
+        Value.getStringValue(ActionType.DELETE.toString()));
+    return props;
+  }
+
+  @Override
+  public String checkpoint() throws RepositoryException {
+    if (store != null) {
+      for (; removed < index; removed++) {
+        store.remove(dataIds.get(removed));
+      }
+      store.flush();
+    }
+    String cp = checkpoint.toString();
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("CHECKPOINT: " + cp);
+    return cp;
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs traversal queries in parallel, using a bounded pool of pairs of
+ * Livelink sessions. Each pair has a session for the traversal user
+ * and a session for the system administrator, which may be the same
+ * session, just like the traversal manager's own sessions.
+ */
+class SessionPool {
+  /** A query to run on one of the pooled session pairs. */
+  interface Task<T> {
+    T call(Client traversalClient, Client sysadminClient)
+        throws RepositoryException;
+  }
+
+  /** The idle traversal user sessions. */
+  private final BlockingQueue<Client> traversalClients;
+
+  /** The idle system administrator sessions, paired with the above. */
+  private final BlockingQueue<Client> sysadminClients;
+
+  /** The pool of threads that run the queries. */
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Constructs a pool that uses the given sessions.
+   *
+   * @param traversalClients the traversal user sessions
+   * @param sysadminClients the system administrator sessions, in the
+   *     same order and of the same size as the traversal user sessions
+   * @param nameFormat the name format for the pool threads
+   */
+  SessionPool(List<Client> traversalClients, List<Client> sysadminClients,
+      String nameFormat) {
+    int size = traversalClients.size();
+    if (sysadminClients.size() != size) {
+      throw new IllegalArgumentException(
+          "The session lists must be the same size.");
+    }
+    this.traversalClients =
+        new ArrayBlockingQueue<Client>(size, true, traversalClients);
+    this.sysadminClients =
+        new ArrayBlockingQueue<Client>(size, true, sysadminClients);
+    this.executor = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat(nameFormat).build());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /** Gets the number of session pairs in the pool. */
+  int size() {
+    return executor.getMaximumPoolSize();
+  }
+
+  /**
+   * Starts running the given task on the next idle pair of sessions.
+   *
+   * @param task the task to run
+   * @return the pending result of the task
+   */
+  <T> Future<T> submit(final Task<T> task) {
+    return executor.submit(new Callable<T>() {
+        @Override
+        public T call() throws RepositoryException {
+          // The number of threads matches the number of session
+          // pairs, so there is always an idle pair here. Both queues
+          // are taken from and returned to together, so the pairs
+          // stay matched.
+          Client traversalClient;
+          Client sysadminClient;
+          synchronized (SessionPool.this) {
+            traversalClient = traversalClients.remove();
+            sysadminClient = sysadminClients.remove();
+          }
+          try {
+            return task.call(traversalClient, sysadminClient);
+          } finally {
+            synchronized (SessionPool.this) {
+              traversalClients.add(traversalClient);
+              sysadminClients.add(sysadminClient);
+            }
+          }
+        }
+      });
+  }
+}
@@ -88,9 +88,13 @@ class SqlQueries {
   private static final String DELETE_ORDER_BY =
       " order by AuditDate, EventID";
 
-  /** A looser sort order for deletes using the standard index. */
+  /**
+   * The sort order for deletes using the standard index. The events
+   * at the same date must be in EventID order to advance the delete
+   * window's floor EventID.
+   */
   private static final String DELETE_ORDER_BY_STANDARD =
-      " order by AuditDate";
+      " order by AuditDate, EventID";
 
   /** Select list column for AuditDate; Oracle still lacks milliseconds. */
   /* Quotes are doubled because this is passed through MessageFormat.format. */
@@ -138,7 +142,8 @@ class SqlQueries {
           + "where -b.DataID = c.DataID and c.ParentID <> -1) "
           + "as StepParentID from DTree b)" },
         { "HybridGenealogist.getParents.where",
-          "DataID in ({0})" },
+          // The object IDs, as a SQL condition
+          "{0}" },
 
         { "LivelinkConnector.validateIncludedLocationNodes.select",
           new String[] {
@@ -151,11 +156,11 @@ class SqlQueries {
         { "LivelinkTraversalManager.getDescendants.where",
           "(DataID in ({0}) or "
           + "DataID in (select DataID from DTreeAncestors where "
-          + "DataID in ({1}) and AncestorID in ({2})))" },
+          + "{1} and AncestorID in ({2})))" },
 
         { "LivelinkTraversalManager.getMatching.where",
-          // Candidates
-          "DataID in ({0})"
+          // Candidates, as a SQL condition
+          "{0}"
 
           // Included nodes
           // If we have an explict list of start locations, build a
@@ -178,6 +183,9 @@ class SqlQueries {
           // sqlWhereCondition
           + "{10,choice,0#|1# and ({11})}"
 
+          // Excluded content types
+          + "{14,choice,0#|1# and (MimeType is null or MimeType not in ({15}))}"
+
           // highestModifyDate: The correct timestamp literal syntax
           // must be supplied by the caller.
           + " and ModifyDate <= {12}"
@@ -187,7 +195,9 @@ class SqlQueries {
         { "LivelinkTraversalManager.getMatchingDescendants.where",
           // The correct timestamp literal syntax must be supplied by
           // the caller.
-          "DataID in ({0}) and ModifyDate <= {1}" + ORDER_BY },
+          "{0} and ModifyDate <= {1}"
+          + "{2,choice,0#|1# and (MimeType is null or MimeType not in ({3}))}"
+          + ORDER_BY },
 
         { "LivelinkAuthorizationManager.getExcludedVolumeId.select",
           new String[] {
@@ -205,7 +215,8 @@ class SqlQueries {
         { "LivelinkAuthorizationManager.addAuthorizedDocids.from",
           "DTree" },
         { "LivelinkAuthorizationManager.addAuthorizedDocids.where",
-          "DataID in ({0})"
+          // The docids, as a SQL condition
+          "{0}"
 
           // If we are excluding deleted documents from the result
           // set, add a subquery to eliminate those docids that are in
@@ -233,6 +244,62 @@ class SqlQueries {
           + "and Anc.AncestorID not in (select AncestorID from DTreeAncestors "
           + "where DataID in ({9}))}"
           + ")'}" },
+
+        { "BulkAclLoader.getAcls.select",
+          new String[] {
+            "DataID",
+            "RightID",
+            "Permissions",
+            "ID",
+            "Name",
+            "Type",
+            "GroupID",
+            "UserData",
+            "UserPrivileges",
+            "Deleted" } },
+        { "BulkAclLoader.getAcls.from",
+          // The outer join keeps the entries for the special rights,
+          // such as Public Access, that are not in KUAF.
+          "(select b.DataID, b.RightID, b.Permissions, k.ID, k.Name, "
+          + "k.Type, k.GroupID, k.UserData, k.UserPrivileges, k.Deleted "
+          + "from DTreeACL b left outer join KUAF k on b.RightID = k.ID)" },
+        { "BulkAclLoader.getAcls.where",
+          // The DataIDs, as a SQL condition
+          "{0}" },
+
+        { "BulkCategoryLoader.getAttributes.select",
+          new String[] {
+            "DataID",
+            "DefID",
+            "DefVerNum",
+            "DefName",
+            "AttrID",
+            "EntryNum",
+            "ValInt",
+            "ValReal",
+            "ValDate",
+            "ValStr",
+            "ValLong" } },
+        { "BulkCategoryLoader.getAttributes.from",
+          // Only the values for the current version of each object,
+          // with the category names.
+          "(select b.ID as DataID, b.DefID, b.DefVerNum, c.Name as DefName, "
+          + "b.AttrID, b.EntryNum, b.ValInt, b.ValReal, b.ValDate, b.ValStr, "
+          + "b.ValLong from LLAttrData b "
+          + "join DTree d on b.ID = d.DataID and b.VerNum = d.VersionNum "
+          + "join DTree c on b.DefID = c.DataID)" },
+        { "BulkCategoryLoader.getAttributes.where",
+          // The DataIDs, as a SQL condition
+          "{0} order by DataID, DefID, AttrID, EntryNum" },
+
+        // The select list is the configured VersionInfo fields.
+        { "BulkVersionLoader.getVersions.from",
+          // Only the current version of each object.
+          "(select v.*, v.DocID as DataID from DVersData v "
+          + "join DTree d on v.DocID = d.DataID and v.Version = d.VersionNum)" },
+        { "BulkVersionLoader.getVersions.where",
+          // The DataIDs, as a SQL condition
+          "{0}" },
       };
     }
   }
@@ -315,12 +382,19 @@ class SqlQueries {
           // The double ORDER BY is required because the first applies
           // to the subquery using TOP, and the second ensures that the
           // returned results are sorted (for accurate checkpoints).
-          "DataID in (select top {6,number,#} T.DataID from DTree T"
+          // The shard predicate is applied in a derived table to avoid
+          // yet another where or and choice.
+          "DataID in (select top {6,number,#} T.DataID from "
+          + "{7,choice,0#DTree|1#'(select * from DTree where "
+          + "DataID % {8,number,#} = {9,number,#})'} T"
           + "{0,choice,0#|1# join DTreeAncestors Anc on T.DataID = Anc.DataID "
           + "where (AncestorID in ({1}) or T.DataID in ({2}))}"
           + "{3,choice,0#|1#'{0,choice,0# where |1# and }"
           + "(ModifyDate > ''''{4}'''' or (ModifyDate = ''''{4}'''' "
           + "and T.DataID > {5,number,#}))'}"
+          // Excluded node types, which would never match.
+          + "{10,choice,0#|1#'{12,choice,0# where |1# and }"
+          + "SubType not in ({11})'}"
           + " order by ModifyDate, T.DataID)" + ORDER_BY },
 
         { "LivelinkTraversalManager.getDeletesCustomIndex.select",
@@ -340,6 +414,8 @@ class SqlQueries {
           + "AuditID = 2 and (AuditDate > ''{0}'' or "
           + "(AuditDate = ''{0}'' and EventID > {1,number,#}))"
           + "{2,choice,0#|1 and SubType not in ({3})}"
+          // Only include the items in this connector's shard.
+          + "{5,choice,0#|1#' and DataID % {6,number,#} = {7,number,#}'}"
           + DELETE_ORDER_BY + ")" + DELETE_ORDER_BY},
 
         { "LivelinkTraversalManager.getDeletesStandardIndex.select",
@@ -356,7 +432,67 @@ class SqlQueries {
           // Exclude items with a SubType we know we excluded when indexing.
           "AuditStr like ''Delet_'' and AuditDate >= ''{0}''"
           + "{1,choice,0#|1 and SubType not in ({2})}"
-          + DELETE_ORDER_BY_STANDARD }
+          // Only include the items in this connector's shard.
+          + "{3,choice,0#|1#' and DataID % {4,number,#} = {5,number,#}'}"
+          // Skip the events at the checkpoint date below the floor.
+          + "{6,choice,0#|1#' and (AuditDate > ''''{0}'''' "
+          + "or EventID > {7,number,#})'}"
+          + DELETE_ORDER_BY_STANDARD },
+
+        { "LivelinkTraversalManager.getAuditEvents.select",
+          new String[] {
+            "GoogleAuditDate",
+            "EventID",
+            "DataID" } },
+        { "LivelinkTraversalManager.getAuditEvents.from",
+          DAUDITNEW_VIEW_SQL_SERVER },
+        { "LivelinkTraversalManager.getAuditEvents.where",
+          // Only include the configured events after the checkpoint.
+          "EventID in (select top {3,number,#} EventID from DAuditNew where "
+          + "AuditID in ({2}) and (AuditDate > ''{0}'' or "
+          + "(AuditDate = ''{0}'' and EventID > {1,number,#}))"
+          // Only include the items in this connector's shard.
+          + "{4,choice,0#|1#' and DataID % {5,number,#} = {6,number,#}'}"
+          + DELETE_ORDER_BY + ")" + DELETE_ORDER_BY },
+
+        { "LivelinkTraversalManager.getScopeRemovals.select",
+          new String[] {
+            "DataID" } },
+        { "LivelinkTraversalManager.getScopeRemovals.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getScopeRemovals.where",
+          // Select the items in the given subtrees in DataID order,
+          // after the checkpoint.
+          "DataID in (select top {3,number,#} DataID from DTree where "
+          + "(DataID in (select DataID from DTreeAncestors "
+          + "where AncestorID in ({0})) or DataID in ({1})) "
+          + "and DataID > {2,number,#}"
+          // Only include the items in this connector's shard.
+          + "{4,choice,0#|1#' and DataID % {5,number,#} = {6,number,#}'}"
+          + " order by DataID) order by DataID" },
+
+        { "LivelinkTraversalManager.getReconciliationIds.select",
+          new String[] {
+            "DataID" } },
+        { "LivelinkTraversalManager.getReconciliationIds.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getReconciliationIds.where",
+          // Select the next chunk of items in DataID order.
+          "DataID in (select top {1,number,#} DataID from DTree where "
+          + "DataID > {0,number,#}"
+          // Exclude the items in excluded volumes or of excluded types.
+          + "{2,choice,0#|1# and -OwnerID not in (select DataID from DTree "
+          + "where SubType in ({3}))}"
+          + "{4,choice,0#|1# and SubType not in ({5})}"
+          // Only include the items in the included and excluded locations.
+          + "{9,choice,0#|1# and (DataID in (select DataID from DTreeAncestors "
+          + "where AncestorID in ({10})) or DataID in ({11}))}"
+          + "{12,choice,0#|1# and DataID not in (select DataID from "
+          + "DTreeAncestors where AncestorID in ({13})) "
+          + "and DataID not in ({14})}"
+          // Only include the items in this connector's shard.
+          + "{6,choice,0#|1#' and DataID % {7,number,#} = {8,number,#}'}"
+          + " order by DataID) order by DataID" }
       };
     }
   }
@@ -439,6 +575,10 @@ class SqlQueries {
           + "(ModifyDate > TIMESTAMP''''{4}'''' or "
           + "(ModifyDate = TIMESTAMP''''{4}'''' and DataID > {5,number,#})) "
           + "and '}"
+          // Excluded node types, which would never match.
+          + "{10,choice,0#|1#SubType not in ({11}) and }"
+          // Only include the items in this connector's shard.
+          + "{7,choice,0#|1#'mod(DataID, {8,number,#}) = {9,number,#} and '}"
           + "rownum <= {6,number,#}" },
 
         { "LivelinkTraversalManager.getDeletesCustomIndex.select",
@@ -456,7 +596,9 @@ class SqlQueries {
           // Exclude items with a SubType we know we excluded when indexing.
           "AuditID = 2 and (AuditDate > TIMESTAMP''{0}'' or "
           + "(AuditDate = TIMESTAMP''{0}'' and EventID > {1,number,#}))"
-          + "{2,choice,0#|1# and SubType not in ({3})} "
+          + "{2,choice,0#|1# and SubType not in ({3})}"
+          // Only include the items in this connector's shard.
+          + "{5,choice,0#|1#' and mod(DataID, {6,number,#}) = {7,number,#}'} "
           + "and rownum <= {4,number,#}" },
 
         { "LivelinkTraversalManager.getDeletesStandardIndex.select",
@@ -472,8 +614,65 @@ class SqlQueries {
           // Only include delete events after the checkpoint.
           // Exclude items with a SubType we know we excluded when indexing.
           "AuditStr like ''Delet_'' and AuditDate >= TIMESTAMP''{0}''"
-          + "{1,choice,0#|1# and SubType not in ({2})} "
-          + DELETE_ORDER_BY_STANDARD }
+          + "{1,choice,0#|1# and SubType not in ({2})}"
+          // Only include the items in this connector's shard.
+          + "{3,choice,0#|1#' and mod(DataID, {4,number,#}) = {5,number,#}'}"
+          // Skip the events at the checkpoint date below the floor.
+          + "{6,choice,0#|1#' and (AuditDate > TIMESTAMP''''{0}'''' "
+          + "or EventID > {7,number,#})'} "
+          + DELETE_ORDER_BY_STANDARD },
+
+        { "LivelinkTraversalManager.getAuditEvents.select",
+          new String[] {
+            "GoogleAuditDate",
+            "EventID",
+            "DataID" } },
+        { "LivelinkTraversalManager.getAuditEvents.from",
+          DAUDITNEW_VIEW_ORACLE },
+        { "LivelinkTraversalManager.getAuditEvents.where",
+          // Only include the configured events after the checkpoint.
+          "AuditID in ({2}) and (AuditDate > TIMESTAMP''{0}'' or "
+          + "(AuditDate = TIMESTAMP''{0}'' and EventID > {1,number,#}))"
+          // Only include the items in this connector's shard.
+          + "{4,choice,0#|1#' and mod(DataID, {5,number,#}) = {6,number,#}'} "
+          + "and rownum <= {3,number,#}" },
+
+        { "LivelinkTraversalManager.getScopeRemovals.select",
+          new String[] {
+            "DataID" } },
+        { "LivelinkTraversalManager.getScopeRemovals.from",
+          "(select DataID from DTree order by DataID)" },
+        { "LivelinkTraversalManager.getScopeRemovals.where",
+          // Select the items in the given subtrees in DataID order,
+          // after the checkpoint.
+          "(DataID in (select DataID from DTreeAncestors "
+          + "where AncestorID in ({0})) or DataID in ({1})) "
+          + "and DataID > {2,number,#}"
+          // Only include the items in this connector's shard.
+          + "{4,choice,0#|1#' and mod(DataID, {5,number,#}) = {6,number,#}'} "
+          + "and rownum <= {3,number,#}" },
+
+        { "LivelinkTraversalManager.getReconciliationIds.select",
+          new String[] {
+            "DataID" } },
+        { "LivelinkTraversalManager.getReconciliationIds.from",
+          "(select DataID, OwnerID, SubType from DTree order by DataID)" },
+        { "LivelinkTraversalManager.getReconciliationIds.where",
+          // Select the next chunk of items in DataID order.
+          "DataID > {0,number,#}"
+          // Exclude the items in excluded volumes or of excluded types.
+          + "{2,choice,0#|1# and -OwnerID not in (select DataID from DTree "
+          + "where SubType in ({3}))}"
+          + "{4,choice,0#|1# and SubType not in ({5})}"
+          // Only include the items in the included and excluded locations.
+          + "{9,choice,0#|1# and (DataID in (select DataID from DTreeAncestors "
+          + "where AncestorID in ({10})) or DataID in ({11}))}"
+          + "{12,choice,0#|1# and DataID not in (select DataID from "
+          + "DTreeAncestors where AncestorID in ({13})) "
+          + "and DataID not in ({14})}"
+          // Only include the items in this connector's shard.
+          + "{6,choice,0#|1#' and mod(DataID, {7,number,#}) = {8,number,#}'} "
+          + "and rownum <= {1,number,#}" }
       };
     }
   }
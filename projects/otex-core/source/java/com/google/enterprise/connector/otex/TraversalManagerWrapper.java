@@ -24,6 +24,8 @@ import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.TraversalContextAware;
 import com.google.enterprise.connector.spi.TraversalManager;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -103,9 +105,89 @@ class TraversalManagerWrapper
       sysadminClient = traversalClient;
     }
 
-    return new LivelinkTraversalManager(connector, traversalClient,
-        currentUsername, sysadminClient,
+    // Pipelined traversal needs a second pair of sessions for the
+    // prefetch queries. With HTTP tunneling we get a new traversal
+    // manager for each batch, so there is nothing to prefetch into.
+    Client prefetchTraversalClient;
+    Client prefetchSysadminClient;
+    if (connector.getUsePipelinedTraversal()
+        && !connector.getUseHttpTunneling()) {
+      prefetchTraversalClient = clientFactory.createClient();
+      if (sysadminClient == traversalClient) {
+        prefetchSysadminClient = prefetchTraversalClient;
+      } else {
+        prefetchTraversalClient.ImpersonateUserEx(traversalUsername,
+            connector.getDomainName());
+        prefetchSysadminClient = clientFactory.createClient();
+      }
+    } else {
+      prefetchTraversalClient = null;
+      prefetchSysadminClient = null;
+    }
+
+    // The deleted items query is run as the system administrator on
+    // its own session, so that it does not wait on the candidates query.
+    Client deletesClient;
+    if (connector.getUseConcurrentTraversalQueries()
+        && connector.getTrackDeletedItems()
+        && !connector.getUseHttpTunneling()) {
+      deletesClient = clientFactory.createClient();
+    } else {
+      deletesClient = null;
+    }
+
+    // The document metadata is collected as the traversal user.
+    MetadataFetcher metadataFetcher;
+    int metadataSessions = connector.getMetadataSessions();
+    if (metadataSessions > 0 && !connector.getUseHttpTunneling()) {
+      List<Client> metadataClients = new ArrayList<Client>(metadataSessions);
+      for (int i = 0; i < metadataSessions; i++) {
+        Client metadataClient = clientFactory.createClient();
+        if (sysadminClient != traversalClient) {
+          metadataClient.ImpersonateUserEx(traversalUsername,
+              connector.getDomainName());
+        }
+        metadataClients.add(metadataClient);
+      }
+      metadataFetcher = new MetadataFetcher(connector, metadataClients);
+    } else {
+      metadataFetcher = null;
+    }
+
+    // Each slice of a time-sliced initial traversal gets its own pair
+    // of sessions, with the same impersonation as the main pair.
+    SessionPool slicePool;
+    int initialCrawlSlices = connector.getInitialCrawlSlices();
+    if (initialCrawlSlices > 1 && !connector.getUseHttpTunneling()) {
+      List<Client> sliceTraversalClients =
+          new ArrayList<Client>(initialCrawlSlices);
+      List<Client> sliceSysadminClients =
+          new ArrayList<Client>(initialCrawlSlices);
+      for (int i = 0; i < initialCrawlSlices; i++) {
+        Client sliceTraversalClient = clientFactory.createClient();
+        sliceTraversalClients.add(sliceTraversalClient);
+        if (sysadminClient == traversalClient) {
+          sliceSysadminClients.add(sliceTraversalClient);
+        } else {
+          sliceTraversalClient.ImpersonateUserEx(traversalUsername,
+              connector.getDomainName());
+          sliceSysadminClients.add(clientFactory.createClient());
+        }
+      }
+      slicePool = new SessionPool(sliceTraversalClients,
+          sliceSysadminClients, "LivelinkSlice-%d");
+    } else {
+      slicePool = null;
+    }
+
+    LivelinkTraversalManager ltm = new LivelinkTraversalManager(connector,
+        traversalClient, currentUsername, sysadminClient,
         connector.getContentHandler(traversalClient));
+    ltm.setPrefetchClients(prefetchTraversalClient, prefetchSysadminClient);
+    ltm.setDeletesClient(deletesClient);
+    ltm.setMetadataFetcher(metadataFetcher);
+    ltm.setSlicePool(slicePool);
+    return ltm;
   }
 
   private String getCurrentUsername(Client client) {
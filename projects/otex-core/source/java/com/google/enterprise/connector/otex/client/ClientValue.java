@@ -228,6 +228,30 @@ public interface ClientValue {
      */
     long toLong(int row, String field) throws RepositoryException;
 
+    /**
+     * Gets the ordinal field from the given row as a
+     * <code>ClientValue</code> value.
+     *
+     * @param row a zero-based row index
+     * @param column a zero-based field index, in the order of
+     * <code>enumerateNames</code>
+     * @return a <code>ClientValue</code> field value
+     * @since 3.4
+     */
+    ClientValue toValue(int row, int column) throws RepositoryException;
+
+    /**
+     * Gets the ordinal field from the given row as an integer value.
+     * This avoids looking up the field name in every row.
+     *
+     * @param row a zero-based row index
+     * @param column a zero-based field index, in the order of
+     * <code>enumerateNames</code>
+     * @return an integer field value
+     * @since 3.4
+     */
+    int toInteger(int row, int column) throws RepositoryException;
+
     /**
      * Gets the named field from the given row as a string value.
      *
@@ -0,0 +1,51 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+/** Tests the {@link AuditWatcher} class. */
+public class AuditWatcherTest extends TestCase {
+  private AuditWatcher watcher;
+
+  protected void setUp() {
+    watcher = new AuditWatcher(1000L);
+  }
+
+  public void testInitial() {
+    assertFalse(watcher.isQuiet("42", 0L));
+  }
+
+  public void testIdle() {
+    watcher.setIdle("42", 0L);
+    assertTrue(watcher.isQuiet("42", 999L));
+  }
+
+  public void testNewEvent() {
+    watcher.setIdle("42", 0L);
+    assertFalse(watcher.isQuiet("43", 1L));
+  }
+
+  public void testExpired() {
+    watcher.setIdle("42", 0L);
+    assertFalse(watcher.isQuiet("42", 1000L));
+  }
+
+  public void testBusy() {
+    watcher.setIdle("42", 0L);
+    watcher.setBusy();
+    assertFalse(watcher.isQuiet("42", 1L));
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.spi.SimpleTraversalContext;
+
+import junit.framework.TestCase;
+
+/** Tests the {@link BatchDeadline} class. */
+public class BatchDeadlineTest extends TestCase {
+  private final SimpleTraversalContext traversalContext =
+      new SimpleTraversalContext();
+
+  public void testNoTraversalContext() {
+    BatchDeadline deadline = new BatchDeadline(null, 0L);
+    deadline.addDocument(1000000L);
+    assertTrue(deadline.hasTimeForDocument(Long.MAX_VALUE - 1));
+  }
+
+  public void testNoTimeLimit() {
+    traversalContext.setTraversalTimeLimitSeconds(0);
+    BatchDeadline deadline = new BatchDeadline(traversalContext, 0L);
+    assertTrue(deadline.hasTimeForDocument(1000000L));
+  }
+
+  public void testNoDocuments() {
+    traversalContext.setTraversalTimeLimitSeconds(10);
+    BatchDeadline deadline = new BatchDeadline(traversalContext, 1000L);
+    assertEquals(-1.0, deadline.getAverageMillis());
+    assertTrue(deadline.hasTimeForDocument(10999L));
+    assertFalse(deadline.hasTimeForDocument(11000L));
+  }
+
+  public void testAverage() {
+    traversalContext.setTraversalTimeLimitSeconds(10);
+    BatchDeadline deadline = new BatchDeadline(traversalContext, 0L);
+    deadline.addDocument(1000L);
+    assertEquals(1000.0, deadline.getAverageMillis());
+    deadline.addDocument(2000L);
+    assertEquals(1200.0, deadline.getAverageMillis(), 0.001);
+
+    // Twice the average cost must fit before the deadline.
+    assertTrue(deadline.hasTimeForDocument(7500L));
+    assertFalse(deadline.hasTimeForDocument(7600L));
+  }
+
+  /** Tests that the time between documents is part of their cost. */
+  public void testEndDocument() {
+    traversalContext.setTraversalTimeLimitSeconds(10);
+    BatchDeadline deadline = new BatchDeadline(traversalContext, 0L);
+    deadline.endDocument(0L, 100L);
+    assertEquals(100.0, deadline.getAverageMillis());
+
+    // The second document started at 500, but the cost starts at 100.
+    deadline.endDocument(500L, 1100L);
+    assertEquals(280.0, deadline.getAverageMillis(), 0.001);
+  }
+
+  public void testSkipDocument() {
+    traversalContext.setTraversalTimeLimitSeconds(10);
+    BatchDeadline deadline = new BatchDeadline(traversalContext, 0L);
+
+    // Skipped documents before the first one are not counted.
+    deadline.skipDocument(0L, 10L);
+    deadline.endDocument(10L, 110L);
+    assertEquals(100.0, deadline.getAverageMillis());
+
+    // The skipped documents are left out of the next cost of 100.
+    deadline.skipDocument(200L, 210L);
+    deadline.skipDocument(210L, 220L);
+    deadline.endDocument(220L, 230L);
+    assertEquals(100.0, deadline.getAverageMillis(), 0.001);
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+/** Tests the {@link BatchSizer} class. */
+public class BatchSizerTest extends TestCase {
+  private BatchSizer sizer;
+
+  protected void setUp() {
+    sizer = new BatchSizer();
+  }
+
+  public void testInitialSize() {
+    assertEquals(100, sizer.getCandidatesSize(100, -1L));
+  }
+
+  public void testSmallBatchHint() {
+    assertEquals(1, sizer.getCandidatesSize(1, -1L));
+  }
+
+  public void testMaximumSize() {
+    assertEquals(BatchSizer.MAX_CANDIDATES,
+        sizer.getCandidatesSize(5 * BatchSizer.MAX_CANDIDATES, -1L));
+  }
+
+  public void testSparseCandidatesSize() {
+    assertEquals(1000, BatchSizer.getSparseCandidatesSize(100));
+    assertEquals(BatchSizer.MAX_CANDIDATES,
+        BatchSizer.getSparseCandidatesSize(BatchSizer.MAX_CANDIDATES));
+  }
+
+  public void testSparseResults() {
+    sizer.update(100, 10, -1L);
+    int size = sizer.getCandidatesSize(100, -1L);
+    assertTrue(String.valueOf(size), size > 100);
+    assertTrue(String.valueOf(size), size <= BatchSizer.MAX_CANDIDATES);
+  }
+
+  public void testNoResults() {
+    for (int i = 0; i < 10; i++) {
+      sizer.update(100, 0, -1L);
+    }
+    assertTrue(String.valueOf(sizer.getSelectivity()),
+        sizer.getSelectivity() > 0.0);
+    assertEquals(BatchSizer.MAX_CANDIDATES,
+        sizer.getCandidatesSize(100, -1L));
+  }
+
+  public void testNoCandidates() {
+    sizer.update(0, 0, 1000L);
+    assertEquals(1.0, sizer.getSelectivity(), 0.0);
+    assertEquals(100, sizer.getCandidatesSize(100, 1L));
+  }
+
+  public void testSlowQueries() {
+    sizer.update(100, 10, 10000L);
+
+    // 100 ms per candidate, and a quarter of 20 seconds is 50 candidates.
+    assertEquals(50, sizer.getCandidatesSize(100, 20000L));
+
+    // With no time limit, the selectivity is the only limit.
+    assertTrue(sizer.getCandidatesSize(100, -1L) > 100);
+  }
+
+  public void testMinimumSize() {
+    sizer.update(100, 100, 10000L);
+    assertEquals(BatchSizer.MIN_CANDIDATES,
+        sizer.getCandidatesSize(100, 0L));
+  }
+}
@@ -18,13 +18,20 @@ import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientFactory;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.otex.client.ClientValueFactory;
+import com.google.enterprise.connector.otex.client.mock.MockClient;
 import com.google.enterprise.connector.otex.client.mock.MockClientFactory;
+import com.google.enterprise.connector.otex.client.mock.MockClientValue;
 import com.google.enterprise.connector.otex.client.mock.MockClientValueFactory;
+import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.Value;
 
 import junit.framework.TestCase;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class CategoryHandlerTest extends TestCase {
   private static final Integer CATEGORY_ID = new Integer(42);
@@ -41,6 +48,17 @@ public class CategoryHandlerTest extends TestCase {
 
   private CategoryHandler getObjectUnderTest(String includedCategories)
       throws RepositoryException {
+    return getObjectUnderTest(includedCategories, null);
+  }
+
+  /**
+   * Creates a category handler.
+   *
+   * @param client the client to use, or {@code null} to get one from
+   *     the connector
+   */
+  private CategoryHandler getObjectUnderTest(String includedCategories,
+      Client client) throws RepositoryException {
     LivelinkConnector connector = new LivelinkConnector(
         "com.google.enterprise.connector.otex.client.mock.MockClientFactory");
     connector.setServer(System.getProperty("connector.server"));
@@ -53,8 +71,10 @@ public class CategoryHandlerTest extends TestCase {
     connector.setExcludedCategories("none");
     connector.login();
 
-    ClientFactory clientFactory = connector.getClientFactory();
-    Client client = clientFactory.createClient();
+    if (client == null) {
+      ClientFactory clientFactory = connector.getClientFactory();
+      client = clientFactory.createClient();
+    }
     return new CategoryHandler(connector, client);
   }
 
@@ -133,4 +153,236 @@ public class CategoryHandlerTest extends TestCase {
     getAttributeValue(categoryHandler, attrInfo);
     assertNull(categoryHandler.searchableCache);
   }
+
+  /** The category with attribute IDs. */
+  private static final int BULK_CATEGORY_ID = 5000;
+
+  /** The category without attribute IDs, from an old version of Livelink. */
+  private static final int LAPI_CATEGORY_ID = 6000;
+
+  /**
+   * A client with the category definitions. The attributes of both
+   * categories are a multi-value text field, Colors, a Boolean, Done,
+   * and an attribute set, Address, with a text field, City.
+   */
+  private static class CategoryClient extends MockClient {
+    private final ClientValueFactory valueFactory =
+        new MockClientValueFactory();
+
+    private final List<Integer> lapiObjectIds = new ArrayList<Integer>();
+
+    /** Gets the IDs of the objects whose categories were read with LAPI. */
+    public List<Integer> getLapiObjectIds() {
+      return lapiObjectIds;
+    }
+
+    @Override
+    public ClientValue ListObjectCategoryIDs(ClientValue objectIdAssoc)
+        throws RepositoryException {
+      lapiObjectIds.add(objectIdAssoc.toInteger("ID"));
+      return valueFactory.createList();
+    }
+
+    /** Returns the category ID in place of the category version. */
+    @Override
+    public ClientValue GetObjectAttributesEx(ClientValue objectIdAssoc,
+        ClientValue categoryIdAssoc) throws RepositoryException {
+      return new MockClientValue(new String[] { "ID" },
+          new Object[] { categoryIdAssoc.toInteger("ID") });
+    }
+
+    @Override
+    public ClientValue AttrListNames(ClientValue categoryVersion,
+        ClientValue attributeSetPath) throws RepositoryException {
+      ClientValue attrNames = valueFactory.createList();
+      if (attributeSetPath == null) {
+        attrNames.add("Colors");
+        attrNames.add("Done");
+        attrNames.add("Address");
+      } else {
+        attrNames.add("City");
+      }
+      return attrNames;
+    }
+
+    @Override
+    public ClientValue AttrGetInfo(ClientValue categoryVersion,
+        String attributeName, ClientValue attributeSetPath)
+        throws RepositoryException {
+      int attrType;
+      int attrId;
+      if (attributeName.equals("Colors")) {
+        attrType = Client.ATTR_TYPE_STRFIELD;
+        attrId = 2;
+      } else if (attributeName.equals("Done")) {
+        attrType = Client.ATTR_TYPE_BOOL;
+        attrId = 3;
+      } else if (attributeName.equals("Address")) {
+        attrType = Client.ATTR_TYPE_SET;
+        attrId = 4;
+      } else {
+        attrType = Client.ATTR_TYPE_STRFIELD;
+        attrId = 5;
+      }
+      if (categoryVersion.toInteger("ID") == LAPI_CATEGORY_ID) {
+        return new MockClientValue(new String[] { "Type" },
+            new Object[] { attrType });
+      } else {
+        return new MockClientValue(new String[] { "Type", "ID" },
+            new Object[] { attrType, attrId });
+      }
+    }
+  }
+
+  private void insertDTree(int dataId, String name, int versionNum)
+      throws SQLException {
+    jdbcFixture.executeUpdate("insert into DTree"
+        + "(DataID, ParentID, PermID, SubType, Name, VersionNum) values("
+        + dataId + ", 2000, 0, 144, '" + name + "', " + versionNum + ")");
+  }
+
+  private void insertAttrData(int id, int verNum, int defId, int attrId,
+      int entryNum, Integer valInt, String valStr) throws SQLException {
+    jdbcFixture.executeUpdate("insert into LLAttrData"
+        + "(ID, VerNum, DefID, DefVerNum, AttrID, EntryNum, ValInt, ValStr) "
+        + "values(" + id + ", " + verNum + ", " + defId + ", 1, " + attrId
+        + ", " + entryNum + ", " + valInt + ", "
+        + ((valStr == null) ? "NULL" : "'" + valStr + "'") + ")");
+  }
+
+  /**
+   * Reads the category attributes of the given documents in bulk, and
+   * collects them for the first document.
+   */
+  private LivelinkDocument collectBulkAttributes(
+      CategoryHandler categoryHandler, int... dataIds)
+      throws RepositoryException {
+    Object[][] rows = new Object[dataIds.length][];
+    for (int i = 0; i < dataIds.length; i++) {
+      rows[i] = new Object[] { dataIds[i] };
+    }
+    ClientValue recArray =
+        new MockClientValue(new String[] { "DataID" }, rows);
+    categoryHandler.loadBatch(new SqlQueries(false), recArray, rows.length);
+
+    LivelinkDocument props = new LivelinkDocument(dataIds[0], 10);
+    categoryHandler.collectCategoryAttributes(dataIds[0], null, props);
+    return props;
+  }
+
+  private List<String> getValues(LivelinkDocument props, String name)
+      throws RepositoryException {
+    List<String> values = new ArrayList<String>();
+    Property property = props.findProperty(name);
+    if (property != null) {
+      Value value;
+      while ((value = property.nextValue()) != null) {
+        values.add(value.toString());
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Tests that multiple values are returned in EntryNum order, and
+   * that only the values for the current version are returned.
+   */
+  public void testLoadBatch_multiValue()
+      throws RepositoryException, SQLException {
+    insertDTree(BULK_CATEGORY_ID, "Bulk", 1);
+    insertDTree(100, "Document", 2);
+    insertAttrData(100, 1, BULK_CATEGORY_ID, 2, 1, null, "green");
+    insertAttrData(100, 2, BULK_CATEGORY_ID, 2, 3, null, "blue");
+    insertAttrData(100, 2, BULK_CATEGORY_ID, 2, 1, null, "red");
+    insertAttrData(100, 2, BULK_CATEGORY_ID, 2, 2, null, "yellow");
+
+    CategoryClient client = new CategoryClient();
+    CategoryHandler categoryHandler = getObjectUnderTest("all,name", client);
+    LivelinkDocument props = collectBulkAttributes(categoryHandler, 100);
+
+    assertEquals(Arrays.asList("red", "yellow", "blue"),
+        getValues(props, "Colors"));
+    assertEquals(Arrays.asList("Bulk"), getValues(props, "Category"));
+    assertEquals(Arrays.asList(), client.getLapiObjectIds());
+  }
+
+  /**
+   * Tests that the attributes in attribute sets are returned, and the
+   * rows for the attribute sets themselves are ignored.
+   */
+  public void testLoadBatch_attributeSet()
+      throws RepositoryException, SQLException {
+    insertDTree(BULK_CATEGORY_ID, "Bulk", 1);
+    insertDTree(100, "Document", 1);
+    insertAttrData(100, 1, BULK_CATEGORY_ID, 4, 1, null, null);
+    insertAttrData(100, 1, BULK_CATEGORY_ID, 5, 1, null, "Boston");
+
+    CategoryClient client = new CategoryClient();
+    CategoryHandler categoryHandler = getObjectUnderTest("all", client);
+    LivelinkDocument props = collectBulkAttributes(categoryHandler, 100);
+
+    assertEquals(Arrays.asList("Boston"), getValues(props, "City"));
+    assertEquals(Arrays.asList(), getValues(props, "Address"));
+    assertEquals(Arrays.asList(), client.getLapiObjectIds());
+  }
+
+  /** Tests that Booleans stored in ValInt are returned as Booleans. */
+  public void testLoadBatch_boolean()
+      throws RepositoryException, SQLException {
+    insertDTree(BULK_CATEGORY_ID, "Bulk", 1);
+    insertDTree(100, "Document", 1);
+    insertDTree(101, "Document", 1);
+    insertAttrData(100, 1, BULK_CATEGORY_ID, 3, 1, 1, null);
+    insertAttrData(101, 1, BULK_CATEGORY_ID, 3, 1, 0, null);
+
+    CategoryClient client = new CategoryClient();
+    CategoryHandler categoryHandler = getObjectUnderTest("all", client);
+    LivelinkDocument props =
+        collectBulkAttributes(categoryHandler, 100, 101);
+    assertEquals(Arrays.asList("true"), getValues(props, "Done"));
+
+    props = new LivelinkDocument(101, 10);
+    categoryHandler.collectCategoryAttributes(101, null, props);
+    assertEquals(Arrays.asList("false"), getValues(props, "Done"));
+    assertEquals(Arrays.asList(), client.getLapiObjectIds());
+  }
+
+  /**
+   * Tests that the attributes of a category definition without
+   * attribute IDs are read with LAPI, for that document only.
+   */
+  public void testLoadBatch_unmapped()
+      throws RepositoryException, SQLException {
+    insertDTree(BULK_CATEGORY_ID, "Bulk", 1);
+    insertDTree(LAPI_CATEGORY_ID, "Lapi", 1);
+    insertDTree(100, "Document", 1);
+    insertDTree(101, "Document", 1);
+    insertAttrData(100, 1, BULK_CATEGORY_ID, 5, 1, null, "Boston");
+    insertAttrData(101, 1, BULK_CATEGORY_ID, 5, 1, null, "Chicago");
+    insertAttrData(101, 1, LAPI_CATEGORY_ID, 5, 1, null, "Denver");
+
+    CategoryClient client = new CategoryClient();
+    CategoryHandler categoryHandler = getObjectUnderTest("all", client);
+    LivelinkDocument props =
+        collectBulkAttributes(categoryHandler, 101, 100);
+    assertEquals(Arrays.asList(101), client.getLapiObjectIds());
+    assertEquals(Arrays.asList(), getValues(props, "City"));
+
+    props = new LivelinkDocument(100, 10);
+    categoryHandler.collectCategoryAttributes(100, null, props);
+    assertEquals(Arrays.asList("Boston"), getValues(props, "City"));
+    assertEquals(Arrays.asList(101), client.getLapiObjectIds());
+  }
+
+  /** Tests that the attributes are read with LAPI if the query fails. */
+  public void testLoadBatch_queryFails()
+      throws RepositoryException, SQLException {
+    jdbcFixture.executeUpdate("drop table LLAttrData");
+    insertDTree(100, "Document", 1);
+
+    CategoryClient client = new CategoryClient();
+    CategoryHandler categoryHandler = getObjectUnderTest("all", client);
+    collectBulkAttributes(categoryHandler, 100);
+    assertEquals(Arrays.asList(100), client.getLapiObjectIds());
+  }
 }
@@ -0,0 +1,82 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/** Tests the {@link DataIdBitmap} class. */
+public class DataIdBitmapTest extends TestCase {
+  public void testAdd() {
+    DataIdBitmap bitmap = new DataIdBitmap();
+    assertTrue(bitmap.isEmpty());
+    assertTrue(bitmap.add(42));
+    assertTrue(bitmap.add(6));
+    assertFalse(bitmap.add(42));
+    assertTrue(bitmap.add(-2000));
+    assertTrue(bitmap.add(1 << 20));
+    assertEquals(4, bitmap.size());
+    assertTrue(bitmap.contains(6));
+    assertTrue(bitmap.contains(-2000));
+    assertFalse(bitmap.contains(7));
+    assertEquals("[-2000, 6, 42, 1048576]",
+        Arrays.toString(bitmap.toArray()));
+  }
+
+  /** Tests a chunk that is dense enough to be stored as a bitmap. */
+  public void testAdd_dense() {
+    DataIdBitmap bitmap = new DataIdBitmap();
+    for (int i = 10000; i >= 0; i -= 2) {
+      bitmap.add(i);
+    }
+    assertEquals(5001, bitmap.size());
+    assertTrue(bitmap.contains(5000));
+    assertFalse(bitmap.contains(5001));
+    int[] ids = bitmap.toArray();
+    assertEquals(0, ids[0]);
+    assertEquals(10000, ids[ids.length - 1]);
+  }
+
+  public void testAndNot() {
+    DataIdBitmap bitmap = new DataIdBitmap();
+    DataIdBitmap other = new DataIdBitmap();
+    for (int i = 0; i < 10000; i++) {
+      bitmap.add(i);
+      if (i != 24 && i != 4242) {
+        other.add(i);
+      }
+    }
+    bitmap.add(100000);
+    other.add(100001);
+    assertEquals("[24, 4242, 100000]",
+        Arrays.toString(bitmap.andNot(other).toArray()));
+    assertEquals("[100001]", Arrays.toString(other.andNot(bitmap).toArray()));
+  }
+
+  /** Tests a dense chunk against a sparse one. */
+  public void testAndNot_mixed() {
+    DataIdBitmap dense = new DataIdBitmap();
+    DataIdBitmap sparse = new DataIdBitmap();
+    for (int i = 0; i < 5000; i++) {
+      dense.add(i);
+    }
+    for (int i = 1; i < 5000; i++) {
+      sparse.add(i);
+    }
+    assertEquals("[0]", Arrays.toString(dense.andNot(sparse).toArray()));
+    assertEquals(0, sparse.andNot(dense).size());
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+/** Tests the {@link DataIdSet} class. */
+public class DataIdSetTest extends TestCase {
+  public void testParse() {
+    DataIdSet ids = DataIdSet.parse("42,24,6,42");
+    assertEquals(3, ids.size());
+    assertEquals("6,24,42", ids.toString());
+    assertTrue(ids.contains(24));
+    assertFalse(ids.contains(25));
+  }
+
+  public void testParse_empty() {
+    assertTrue(DataIdSet.parse(null).isEmpty());
+    assertTrue(DataIdSet.parse("").isEmpty());
+  }
+
+  public void testToSqlCondition_empty() {
+    assertEquals("1 = 0", DataIdSet.EMPTY.toSqlCondition("DataID"));
+  }
+
+  public void testToSqlCondition_singles() {
+    assertEquals("DataID in (6,7,8,24)",
+        DataIdSet.parse("24,8,7,6").toSqlCondition("DataID"));
+  }
+
+  public void testToSqlCondition_range() {
+    assertEquals("DataID between 6 and 9",
+        DataIdSet.parse("9,8,7,6").toSqlCondition("DataID"));
+  }
+
+  public void testToSqlCondition_mixed() {
+    assertEquals("(DataID in (-1,2,24) or DataID between 10 and 13 "
+        + "or DataID between 100 and 104)",
+        DataIdSet.parse("-1,2,10,11,12,13,24,100,101,102,103,104")
+        .toSqlCondition("DataID"));
+  }
+
+  public void testToSqlCondition_longInList() {
+    int[] ids = new int[DataIdSet.MAX_IN_LIST + 1];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = 2 * i;
+    }
+    String condition =
+        DataIdSet.of(ids, ids.length).toSqlCondition("DataID");
+    assertTrue(condition, condition.startsWith("(DataID in (0,2,"));
+    assertTrue(condition,
+        condition.endsWith(",1998) or DataID in (2000))"));
+  }
+
+  public void testToSqlCondition_longInListAndRange() {
+    int[] ids = new int[DataIdSet.MAX_IN_LIST + 5];
+    for (int i = 0; i < DataIdSet.MAX_IN_LIST; i++) {
+      ids[i] = 2 * i;
+    }
+    for (int i = 0; i < 5; i++) {
+      ids[DataIdSet.MAX_IN_LIST + i] = 5000 + i;
+    }
+    String condition =
+        DataIdSet.of(ids, ids.length).toSqlCondition("DataID");
+    assertTrue(condition, condition.startsWith("(DataID in (0,2,"));
+    assertTrue(condition,
+        condition.endsWith(",1998) or DataID between 5000 and 5004)"));
+  }
+
+  public void testOf_count() {
+    int[] ids = { 3, 1, 2, 99 };
+    assertEquals("1,2,3", DataIdSet.of(ids, 3).toString());
+    assertEquals(3, ids[0]);
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Tests the {@link DeleteReconciler} class. */
+public class DeleteReconcilerTest extends TestCase {
+  private File directory;
+
+  private DocumentStateStore store;
+
+  private DeleteReconciler reconciler;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = TempDirectory.create("documentState");
+    store = DocumentStateStore.open(directory);
+    reconciler = new DeleteReconciler(store, 1000L, 0L);
+  }
+
+  @Override
+  protected void tearDown() {
+    TempDirectory.delete(directory);
+  }
+
+  private void feed(int... dataIds) throws IOException {
+    for (int dataId : dataIds) {
+      store.put(dataId, new DocumentStateStore.State(0L, 1, 0L, 0, 0));
+    }
+  }
+
+  private void scan(long nowMillis, int... dataIds) {
+    assertEquals(0, reconciler.getScanDataId(nowMillis));
+    reconciler.addScanned(dataIds);
+  }
+
+  public void testFirstScanDelayed() {
+    assertFalse(reconciler.isScanDue(999L));
+    assertTrue(reconciler.isScanDue(1000L));
+  }
+
+  public void testInterval() {
+    scan(1100L);
+    reconciler.finishScan();
+    assertFalse(reconciler.isScanDue(2099L));
+    assertTrue(reconciler.isScanDue(2100L));
+  }
+
+  public void testScanDataId() {
+    scan(1000L, 6, 24, 42);
+    assertEquals(42, reconciler.getScanDataId(1000L));
+    assertTrue(reconciler.isScanDue(1001L));
+    assertEquals(0, reconciler.finishScan());
+  }
+
+  public void testDeletes() throws IOException {
+    feed(6, 24, 42);
+    scan(1000L, 6, 43);
+    assertEquals(2, reconciler.finishScan());
+    assertEquals("[24]", Arrays.toString(reconciler.getPendingDeletes(1)));
+
+    // The deletes are only removed when they are fed.
+    assertEquals("[24]", Arrays.toString(reconciler.getPendingDeletes(1)));
+    reconciler.setFed(1);
+    assertNull(store.get(24));
+    assertEquals("[42]", Arrays.toString(reconciler.getPendingDeletes(10)));
+    reconciler.setFed(1);
+    assertNull(store.get(42));
+    assertEquals(0, reconciler.getPendingDeletes(10).length);
+    assertNotNull(store.get(6));
+  }
+
+  /** Tests that items that were never fed are not deleted. */
+  public void testDeletes_notFed() throws IOException {
+    feed(6);
+    scan(1000L, 43);
+    assertEquals(1, reconciler.finishScan());
+    assertEquals("[6]", Arrays.toString(reconciler.getPendingDeletes(10)));
+  }
+
+  /** Tests that items fed during a scan are not deleted by it. */
+  public void testDeletes_fedDuringScan() throws IOException {
+    feed(6);
+    scan(1000L, 6, 24);
+    feed(12);
+    assertEquals(0, reconciler.finishScan());
+  }
+
+  /** Tests that items deleted from the store during a scan are skipped. */
+  public void testDeletes_removedDuringScan() throws IOException {
+    feed(6, 24);
+    scan(1000L);
+    store.remove(24);
+    assertEquals(1, reconciler.finishScan());
+    assertEquals("[6]", Arrays.toString(reconciler.getPendingDeletes(10)));
+  }
+
+  public void testDeletes_unfed() throws IOException {
+    feed(6, 24, 42);
+    scan(1000L, 6, 42);
+    assertEquals(1, reconciler.finishScan());
+    scan(2000L, 42);
+    assertEquals(2, reconciler.finishScan());
+    assertEquals("[6, 24]",
+        Arrays.toString(reconciler.getPendingDeletes(10)));
+  }
+
+  /** Tests that the store carries the fed items across a restart. */
+  public void testRestart() throws IOException {
+    feed(6, 24);
+    scan(1000L, 6);
+    // Restart without finishing the scan or feeding the deletes.
+    reconciler = new DeleteReconciler(DocumentStateStore.open(directory),
+        1000L, 1500L);
+    assertFalse(reconciler.isScanDue(2499L));
+    scan(2500L, 6);
+    assertEquals(1, reconciler.finishScan());
+    assertEquals("[24]", Arrays.toString(reconciler.getPendingDeletes(10)));
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+/** Tests the {@link DeleteWindow} class. */
+public class DeleteWindowTest extends TestCase {
+  public void testEmpty() {
+    DeleteWindow window = new DeleteWindow();
+    assertTrue(window.isEmpty());
+    assertFalse(window.containsEvent(10042));
+    assertEquals("", window.format());
+  }
+
+  public void testContains() {
+    DeleteWindow window = new DeleteWindow();
+    window.add(1000L, 10042, 42);
+    assertTrue(window.containsEvent(10042));
+    assertFalse(window.containsEvent(10043));
+    assertTrue(window.containsDataId(1000L, 42));
+    assertFalse(window.containsDataId(2000L, 42));
+    assertFalse(window.containsDataId(1000L, 24));
+  }
+
+  public void testAdd_laterDate() {
+    DeleteWindow window = new DeleteWindow();
+    window.add(1000L, 10042, 42);
+    window.add(2000L, 10043, 24);
+    assertEquals(1, window.size());
+    assertFalse(window.containsEvent(10042));
+    assertTrue(window.containsEvent(10043));
+  }
+
+  public void testAdd_earlierDate() {
+    DeleteWindow window = new DeleteWindow();
+    window.add(2000L, 10043, 24);
+    window.add(1000L, 10042, 42);
+    assertEquals(1, window.size());
+    assertFalse(window.containsEvent(10042));
+  }
+
+  public void testAdd_full() {
+    DeleteWindow window = new DeleteWindow();
+    for (int i = 0; i <= DeleteWindow.MAX_SIZE; i++) {
+      window.add(1000L, 10000 + i, i);
+    }
+    assertEquals(DeleteWindow.MAX_SIZE, window.size());
+    assertEquals(10000, window.getFloorEventId(1000L));
+    assertTrue(window.containsEvent(10000));
+    assertTrue(window.containsEvent(10001));
+    assertTrue(window.containsEvent(10000 + DeleteWindow.MAX_SIZE));
+    assertFalse(window.containsEvent(10001 + DeleteWindow.MAX_SIZE));
+  }
+
+  /**
+   * Tests more same-second deletes than fit in the window, read again
+   * in batches the way the deletes query does, skipping the events at
+   * or below the floor.
+   */
+  public void testAdd_fullBatches() {
+    int count = 3 * DeleteWindow.MAX_SIZE + 17;
+    int batchSize = 100;
+    DeleteWindow window = new DeleteWindow();
+    int fed = 0;
+    for (int batch = 0; batch < count; batch++) {
+      if (!window.isEmpty()) {
+        window = DeleteWindow.parse(window.format());
+      }
+      long floor = window.getFloorEventId(1000L);
+      int added = 0;
+      for (int i = 0; i < count && added < batchSize; i++) {
+        long eventId = 10000 + i;
+        if (eventId <= floor) {
+          continue;
+        }
+        if (!window.containsEvent(eventId)) {
+          window.add(1000L, eventId, i);
+          fed++;
+          added++;
+        }
+      }
+      if (added == 0) {
+        break;
+      }
+    }
+    assertEquals(count, fed);
+    assertEquals(DeleteWindow.MAX_SIZE, window.size());
+    assertEquals(10000 + count - DeleteWindow.MAX_SIZE - 1,
+        window.getFloorEventId(1000L));
+    assertEquals(DeleteWindow.NO_FLOOR, window.getFloorEventId(2000L));
+  }
+
+  public void testAdd_laterDateClearsFloor() {
+    DeleteWindow window = new DeleteWindow();
+    for (int i = 0; i <= DeleteWindow.MAX_SIZE; i++) {
+      window.add(1000L, 10000 + i, i);
+    }
+    window.add(2000L, 20000, 42);
+    assertEquals(DeleteWindow.NO_FLOOR, window.getFloorEventId(2000L));
+    assertFalse(window.containsEvent(10000));
+  }
+
+  public void testFormat() {
+    DeleteWindow window = new DeleteWindow();
+    window.add(1000L, 10042, 42);
+    window.add(1000L, 10043, 24);
+    assertEquals("1000|10042:42;10043:24", window.format());
+
+    DeleteWindow parsed = DeleteWindow.parse(window.format());
+    assertEquals(window.format(), parsed.format());
+    assertTrue(parsed.containsDataId(1000L, 24));
+  }
+
+  public void testFormat_floor() {
+    DeleteWindow window = new DeleteWindow();
+    for (int i = 0; i <= DeleteWindow.MAX_SIZE; i++) {
+      window.add(1000L, 10000 + i, i);
+    }
+    assertTrue(window.format().endsWith("|10000"));
+
+    DeleteWindow parsed = DeleteWindow.parse(window.format());
+    assertEquals(window.format(), parsed.format());
+    assertEquals(10000, parsed.getFloorEventId(1000L));
+    assertTrue(parsed.containsEvent(10000));
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Tests the {@link DeliveredCheckpoint} class. */
+public class DeliveredCheckpointTest extends TestCase {
+  private File file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("deliveredCheckpoint", "");
+    assertTrue(file.delete());
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  public void testStartBatch() {
+    DeliveredCheckpoint delivered = new DeliveredCheckpoint();
+    assertEquals("cp0", delivered.startBatch("cp0"));
+    assertNull(delivered.startBatch(null));
+    assertNull(delivered.getDelivered());
+  }
+
+  public void testAbandonedBatch() {
+    DeliveredCheckpoint delivered = new DeliveredCheckpoint();
+    assertEquals("cp0", delivered.startBatch("cp0"));
+    delivered.setDelivered("cp1");
+    delivered.setDelivered("cp2");
+
+    // The batch was abandoned, so it is started again from cp0.
+    assertEquals("cp2", delivered.startBatch("cp0"));
+    delivered.setDelivered("cp3");
+    assertEquals("cp3", delivered.startBatch("cp0"));
+  }
+
+  public void testCompletedBatch() {
+    DeliveredCheckpoint delivered = new DeliveredCheckpoint();
+    delivered.startBatch("cp0");
+    delivered.setDelivered("cp1");
+
+    // The batch completed, so the next one starts from its checkpoint.
+    assertEquals("cp1", delivered.startBatch("cp1"));
+    assertNull(delivered.getDelivered());
+    assertEquals("cp0", delivered.startBatch("cp0"));
+  }
+
+  public void testClear() {
+    DeliveredCheckpoint delivered = new DeliveredCheckpoint();
+    assertNull(delivered.startBatch(null));
+    delivered.setDelivered("cp1");
+    delivered.clear();
+    assertNull(delivered.getDelivered());
+    assertNull(delivered.startBatch(null));
+  }
+
+  public void testNullCheckpoint() {
+    DeliveredCheckpoint delivered = new DeliveredCheckpoint();
+    assertNull(delivered.startBatch(null));
+    delivered.setDelivered("cp1");
+    assertEquals("cp1", delivered.startBatch(null));
+  }
+
+  public void testFile() {
+    DeliveredCheckpoint delivered =
+        new DeliveredCheckpoint(file, 1, Long.MAX_VALUE);
+    delivered.startBatch("cp0");
+    delivered.setDelivered("cp1");
+    assertTrue(file.exists());
+
+    DeliveredCheckpoint restarted = new DeliveredCheckpoint(file);
+    assertEquals("cp1", restarted.getDelivered());
+    assertEquals("cp1", restarted.startBatch("cp0"));
+  }
+
+  public void testFile_throttled() {
+    DeliveredCheckpoint delivered =
+        new DeliveredCheckpoint(file, 3, Long.MAX_VALUE);
+    delivered.startBatch("cp0");
+    delivered.setDelivered("cp1");
+    delivered.setDelivered("cp2");
+    assertNull(new DeliveredCheckpoint(file).getDelivered());
+
+    delivered.setDelivered("cp3");
+    assertEquals("cp3", new DeliveredCheckpoint(file).getDelivered());
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+  }
+
+  public void testFile_interval() {
+    DeliveredCheckpoint delivered = new DeliveredCheckpoint(file, 100, 0L);
+    delivered.startBatch("cp0");
+    delivered.setDelivered("cp1");
+    assertEquals("cp1", new DeliveredCheckpoint(file).getDelivered());
+  }
+
+  public void testFile_incomplete() throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write("cp0\ncp1\n".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+
+    DeliveredCheckpoint restarted = new DeliveredCheckpoint(file);
+    assertNull(restarted.getDelivered());
+    assertEquals("cp0", restarted.startBatch("cp0"));
+  }
+}
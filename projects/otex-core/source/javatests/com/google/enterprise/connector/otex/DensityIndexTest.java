@@ -0,0 +1,97 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.mock.MockClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/** Tests the {@link DensityIndex} class. */
+public class DensityIndexTest extends TestCase {
+  private static final LivelinkDateFormat dateFormat =
+      LivelinkDateFormat.getInstance();
+
+  /** The included items, as ModifyDate and DataID pairs. */
+  private final Object[][] items = {
+    { dateFormat.parse("2001-01-01 00:00:00"), 24 },
+    { dateFormat.parse("2001-01-01 00:00:00"), 42 },
+    { dateFormat.parse("2005-05-05 00:00:00"), 7 },
+  };
+
+  private int loads;
+
+  private DensityIndex index;
+
+  @Override
+  protected void setUp() {
+    loads = 0;
+    index = new DensityIndex(new DensityIndex.Loader() {
+        @Override
+        public ClientValue load(Date insertDate, int insertDataId, int size) {
+          loads++;
+          List<Object[]> rows = new ArrayList<Object[]>();
+          for (Object[] item : items) {
+            Date date = (Date) item[0];
+            int dataId = (Integer) item[1];
+            if (rows.size() < size && (date.after(insertDate)
+                    || (date.equals(insertDate) && dataId > insertDataId))) {
+              rows.add(item);
+            }
+          }
+          return new MockClientValue(new String[] { "ModifyDate", "DataID" },
+              rows.toArray(new Object[0][]));
+        }
+      });
+  }
+
+  public void testSkipAhead() throws RepositoryException {
+    Checkpoint checkpoint = new Checkpoint("2000-01-01 00:00:00,99");
+    assertTrue(index.skipAhead(checkpoint));
+    assertEquals("2001-01-01 00:00:00,23", checkpoint.toString());
+  }
+
+  public void testSkipAhead_sameDate() throws RepositoryException {
+    Checkpoint checkpoint = new Checkpoint("2001-01-01 00:00:00,24");
+    assertTrue(index.skipAhead(checkpoint));
+    assertEquals("2001-01-01 00:00:00,41", checkpoint.toString());
+  }
+
+  public void testSkipAhead_alreadyThere() throws RepositoryException {
+    Checkpoint checkpoint = new Checkpoint("2001-01-01 00:00:00,41");
+    assertFalse(index.skipAhead(checkpoint));
+    assertEquals("2001-01-01 00:00:00,41", checkpoint.toString());
+  }
+
+  public void testSkipAhead_pastEnd() throws RepositoryException {
+    Checkpoint checkpoint = new Checkpoint("2010-01-01 00:00:00,0");
+    assertFalse(index.skipAhead(checkpoint));
+    assertEquals("2010-01-01 00:00:00,0", checkpoint.toString());
+  }
+
+  public void testSkipAhead_cached() throws RepositoryException {
+    Checkpoint checkpoint = new Checkpoint("2000-01-01 00:00:00,0");
+    assertTrue(index.skipAhead(checkpoint));
+    checkpoint = new Checkpoint("2002-01-01 00:00:00,0");
+    assertTrue(index.skipAhead(checkpoint));
+    assertEquals("2005-05-05 00:00:00,6", checkpoint.toString());
+    assertEquals(1, loads);
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/** Tests the {@link DocumentStateStore} class. */
+public class DocumentStateStoreTest extends TestCase {
+  private File directory;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = TempDirectory.create("documentState");
+  }
+
+  @Override
+  protected void tearDown() {
+    TempDirectory.delete(directory);
+  }
+
+  private static DocumentStateStore.State getState(int i) {
+    return new DocumentStateStore.State(1000000L * i, i % 7, 100L * i,
+        i * 31, i * 37);
+  }
+
+  public void testGetDataIds() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    for (int i = 1; i <= 2000; i++) {
+      store.put(i * 3, getState(i));
+    }
+    store.remove(300);
+    DataIdBitmap dataIds = store.getDataIds();
+    assertEquals(1999, dataIds.size());
+    assertTrue(dataIds.contains(3));
+    assertTrue(dataIds.contains(6000));
+    assertFalse(dataIds.contains(300));
+    assertFalse(dataIds.contains(4));
+  }
+
+  public void testClear() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    for (int i = 1; i <= 2000; i++) {
+      store.put(i, getState(i));
+    }
+    store.clear();
+    assertEquals(0, store.size());
+    assertNull(store.get(1));
+    store.put(42, getState(42));
+    assertEquals(getState(42), store.get(42));
+
+    // Only the cleared generation is left.
+    DocumentStateStore reopened = DocumentStateStore.open(directory);
+    assertEquals(1, reopened.size());
+    assertNull(reopened.get(1));
+    assertEquals(getState(42), reopened.get(42));
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  public void testEmpty() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    assertEquals(0, store.size());
+    assertNull(store.get(42));
+    assertFalse(store.remove(42));
+  }
+
+  public void testPut() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    store.put(42, getState(42));
+    assertEquals(1, store.size());
+    assertEquals(getState(42), store.get(42));
+    assertNull(store.get(24));
+
+    store.put(42, getState(43));
+    assertEquals(1, store.size());
+    assertEquals(getState(43), store.get(42));
+  }
+
+  public void testPut_invalidDataId() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    try {
+      store.put(0, getState(0));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testModifyDate() throws IOException {
+    // Dates are stored as unsigned seconds, which are good past 2038.
+    long millis = 3000000000L * 1000L;
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    store.put(42, new DocumentStateStore.State(millis + 999, 1, 2, 3, 4));
+    assertEquals(millis / 1000L, store.get(42).modifySeconds);
+  }
+
+  public void testGrow() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    int count = 10 * DocumentStateStore.INITIAL_CAPACITY;
+    for (int i = 1; i <= count; i++) {
+      store.put(i, getState(i));
+    }
+    assertEquals(count, store.size());
+    for (int i = 1; i <= count; i++) {
+      assertEquals(getState(i), store.get(i));
+    }
+    assertNull(store.get(count + 1));
+
+    // Only the latest generation is kept, and it stays compact.
+    File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    assertTrue(files[0].length() < 50L * count);
+  }
+
+  public void testRemove() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    int count = DocumentStateStore.INITIAL_CAPACITY / 2;
+    for (int i = 1; i <= count; i++) {
+      store.put(i, getState(i));
+    }
+    for (int i = 1; i <= count; i += 2) {
+      assertTrue(store.remove(i));
+    }
+    assertFalse(store.remove(1));
+    assertEquals(count / 2, store.size());
+    for (int i = 1; i <= count; i++) {
+      if (i % 2 == 0) {
+        assertEquals(getState(i), store.get(i));
+      } else {
+        assertNull(store.get(i));
+      }
+    }
+  }
+
+  public void testReopen() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    int count = 2 * DocumentStateStore.INITIAL_CAPACITY;
+    for (int i = 1; i <= count; i++) {
+      store.put(i, getState(i));
+    }
+    store.remove(42);
+    store.flush();
+
+    DocumentStateStore reopened = DocumentStateStore.open(directory);
+    assertEquals(count - 1, reopened.size());
+    assertNull(reopened.get(42));
+    assertEquals(getState(count), reopened.get(count));
+  }
+
+  public void testReopen_incompleteGeneration() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    store.put(42, getState(42));
+    store.flush();
+
+    // A later generation that was not completely written is ignored.
+    File partial = new File(directory, DocumentStateStore.FILE_PREFIX + "1");
+    RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+    try {
+      raf.setLength(1000);
+    } finally {
+      raf.close();
+    }
+
+    DocumentStateStore reopened = DocumentStateStore.open(directory);
+    assertEquals(getState(42), reopened.get(42));
+    assertFalse(partial.exists());
+  }
+
+  public void testCorruptRecord() throws IOException {
+    DocumentStateStore store = DocumentStateStore.open(directory);
+    store.put(42, getState(42));
+    store.flush();
+
+    // Change the ModifyDate without updating the checksum.
+    File file = new File(directory, DocumentStateStore.FILE_PREFIX + "0");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      for (long offset = DocumentStateStore.RECORD_SIZE;
+           offset < raf.length(); offset += DocumentStateStore.RECORD_SIZE) {
+        raf.seek(offset);
+        if (raf.readInt() == 42) {
+          raf.writeInt(12345);
+        }
+      }
+    } finally {
+      raf.close();
+    }
+
+    DocumentStateStore reopened = DocumentStateStore.open(directory);
+    assertNull(reopened.get(42));
+  }
+}
@@ -34,7 +34,8 @@ class JdbcFixture {
       + "(DataID int primary key, ParentID int, PermID int, "
       + "SubType int, ModifyDate timestamp, Name varchar, "
       + "DComment varchar, CreateDate timestamp, CreatedBy int, "
-      + "OwnerID int, UserID int, Catalog int default 0)";
+      + "OwnerID int, UserID int, Catalog int default 0, "
+      + "VersionNum int default 1)";
 
   private static final String CREATE_TABLE_DTREEACL =
       "create table DTreeACL (DataID int, RightID int, "
@@ -55,6 +56,12 @@ class JdbcFixture {
       "create table KUAFChildren "
       + "(ID int, ChildID int)";
 
+  private static final String CREATE_TABLE_LLATTRDATA =
+      "create table LLAttrData "
+      + "(ID int, VerNum int, DefID int, DefVerNum int, AttrID int, "
+      + "EntryNum int, ValInt int, ValReal double, ValDate timestamp, "
+      + "ValStr varchar, ValLong varchar)";
+
   // TODO(jlacey): Turn this into a joined view on DTree and DVersData.
   private static final String CREATE_TABLE_WEBNODES =
       "create table WebNodes "
@@ -62,7 +69,7 @@ class JdbcFixture {
       + "SubType int, ModifyDate timestamp, Name varchar, "
       + "DComment varchar, CreateDate timestamp, OwnerName varchar, "
       + "OwnerID int, UserID int, Catalog int default 0, "
-      + "MimeType varchar, DataSize bigint)";
+      + "MimeType varchar, DataSize bigint, VersionNum int default 1)";
 
   /** The database connection. */
   private Connection jdbcConnection;
@@ -82,6 +89,7 @@ class JdbcFixture {
         CREATE_TABLE_KDUAL,
         CREATE_TABLE_KUAF,
         CREATE_TABLE_KUAFCHILDREN,
+        CREATE_TABLE_LLATTRDATA,
         CREATE_TABLE_WEBNODES);
 
     executeUpdate(
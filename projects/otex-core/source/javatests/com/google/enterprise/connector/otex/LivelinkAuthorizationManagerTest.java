@@ -82,17 +82,21 @@ public class LivelinkAuthorizationManagerTest extends TestCase {
 
   public void testGetDocids() throws RepositoryException {
     String docid = "-99999"; // Nothing else tests negative integers.
-    Iterator<String> it = Collections.nCopies(1001, docid).iterator();
+    Iterator<String> it = Collections.nCopies(
+        LivelinkAuthorizationManager.MAX_DOCIDS_PER_QUERY + 1, docid)
+        .iterator();
 
     afterInit();
 
-    // The first request returns 1000 comma-separated copies of the docid.
-    String docids = lam.getDocids(it);
-    assertNotNull(docids, docids);
-    assertEquals(docid.length() * 1000 + 999, docids.length());
+    // The first request consumes all but one copy of the docid.
+    DataIdSet docids = lam.getDocids(it);
+    assertNotNull(docids);
+    assertEquals(docid, docids.toString());
+    assertEquals("DataID in (" + docid + ")",
+        docids.toSqlCondition("DataID"));
 
     // The second request has just one docid left.
-    assertEquals(docid, lam.getDocids(it));
+    assertEquals(docid, lam.getDocids(it).toString());
 
     // The third request has none left.
     assertEquals(null, lam.getDocids(it));
@@ -21,6 +21,7 @@ import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientFactory;
@@ -43,25 +44,31 @@ import com.google.enterprise.connector.spiimpl.PrincipalValue;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LivelinkDocumentListTest extends TestCase {
   private static final int USER_ID = 1999;
   private static final int GROUP_ID = 2999;
 
-  private static final AtomicReference<Set<Integer>> EMPTY_CACHE =
-      new AtomicReference<Set<Integer>>(ImmutableSet.<Integer>of());
+  private static final LivelinkDateFormat dateFormat =
+      LivelinkDateFormat.getInstance();
 
   private static final String GLOBAL_NAMESPACE = "globalNS";
   private static final String LOCAL_NAMESPACE = "localNS";
 
   private final JdbcFixture jdbcFixture = new JdbcFixture();
 
+  /** The metadata fetcher for the document list, or null by default. */
+  private MetadataFetcher metadataFetcher = null;
+
   @Override
   protected void setUp() throws SQLException {
     jdbcFixture.setUp();
@@ -140,6 +147,12 @@ public class LivelinkDocumentListTest extends TestCase {
         connector.setUnsupportedFetchVersionTypes(value);
       } else if (property.equals("pushAcls")) {
         connector.setPushAcls(Boolean.parseBoolean(value));
+      } else if (property.equals("skipUnchangedDocuments")) {
+        // The value is the document state directory.
+        connector.setDocumentStateDirectory(value);
+        connector.setSkipUnchangedDocuments(true);
+      } else if (property.equals("useBulkAclQueries")) {
+        connector.setUseBulkAclQueries(Boolean.parseBoolean(value));
       }
     }
 
@@ -201,7 +214,7 @@ public class LivelinkDocumentListTest extends TestCase {
       Client client, Object... docInfo) throws RepositoryException {
     ContentHandler contentHandler = new FileContentHandler();
     return getDocumentList(connector, client, contentHandler, null,
-        ActionType.ADD, EMPTY_CACHE, docInfo);
+        ActionType.ADD, new Checkpoint(), docInfo);
   }
 
   /**
@@ -218,7 +231,8 @@ public class LivelinkDocumentListTest extends TestCase {
     Client client = clientFactory.createClient();
 
     return getDocumentList(connector, client, contentHandler, null,
-        ActionType.ADD, EMPTY_CACHE, MockConstants.IO_OBJECT_ID, 0, USER_ID);
+        ActionType.ADD, new Checkpoint(), MockConstants.IO_OBJECT_ID, 0,
+        USER_ID);
   }
 
   /**
@@ -237,7 +251,7 @@ public class LivelinkDocumentListTest extends TestCase {
     ContentHandler contentHandler = new FileContentHandler();
 
     return getDocumentList(connector, client, contentHandler,
-        traversalContext, ActionType.ADD, EMPTY_CACHE,
+        traversalContext, ActionType.ADD, new Checkpoint(),
         MockConstants.HARMLESS_OBJECT_ID, dataSize, USER_ID);
   }
 
@@ -253,7 +267,7 @@ public class LivelinkDocumentListTest extends TestCase {
    *     documents
    */
   private DocumentList getObjectUnderTest(ActionType action,
-      AtomicReference<Set<Integer>> delCache, Object... docInfo)
+      Checkpoint checkpoint, Object... docInfo)
       throws RepositoryException {
     LivelinkConnector connector = getConnector();
     ClientFactory clientFactory = connector.getClientFactory();
@@ -261,14 +275,26 @@ public class LivelinkDocumentListTest extends TestCase {
     ContentHandler contentHandler = new FileContentHandler();
 
     return getDocumentList(connector, client, contentHandler, null, action,
-        delCache, docInfo);
+        checkpoint, docInfo);
   }
 
   /** Helper method for the getObjectUnderTest overloads. */
   private DocumentList getDocumentList(LivelinkConnector connector,
       Client client, ContentHandler contentHandler,
       TraversalContext traversalContext, ActionType action,
-      AtomicReference<Set<Integer>> delCache, Object... docInfo)
+      Checkpoint checkpoint, Object... docInfo)
+      throws RepositoryException {
+    return getDocumentList(connector, client, contentHandler,
+        traversalContext,
+        new BatchDeadline(traversalContext, System.currentTimeMillis()),
+        action, checkpoint, docInfo);
+  }
+
+  /** Helper method for the getDocumentList overloads. */
+  private DocumentList getDocumentList(LivelinkConnector connector,
+      Client client, ContentHandler contentHandler,
+      TraversalContext traversalContext, BatchDeadline deadline,
+      ActionType action, Checkpoint checkpoint, Object... docInfo)
       throws RepositoryException {
     contentHandler.initialize(connector, client);
 
@@ -279,7 +305,7 @@ public class LivelinkDocumentListTest extends TestCase {
       case ADD: {
         fieldNames = new String[] {
           "ModifyDate", "DataID", "OwnerID", "SubType", "MimeType",
-          "GoogleDataSize", "UserID", "UserData" };
+          "GoogleDataSize", "UserID", "UserData", "VersionNum" };
         assertEquals(String.valueOf(docInfo.length), 0, docInfo.length % 3);
         Object[][] values = new Object[docInfo.length / 3][];
         for (int i = 0; i < docInfo.length / 3; i++) {
@@ -287,7 +313,7 @@ public class LivelinkDocumentListTest extends TestCase {
           Object dataSize = docInfo[3 * i + 1];
           Object userId = docInfo[3 * i + 2];
           values[i] = new Object[] { new Date(), objectId, 2000, 144,
-            "text/plain", dataSize, userId, null };
+            "text/plain", dataSize, userId, null, 1 };
         }
         recArray = new MockClientValue(fieldNames, values);
         delArray = null;
@@ -316,11 +342,9 @@ public class LivelinkDocumentListTest extends TestCase {
     for (int i = 0; i < fields.length; i++) {
       fields[i] = new Field(fieldNames[i], fieldNames[i]);
     }
-    Checkpoint checkpoint = new Checkpoint();
-
     return new LivelinkDocumentList(connector, client,
-        contentHandler, recArray, fields, delArray, delCache, traversalContext,
-        checkpoint, connector.getUsername());
+        contentHandler, recArray, fields, delArray, traversalContext,
+        checkpoint, connector.getUsername(), metadataFetcher, deadline);
   }
 
   public void testContentHandler() throws RepositoryException {
@@ -416,6 +440,94 @@ public class LivelinkDocumentListTest extends TestCase {
         Content.NON_NULL);
   }
 
+  public void testNextDocument_unchanged()
+      throws IOException, RepositoryException {
+    File directory = TempDirectory.create("documentState");
+    try {
+      LivelinkConnector connector =
+          getConnector("skipUnchangedDocuments", directory.getPath());
+      DocumentList list = getObjectUnderTest(connector,
+          MockConstants.HARMLESS_OBJECT_ID, 0, USER_ID);
+      assertNotNull(list.nextDocument());
+      assertNotNull(list.checkpoint());
+
+      // The ModifyDate may change, but nothing else does.
+      list = getObjectUnderTest(connector,
+          MockConstants.HARMLESS_OBJECT_ID, 0, USER_ID);
+      assertNullDocument(list.nextDocument());
+      assertEquals(MockConstants.HARMLESS_OBJECT_ID,
+          ((LivelinkDocumentList) list).checkpoint.insertDataId);
+
+      // A different content size is a change.
+      list = getObjectUnderTest(connector,
+          MockConstants.HARMLESS_OBJECT_ID, 1, USER_ID);
+      assertNotNull(list.nextDocument());
+    } finally {
+      TempDirectory.delete(directory);
+    }
+  }
+
+  /**
+   * Tests that the document state is not recorded until the checkpoint
+   * confirms that the document was fed.
+   */
+  public void testNextDocument_unchangedWithoutCheckpoint()
+      throws IOException, RepositoryException {
+    File directory = TempDirectory.create("documentState");
+    try {
+      LivelinkConnector connector =
+          getConnector("skipUnchangedDocuments", directory.getPath());
+      DocumentList list = getObjectUnderTest(connector,
+          MockConstants.HARMLESS_OBJECT_ID, 0, USER_ID);
+      assertNotNull(list.nextDocument());
+
+      // The batch was abandoned, so the document is fed again.
+      list = getObjectUnderTest(connector,
+          MockConstants.HARMLESS_OBJECT_ID, 0, USER_ID);
+      assertNotNull(list.nextDocument());
+    } finally {
+      TempDirectory.delete(directory);
+    }
+  }
+
+  public void testNextDocument_unchangedDisabled()
+      throws RepositoryException {
+    LivelinkConnector connector = getConnector();
+    for (int i = 0; i < 2; i++) {
+      DocumentList list = getObjectUnderTest(connector,
+          MockConstants.HARMLESS_OBJECT_ID, 0, USER_ID);
+      assertNotNull(list.nextDocument());
+    }
+  }
+
+  /**
+   * Tests that a batch that is running out of time ends early, with a
+   * checkpoint after the last document returned.
+   */
+  public void testNextDocument_endsEarly() throws RepositoryException {
+    SimpleTraversalContext traversalContext = new SimpleTraversalContext();
+    traversalContext.setTraversalTimeLimitSeconds(1);
+    LivelinkConnector connector = getConnector();
+    Client client = connector.getClientFactory().createClient();
+
+    // The time limit runs out as the batch starts, but the first
+    // document is always returned.
+    BatchDeadline deadline = new BatchDeadline(traversalContext,
+        System.currentTimeMillis() - 1000L);
+    DocumentList list = getDocumentList(connector, client,
+        new FileContentHandler(), traversalContext, deadline, ActionType.ADD,
+        new Checkpoint(), 42, 0, USER_ID, 43, 0, USER_ID, 44, 0, USER_ID);
+    Document doc = list.nextDocument();
+    assertEquals("42",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+    assertNullDocument(list.nextDocument());
+
+    // The checkpoint is not advanced past the remaining documents.
+    Checkpoint checkpoint = new Checkpoint(list.checkpoint());
+    assertEquals(42, checkpoint.insertDataId);
+    assertNotNull(checkpoint.insertDate);
+  }
+
   /**
    * Tests a data size that is too large as a long, but would allowed
    * if converted from a long to an int.
@@ -615,9 +727,32 @@ public class LivelinkDocumentListTest extends TestCase {
     assertEquals("user_name", Value.getSingleValueString(doc, "LockedBy"));
   }
 
+  /**
+   * Tests that the VersionInfo is read with GetVersionInfo if the
+   * bulk query fails. There is no DVersData table in the fixture.
+   */
+  public void testNextDocument_bulkVersionQueryFails()
+      throws RepositoryException {
+    LivelinkConnector connector =
+        getConnector("includedVersionInfo", "LockedBy");
+    connector.setUseBulkVersionQueries(true);
+    Client client = new MockClient() {
+        @Override public ClientValue GetVersionInfo(int volumeId, int objectId,
+            int versionNumber) {
+          return new MockClientValue(new String[] { "LockedBy" },
+              new Object[] { Client.RIGHT_OWNER });
+        }
+      };
+    DocumentList list = getObjectUnderTest(connector, client,
+        MockConstants.HARMLESS_OBJECT_ID, 1, USER_ID);
+
+    Document doc = list.nextDocument();
+    assertEquals("user_name", Value.getSingleValueString(doc, "LockedBy"));
+  }
+
   /** Tests a deleted document. Mostly a smoke test of the getDeletes query. */
   public void testNextDocument_delete() throws RepositoryException {
-    DocumentList list = getObjectUnderTest(ActionType.DELETE, EMPTY_CACHE,
+    DocumentList list = getObjectUnderTest(ActionType.DELETE, new Checkpoint(),
         "2015-02-15 12:34:56", 1234567, MockConstants.HARMLESS_OBJECT_ID);
     Document doc = list.nextDocument();
     assertNotNull(doc);
@@ -631,9 +766,10 @@ public class LivelinkDocumentListTest extends TestCase {
 
   /** Tests multiple deletes with partial caching. */
   public void testNextDocument_deleteSomeCached() throws RepositoryException {
-    AtomicReference<Set<Integer>> delCache =
-        new AtomicReference<Set<Integer>>(ImmutableSet.of(100));
-    DocumentList list = getObjectUnderTest(ActionType.DELETE, delCache,
+    Checkpoint checkpoint = new Checkpoint();
+    checkpoint.addFedDelete(dateFormat.parse("2015-02-13 12:34:56"),
+        new MockClientValue(1234568), 100);
+    DocumentList list = getObjectUnderTest(ActionType.DELETE, checkpoint,
         "2015-02-13 12:34:56", 1234568, 100,
         "2015-02-15 12:34:56", 1234567, 101);
     Document doc = list.nextDocument();
@@ -651,22 +787,59 @@ public class LivelinkDocumentListTest extends TestCase {
    * LivelinkTraversalManager would not construct a LivelinkDocumentList.
    */
   public void testNextDocument_deleteAllCached() throws RepositoryException {
-    AtomicReference<Set<Integer>> delCache =
-        new AtomicReference<Set<Integer>>(ImmutableSet.of(100, 101));
-    DocumentList list = getObjectUnderTest(ActionType.DELETE, delCache,
+    Checkpoint checkpoint = new Checkpoint();
+    Date auditDate = dateFormat.parse("2015-02-15 12:34:56");
+    checkpoint.addFedDelete(auditDate, new MockClientValue(1234568), 100);
+    checkpoint.addFedDelete(auditDate, new MockClientValue(1234567), 101);
+    DocumentList list = getObjectUnderTest(ActionType.DELETE, checkpoint,
         "2015-02-13 12:34:56", 1234568, 100,
         "2015-02-15 12:34:56", 1234567, 101);
     Document next = list.nextDocument();
     assertNullDocument(next);
   }
 
+  /** Tests that repeated deletes of an item at one time are collapsed. */
+  public void testNextDocument_deleteRepeated() throws RepositoryException {
+    DocumentList list = getObjectUnderTest(ActionType.DELETE, new Checkpoint(),
+        "2015-02-15 12:34:56", 1234567, 100,
+        "2015-02-15 12:34:56", 1234568, 100,
+        "2015-02-15 12:34:56", 1234569, 101);
+    Document doc = list.nextDocument();
+    assertEquals("100",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+    doc = list.nextDocument();
+    assertEquals("101",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+    Document next = list.nextDocument();
+    assertNullDocument(next);
+  }
+
+  /** Tests that the fed deletes are persisted in the checkpoint. */
+  public void testNextDocument_deleteWindowCheckpoint()
+      throws RepositoryException {
+    DocumentList list = getObjectUnderTest(ActionType.DELETE, new Checkpoint(),
+        "2015-02-15 12:34:56", 1234567, 100);
+    assertNotNull(list.nextDocument());
+    assertNullDocument(list.nextDocument());
+
+    // The deletes query reads the same event again after a restart.
+    Checkpoint checkpoint = new Checkpoint(list.checkpoint());
+    list = getObjectUnderTest(ActionType.DELETE, checkpoint,
+        "2015-02-15 12:34:56", 1234567, 100,
+        "2015-02-15 12:34:57", 1234570, 102);
+    Document doc = list.nextDocument();
+    assertEquals("102",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+    assertNullDocument(list.nextDocument());
+  }
+
   /** Tests that the client must not be null. */
   public void testNullConstructorArgs_client() throws RepositoryException {
     LivelinkConnector connector = getConnector();
 
     try {
       DocumentList list = new LivelinkDocumentList(connector,
-          null, null, null, null, null, EMPTY_CACHE, null, null, null);
+          null, null, null, null, null, null, null, null);
       fail("Expected a NullPointerException");
     } catch (NullPointerException e) {
     }
@@ -679,7 +852,7 @@ public class LivelinkDocumentListTest extends TestCase {
     Client client = clientFactory.createClient();
 
     DocumentList list = new LivelinkDocumentList(connector,
-        client, null, null, null, null, EMPTY_CACHE, null, null, null);
+        client, null, null, null, null, null, null, null);
     try {
       Document next = list.nextDocument();
       fail("Expected a NullPointerException");
@@ -687,21 +860,6 @@ public class LivelinkDocumentListTest extends TestCase {
     }
   }
 
-  /** Tests that the delete cache must not be null. */
-  public void testNullConstructorArgs_delCache() throws RepositoryException {
-    LivelinkConnector connector = getConnector();
-    ClientFactory clientFactory = connector.getClientFactory();
-    Client client = clientFactory.createClient();
-    Checkpoint checkpoint = new Checkpoint();
-
-    try {
-      DocumentList list = new LivelinkDocumentList(connector,
-        client, null, null, null, null, null, null, checkpoint, null);
-      fail("Expected a NullPointerException");
-    } catch (NullPointerException e) {
-    }
-  }
-
   /** Tests that all the other constructs arguments can be null. */
   public void testNullConstructorArgs_others() throws RepositoryException {
     LivelinkConnector connector = getConnector();
@@ -710,7 +868,7 @@ public class LivelinkDocumentListTest extends TestCase {
     Checkpoint checkpoint = new Checkpoint();
 
     DocumentList list = new LivelinkDocumentList(connector,
-        client, null, null, null, null, EMPTY_CACHE, null, checkpoint, null);
+        client, null, null, null, null, null, checkpoint, null);
     Document next = list.nextDocument();
     assertNullDocument(next);
   }
@@ -725,7 +883,7 @@ public class LivelinkDocumentListTest extends TestCase {
     Checkpoint checkpoint = new Checkpoint();
 
     DocumentList list = new LivelinkDocumentList(connector,
-        client, null, null, null, null, EMPTY_CACHE, null, checkpoint, null);
+        client, null, null, null, null, null, checkpoint, null);
     Document next = list.nextDocument();
     assertNullDocument(next);
   }
@@ -780,20 +938,108 @@ public class LivelinkDocumentListTest extends TestCase {
 
   public void testAcl_usersAndGroups()
       throws RepositoryException, SQLException {
+    assertAclUsersAndGroups(getConnector());
+  }
+
+  /**
+   * Reads two documents with a mix of user, group, and special ACL
+   * entries, including a missing user, and checks their ACLs.
+   */
+  private void assertAclUsersAndGroups(LivelinkConnector connector)
+      throws RepositoryException, SQLException {
     insertDTreeAcl(21, 1002, Client.PERM_MODIFY);
     insertDTreeAcl(21, 1003, Client.PERM_SEECONTENTS);
     insertDTreeAcl(21, 2002, Client.PERM_SEECONTENTS);
     insertDTreeAcl(21, Client.RIGHT_OWNER, Client.PERM_FULL);
     insertDTreeAcl(21, Client.RIGHT_GROUP, Client.PERM_SEECONTENTS);
     insertDTreeAcl(21, Client.RIGHT_WORLD, Client.PERM_SEE);
+    insertDTreeAcl(22, 2001, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(22, 2666, Client.PERM_SEECONTENTS);
 
-    DocumentList list = getObjectUnderTest(21, 0, 1001);
-    Document doc = list.nextDocument();
+    DocumentList list = getObjectUnderTest(connector, 21, 0, 1001, 22, 1, 1001);
 
+    Document doc = list.nextDocument();
     assertNotNull(doc);
+    assertEquals("21",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
     assertEquals(ImmutableSet.of("user1", "user3"),
         getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
     assertAclGroupsEquals(doc, "group1", "group2");
+
+    doc = list.nextDocument();
+    assertNotNull(doc);
+    assertEquals("22",
+        Value.getSingleValueString(doc, SpiConstants.PROPNAME_DOCID));
+    assertEquals(ImmutableSet.of(),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc, "group1");
+    assertNull(list.nextDocument());
+  }
+
+  /** Tests that the ACLs collected in parallel are the same. */
+  public void testAcl_metadataFetcher()
+      throws RepositoryException, SQLException {
+    LivelinkConnector connector = getConnector();
+    List<Client> clients = ImmutableList.<Client>of(
+        new MockClient(), new MockClient());
+    metadataFetcher = new MetadataFetcher(connector, clients);
+    assertAclUsersAndGroups(connector);
+  }
+
+  /** Tests that the ACLs read with bulk queries are the same. */
+  public void testAcl_bulkQueries()
+      throws RepositoryException, SQLException {
+    assertAclUsersAndGroups(getConnector("useBulkAclQueries", "true"));
+  }
+
+  /**
+   * Tests that the metadata fetcher does not read the ACLs when they
+   * are read with bulk queries.
+   */
+  public void testAcl_bulkQueriesAndMetadataFetcher()
+      throws RepositoryException, SQLException {
+    final AtomicInteger rightsCalls = new AtomicInteger();
+    Client client = new MockClient() {
+        @Override public ClientValue GetObjectRights(int objectId)
+            throws RepositoryException {
+          rightsCalls.incrementAndGet();
+          return super.GetObjectRights(objectId);
+        }
+      };
+    LivelinkConnector connector = getConnector("useBulkAclQueries", "true");
+    metadataFetcher =
+        new MetadataFetcher(connector, ImmutableList.of(client));
+    assertAclUsersAndGroups(connector);
+    assertEquals(0, rightsCalls.get());
+  }
+
+  /**
+   * Tests that the ACLs are read with GetObjectRights if the bulk
+   * query fails.
+   */
+  public void testAcl_bulkQueryFails()
+      throws RepositoryException, SQLException {
+    insertDTreeAcl(21, 1003, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(21, 2002, Client.PERM_SEECONTENTS);
+
+    LivelinkConnector connector = getConnector("useBulkAclQueries", "true");
+    Client client = new MockClient() {
+        @Override public ClientValue ListNodes(String query, String view,
+            String[] columns) throws RepositoryException {
+          if (view.contains("DTreeACL")) {
+            throw new RepositoryException("Bulk ACL query failed");
+          }
+          return super.ListNodes(query, view, columns);
+        }
+      };
+    DocumentList list = getObjectUnderTest(connector, client, 21, 0, 1001);
+
+    Document doc = list.nextDocument();
+    assertNotNull(doc);
+    assertEquals(ImmutableSet.of("user3"),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc, "group2");
+    assertNull(list.nextDocument());
   }
 
   public void testAcl_groupsOnly() throws RepositoryException,
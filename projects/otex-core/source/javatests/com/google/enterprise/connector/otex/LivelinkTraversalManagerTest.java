@@ -25,16 +25,24 @@ import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.Session;
+import com.google.enterprise.connector.spi.SimpleTraversalContext;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests the construction of the queries for traversing Livelink.
@@ -608,10 +616,29 @@ public class LivelinkTraversalManagerTest extends TestCase {
     LivelinkTraversalManager ltm = getTraversalManager(sess);
 
     // 2901 is an excluded volume type.
-    ClientValue results = ltm.getResults("6,24,42,2000,2901", new Date());
+    ClientValue results =
+        ltm.getResults(DataIdSet.parse("6,24,42,2000,2901"), new Date());
     assertEquals(ImmutableList.of(24, 42, 2000, 6), getDataIds(results));
   }
 
+  public void testGetResults_excludedMimeType() throws RepositoryException {
+    Session sess = conn.login();
+    LivelinkTraversalManager ltm = getTraversalManager(sess);
+    ltm.setTraversalContext(new SimpleTraversalContext() {
+        @Override
+        public int mimeTypeSupportLevel(String mimeType) {
+          return ("text/xml".equals(mimeType)) ? -1 : 1;
+        }
+      });
+
+    ClientValue results =
+        ltm.getResults(DataIdSet.parse("6,24,42,2000,2901"), new Date());
+    assertEquals(ImmutableList.of(24, 2000, 6), getDataIds(results));
+    assertTrue(ltm.getMatchingQuery("6", new Date(), true),
+        ltm.getMatchingQuery("6", new Date(), true).contains(
+            "MimeType not in ('text/xml')"));
+  }
+
   private LivelinkTraversalManager getObjectUnderTest(Client traversalClient)
       throws RepositoryException {
     conn.login();
@@ -676,6 +703,31 @@ public class LivelinkTraversalManagerTest extends TestCase {
     testStartTraversal(false, ImmutableList.of("24", "42", "6"));
   }
 
+  /**
+   * Tests that starting a traversal clears the fed document state,
+   * and that the state is recorded when the checkpoint is taken.
+   */
+  public void testStartTraversalClearsDocumentState()
+      throws IOException, SQLException, RepositoryException {
+    File directory = TempDirectory.create("documentState");
+    try {
+      conn.setDocumentStateDirectory(directory.getPath());
+      LivelinkTraversalManager ltm = getObjectUnderTest(false, false, null);
+      DocumentStateStore store = conn.getDocumentStateStore();
+      store.put(9999, new DocumentStateStore.State(0L, 1, 0L, 0, 0));
+
+      DocumentList list = ltm.startTraversal();
+      assertNull(store.get(9999));
+      assertEquals(ImmutableList.of("24", "42", "6"), getDocids(list));
+      assertNull(store.get(24));
+      list.checkpoint();
+      assertNotNull(store.get(24));
+      assertNotNull(store.get(6));
+    } finally {
+      TempDirectory.delete(directory);
+    }
+  }
+
   /** No deletes appear because the start checkpoint is forged. */
   public void testStartTraversalWithDeletes()
       throws SQLException, RepositoryException {
@@ -718,6 +770,29 @@ public class LivelinkTraversalManagerTest extends TestCase {
         getDocids(list));
   }
 
+  /**
+   * Tests that querying the deletes on a separate session concurrently
+   * with the inserts gives the same results as testResumeTraversalWithDeletes.
+   */
+  public void testResumeTraversalWithConcurrentDeletes()
+      throws SQLException, RepositoryException {
+    // Make the DAuditNew records visible as deletes.
+    jdbcFixture.executeUpdate(
+        "update DAuditNew set AuditID = 2, AuditStr = 'Delete', SubType = 141");
+
+    conn.login();
+    Client client = new MockClient();
+    LivelinkTraversalManager ltm = new LivelinkTraversalManager(conn, client,
+        "Admin", new MockClient(), conn.getContentHandler(client));
+    ltm.setDeletesClient(new MockClient());
+    DocumentList list =
+        ltm.resumeTraversal("2001-01-01 00:00:00,0,2001-01-01 00:00:00,0");
+
+    assertEquals(
+        ImmutableList.of("24", "42", "6601", "2000", "6", "6603", "6602"),
+        getDocids(list));
+  }
+
   /** Positive test to set a baseline for testResumeTraversalPingError. */
   public void testResumeTraversal() throws RepositoryException {
     LivelinkTraversalManager ltm = getObjectUnderTest(new MockClient());
@@ -782,14 +857,13 @@ public class LivelinkTraversalManagerTest extends TestCase {
     assertEquals(ImmutableList.of(24, 42, 6), getDataIds(results));
   }
 
+  // 2901 is an excluded node type, which is left out of the candidates.
   public void testGetCandidates_all() throws Exception {
-    testGetCandidates(true, false,
-        ImmutableList.of(24, 42, 2000, 2901, 6, 66));
+    testGetCandidates(true, false, ImmutableList.of(24, 42, 2000, 6, 66));
   }
 
   public void testGetCandidates_gen() throws Exception {
-    testGetCandidates(false, false,
-        ImmutableList.of(24, 42, 2000, 2901, 6, 66));
+    testGetCandidates(false, false, ImmutableList.of(24, 42, 2000, 6, 66));
   }
 
   public void testGetCandidates_dta() throws Exception {
@@ -818,7 +892,8 @@ public class LivelinkTraversalManagerTest extends TestCase {
       String sqlWhereCondition, List<?> expected) throws Exception {
     LivelinkTraversalManager ltm =
         getObjectUnderTest(useDTreeAncestors, false, sqlWhereCondition);
-    ClientValue results = ltm.getResults("2000,6,66,24,42", new Date());
+    ClientValue results =
+        ltm.getResults(DataIdSet.parse("2000,6,66,24,42"), new Date());
 
     if (results == null) {
       assertTrue("Expected empty but got " + expected, expected.size() == 0);
@@ -877,22 +952,15 @@ public class LivelinkTraversalManagerTest extends TestCase {
     DocumentList deletes = ltm.resumeTraversal(checkpoint);
     assertEquals(expectedIds, getDocids(deletes));
 
-    // The cache is only updated when checkpoint() is called, so we
+    // The fed deletes are only recorded in the new checkpoint, so we
     // should get the same results a second time.
     deletes = ltm.resumeTraversal(checkpoint);
     assertEquals(expectedIds, getDocids(deletes));
-
-    // Update the cache for indexed deletes.
     String newCheckpoint = deletes.checkpoint();
 
-    // This isn't using the new checkpoint, but rather, verifying
-    // caching of the previous batch.
+    // The previous checkpoint still returns the same results.
     deletes = ltm.resumeTraversal(checkpoint);
-    if (useIndexedDeleteQuery) {
-      assertNullDocumentList(deletes);
-    } else {
-      assertEquals(expectedIds, getDocids(deletes));
-    }
+    assertEquals(expectedIds, getDocids(deletes));
 
     // Verify the expected next batch from the new checkpoint.
     deletes = ltm.resumeTraversal(newCheckpoint);
@@ -946,7 +1014,7 @@ public class LivelinkTraversalManagerTest extends TestCase {
     DocumentList deletes = ltm.resumeTraversal(checkpoint);
     assertEquals(ImmutableList.of("6601", "6603", "6602"), getDocids(deletes));
 
-    // Update the cache for indexed deletes.
+    // Record the fed deletes in the checkpoint.
     checkpoint = deletes.checkpoint();
 
     // Unset the insert checkpoint to get some inserts now.
@@ -976,7 +1044,7 @@ public class LivelinkTraversalManagerTest extends TestCase {
     DocumentList deletes = ltm.resumeTraversal(checkpoint);
     assertEquals(ImmutableList.of("6601"), getDocids(deletes, 1));
 
-    // Update the cache for indexed deletes.
+    // Record the fed deletes in the checkpoint.
     checkpoint = deletes.checkpoint();
 
     // Simulate a timeout, and call checkpoint immediately. without reading
@@ -989,6 +1057,339 @@ public class LivelinkTraversalManagerTest extends TestCase {
         getDocids(ltm.resumeTraversal(checkpoint)));
   }
 
+  /** Gets the doc IDs for all of the batches in a traversal. */
+  private List<String> getAllDocids(LivelinkTraversalManager ltm)
+      throws RepositoryException {
+    DocumentList list = ltm.startTraversal();
+    List<String> docids = new ArrayList<String>(getDocids(list));
+    if (list != null) {
+      getAllDocids(ltm, list.checkpoint(), docids);
+    }
+    return docids;
+  }
+
+  /**
+   * Resumes a traversal until it returns no more batches, and adds the
+   * doc IDs to the given collection.
+   *
+   * @return the last checkpoint, which is the given one if there are
+   *     no batches
+   */
+  private String getAllDocids(LivelinkTraversalManager ltm,
+      String checkpoint, Collection<String> docids)
+      throws RepositoryException {
+    DocumentList list = ltm.resumeTraversal(checkpoint);
+    while (list != null) {
+      docids.addAll(getDocids(list));
+      checkpoint = list.checkpoint();
+      list = ltm.resumeTraversal(checkpoint);
+    }
+    return checkpoint;
+  }
+
+  /**
+   * Tests that prefetching the next batch on a second session returns
+   * the same documents as the on-demand queries.
+   */
+  public void testPipelinedTraversal() throws RepositoryException {
+    final AtomicInteger prefetchQueries = new AtomicInteger();
+    Client prefetchClient = new MockClient() {
+        @Override
+        public ClientValue ListNodes(String query, String view,
+            String[] columns) throws RepositoryException {
+          prefetchQueries.incrementAndGet();
+          return super.ListNodes(query, view, columns);
+        }
+      };
+
+    LivelinkTraversalManager expected = getObjectUnderTest(new MockClient());
+    expected.setBatchHint(1);
+    Client client = new MockClient();
+    LivelinkTraversalManager ltm = new LivelinkTraversalManager(conn, client,
+        "Admin", client, conn.getContentHandler(client));
+    ltm.setPrefetchClients(prefetchClient, prefetchClient);
+    ltm.setBatchHint(1);
+
+    assertEquals(getAllDocids(expected), getAllDocids(ltm));
+    assertTrue(String.valueOf(prefetchQueries.get()),
+        prefetchQueries.get() > 0);
+  }
+
+  /**
+   * Traverses from a checkpoint split into two time slices, and checks
+   * that all of the documents are returned, and that the slices are
+   * merged at the end.
+   */
+  private void testTimeSlicedTraversal(SessionPool slicePool)
+      throws RepositoryException {
+    LivelinkTraversalManager expected = getObjectUnderTest(new MockClient());
+    Client client = new MockClient();
+    LivelinkTraversalManager ltm = new LivelinkTraversalManager(conn, client,
+        "Admin", client, conn.getContentHandler(client));
+    ltm.setSlicePool(slicePool);
+    ltm.setBatchHint(1);
+
+    String checkpoint = "2000-01-01 00:00:00,0,,,2001-06-01 00:00:00;"
+        + "2001-06-01 00:00:00|0|";
+    assertTrue(new Checkpoint(checkpoint).isSliced());
+    Set<String> docids = new TreeSet<String>();
+    checkpoint = getAllDocids(ltm, checkpoint, docids);
+
+    assertEquals(new TreeSet<String>(getAllDocids(expected)), docids);
+    assertFalse(checkpoint, new Checkpoint(checkpoint).isSliced());
+  }
+
+  public void testTimeSlicedTraversal() throws RepositoryException {
+    testTimeSlicedTraversal(null);
+  }
+
+  public void testTimeSlicedTraversal_pool() throws RepositoryException {
+    Client first = new MockClient();
+    Client second = new MockClient();
+    testTimeSlicedTraversal(new SessionPool(ImmutableList.of(first, second),
+            ImmutableList.of(first, second), "TestSlice-%d"));
+  }
+
+  /**
+   * Tests that an old checkpoint splits off a freshness lane, and that
+   * the lanes together traverse the same documents before merging.
+   */
+  public void testFreshnessLane() throws RepositoryException {
+    List<String> expected = getAllDocids(getObjectUnderTest(new MockClient()));
+
+    conn = LivelinkConnectorFactory.getConnector("connector.");
+    conn.setFreshnessLaneHours(1);
+    LivelinkTraversalManager ltm = getObjectUnderTest(new MockClient());
+    ltm.setBatchHint(1);
+
+    DocumentList list = ltm.resumeTraversal("2000-01-01 00:00:00,0");
+    assertNotNull(list);
+    Set<String> actual = new TreeSet<String>(getDocids(list));
+    String checkpoint = list.checkpoint();
+    assertTrue(checkpoint, new Checkpoint(checkpoint).isSliced());
+    checkpoint = getAllDocids(ltm, checkpoint, actual);
+
+    assertEquals(new TreeSet<String>(expected), actual);
+    assertFalse(checkpoint, new Checkpoint(checkpoint).isSliced());
+  }
+
+  /**
+   * Tests that resuming an abandoned batch of a time-sliced traversal
+   * continues in the same slice after the last delivered document.
+   */
+  public void testDeliveredCheckpoint_timeSliced()
+      throws RepositoryException {
+    String checkpoint = "2000-01-01 00:00:00,0,,,2001-06-01 00:00:00;"
+        + "2001-06-01 00:00:00|0|";
+    LivelinkTraversalManager expected = getObjectUnderTest(new MockClient());
+    expected.setBatchHint(2);
+    List<String> batch = getDocids(expected.resumeTraversal(checkpoint));
+    assertEquals(batch.toString(), 2, batch.size());
+
+    conn.setUseDeliveredCheckpoints(true);
+    LivelinkTraversalManager ltm = getObjectUnderTest(new MockClient());
+    ltm.setBatchHint(2);
+    DocumentList list = ltm.resumeTraversal(checkpoint);
+    assertEquals(batch, getDocids(list, 2));
+
+    // Abandon the batch, and resume from the same checkpoint. The
+    // second document was returned, but it was not delivered.
+    list = ltm.resumeTraversal(checkpoint);
+    assertEquals(batch.subList(1, 2), getDocids(list, 1));
+  }
+
+  /**
+   * Tests that restarting the traversal does not resume an abandoned
+   * batch.
+   */
+  public void testDeliveredCheckpoint_startTraversal()
+      throws SQLException, RepositoryException {
+    conn.setUseDeliveredCheckpoints(true);
+    LivelinkTraversalManager ltm = getObjectUnderTest(false, false, null);
+    DocumentList list = ltm.startTraversal();
+    assertEquals(ImmutableList.of("24"), getDocids(list, 1));
+
+    // Abandon the batch, and restart the traversal.
+    list = ltm.startTraversal();
+    assertEquals(ImmutableList.of("24", "42", "6"), getDocids(list));
+  }
+
+  /**
+   * Tests that two shards together traverse the same documents as a
+   * single connector, and that each shard gets its own DataIDs.
+   */
+  public void testShardedTraversal() throws RepositoryException {
+    List<String> expected = getAllDocids(getObjectUnderTest(new MockClient()));
+    Set<String> actual = new TreeSet<String>();
+    for (int i = 0; i < 2; i++) {
+      conn = LivelinkConnectorFactory.getConnector("connector.");
+      conn.setShardCount(2);
+      conn.setShardIndex(i);
+      List<String> shard = getAllDocids(getObjectUnderTest(new MockClient()));
+      for (String docid : shard) {
+        assertEquals(docid, i, Integer.parseInt(docid) % 2);
+      }
+      actual.addAll(shard);
+    }
+    assertEquals(new TreeSet<String>(expected), actual);
+  }
+
+  /**
+   * Tests that the audit events drive the traversal after the initial
+   * traversal, and that events before the start are ignored.
+   */
+  public void testAuditTraversal() throws SQLException, RepositoryException {
+    List<String> expected = getAllDocids(getObjectUnderTest(new MockClient()));
+
+    conn = LivelinkConnectorFactory.getConnector("connector.");
+    conn.setAuditTraversalEvents("1");
+    jdbcFixture.executeUpdate("update DAuditNew set AuditID = 1");
+    LivelinkTraversalManager ltm = getObjectUnderTest(new MockClient());
+
+    DocumentList list = ltm.startTraversal();
+    List<String> actual = new ArrayList<String>(getDocids(list));
+    String checkpoint = getAllDocids(ltm, list.checkpoint(), actual);
+    assertEquals(expected, actual);
+    assertTrue(checkpoint, new Checkpoint(checkpoint).auditActive);
+
+    // Only the items named by new audit events are traversed, once.
+    jdbcFixture.executeUpdate(
+        "insert into DAuditNew(EventID, AuditID, AuditDate, DataID) "
+        + "values(10043, 1, timestamp'2014-01-01 00:00:00', 42)",
+        "insert into DAuditNew(EventID, AuditID, AuditDate, DataID) "
+        + "values(10044, 3, timestamp'2014-01-01 00:00:00', 24)",
+        "insert into DAuditNew(EventID, AuditID, AuditDate, DataID) "
+        + "values(10045, 1, timestamp'2014-01-01 00:00:00', 42)");
+    list = ltm.resumeTraversal(checkpoint);
+    assertEquals(ImmutableList.of("42"), getDocids(list));
+    checkpoint = list.checkpoint();
+    assertEquals(10045, new Checkpoint(checkpoint).auditEventId);
+    assertNullDocumentList(ltm.resumeTraversal(checkpoint));
+  }
+
+  /**
+   * Tests that a two-phase crawl feeds every document twice, first
+   * with deferred metadata, and then with the full metadata.
+   */
+  public void testTwoPhaseCrawl() throws RepositoryException {
+    List<String> expected = getAllDocids(getObjectUnderTest(new MockClient()));
+
+    conn = LivelinkConnectorFactory.getConnector("connector.");
+    conn.setUseTwoPhaseCrawl(true);
+    LivelinkTraversalManager ltm = getObjectUnderTest(new MockClient());
+
+    DocumentList list = ltm.startTraversal();
+    List<String> actual = new ArrayList<String>(getDocids(list));
+    String checkpoint = list.checkpoint();
+    assertTrue(checkpoint, new Checkpoint(checkpoint).isMetadataDeferred());
+
+    checkpoint = getAllDocids(ltm, checkpoint, actual);
+    List<String> twice = new ArrayList<String>(expected);
+    twice.addAll(expected);
+    assertEquals(twice, actual);
+    assertFalse(checkpoint, new Checkpoint(checkpoint).isMetadataDeferred());
+  }
+
+  /**
+   * Tests that items modified within the quiet period are held back,
+   * along with the checkpoint.
+   */
+  public void testQuietPeriod() throws RepositoryException {
+    // Hold back the items modified after 2001.
+    Date cutoff = dateFormat.parse("2001-06-01 00:00:00");
+    conn.setQuietPeriodSeconds(
+        (int) ((System.currentTimeMillis() - cutoff.getTime()) / 1000L));
+    LivelinkTraversalManager ltm = getObjectUnderTest(new MockClient());
+
+    DocumentList list = ltm.startTraversal();
+    List<String> actual = new ArrayList<String>(getDocids(list));
+    String checkpoint = getAllDocids(ltm, list.checkpoint(), actual);
+    assertEquals(ImmutableList.of("24", "42"), actual);
+    assertTrue(checkpoint,
+        new Checkpoint(checkpoint).insertDate.before(cutoff));
+  }
+
+  /**
+   * Tests that the audit watcher does not skip the traversal while
+   * items are being held back, even if nothing new has been audited.
+   */
+  public void testQuietPeriod_auditWatcher() throws RepositoryException {
+    Date cutoff = dateFormat.parse("2001-06-01 00:00:00");
+    conn.setQuietPeriodSeconds(
+        (int) ((System.currentTimeMillis() - cutoff.getTime()) / 1000L));
+    conn.setAuditWatcherMaxIdleSeconds(3600);
+    LivelinkTraversalManager ltm = getObjectUnderTest(new MockClient());
+
+    DocumentList list = ltm.startTraversal();
+    getDocids(list);
+    String checkpoint = getAllDocids(ltm, list.checkpoint(),
+        new ArrayList<String>());
+
+    // The held back items settle without a new audit event.
+    conn.setQuietPeriodSeconds(0);
+    conn.login();
+    list = ltm.resumeTraversal(checkpoint);
+    assertNotNull(list);
+    assertFalse(getDocids(list).isEmpty());
+  }
+
+  /**
+   * Tests that excluding a location node after a traversal deletes the
+   * items under it, without restarting the traversal.
+   */
+  public void testScopeChange() throws RepositoryException {
+    conn.setTrackScopeChanges(true);
+    LivelinkTraversalManager ltm = getObjectUnderTest(new MockClient());
+    DocumentList list = ltm.startTraversal();
+    getDocids(list);
+    String checkpoint = getAllDocids(ltm, list.checkpoint(),
+        new ArrayList<String>());
+    Date insertDate = new Checkpoint(checkpoint).insertDate;
+
+    conn.setExcludedLocationNodes("6");
+    ltm = getObjectUnderTest(new MockClient());
+    list = ltm.resumeTraversal(checkpoint);
+    assertEquals(ImmutableList.of("6", "24", "42", "66"), getDocids(list));
+    List<String> more = new ArrayList<String>();
+    checkpoint = getAllDocids(ltm, list.checkpoint(), more);
+    assertEquals(ImmutableList.of(), more);
+    Checkpoint actual = new Checkpoint(checkpoint);
+    assertEquals(insertDate, actual.insertDate);
+    assertNull(actual.getScopeRemovedNodes());
+    assertEquals("6", actual.getScopeExcluded());
+  }
+
+  /**
+   * Tests that the items deleted by excluding a location node are fed
+   * again when it is included again, even if they are unchanged.
+   */
+  public void testScopeChange_reinclude()
+      throws IOException, RepositoryException {
+    File directory = TempDirectory.create("documentState");
+    try {
+      conn.setTrackScopeChanges(true);
+      conn.setDocumentStateDirectory(directory.getPath());
+      conn.setSkipUnchangedDocuments(true);
+      LivelinkTraversalManager ltm = getObjectUnderTest(new MockClient());
+      DocumentList list = ltm.startTraversal();
+      Set<String> expected = new TreeSet<String>(getDocids(list));
+      String checkpoint = getAllDocids(ltm, list.checkpoint(), expected);
+
+      conn.setExcludedLocationNodes("6");
+      ltm = getObjectUnderTest(new MockClient());
+      checkpoint = getAllDocids(ltm, checkpoint, new ArrayList<String>());
+      assertNull(conn.getDocumentStateStore().get(24));
+
+      conn.setExcludedLocationNodes("");
+      ltm = getObjectUnderTest(new MockClient());
+      Set<String> actual = new TreeSet<String>();
+      getAllDocids(ltm, checkpoint, actual);
+      assertEquals(expected, actual);
+    } finally {
+      TempDirectory.delete(directory);
+    }
+  }
+
   /** An assertion with a better error message than assertNull(DocumentList). */
   private void assertNullDocumentList(DocumentList list)
       throws RepositoryException {
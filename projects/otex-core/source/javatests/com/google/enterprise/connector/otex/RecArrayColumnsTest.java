@@ -0,0 +1,64 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.mock.MockClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/** Tests the {@link RecArrayColumns} class. */
+public class RecArrayColumnsTest extends TestCase {
+  private final MockClientValue recArray = new MockClientValue(
+      new String[] { "DataID", "ParentID", "StepParentID", "ModifyDate" },
+      new Object[][] {
+        { 6, -1, 2000, new Date(1000L) },
+        { 24, 6, null, new Date(2000L) },
+        { 42, 24, null, new Date(3000L) } });
+
+  public void testNull() throws RepositoryException {
+    RecArrayColumns columns = new RecArrayColumns(null);
+    assertEquals(0, columns.size());
+    assertEquals(0, columns.getIntColumn("DataID").length);
+  }
+
+  public void testGetIntColumn() throws RepositoryException {
+    RecArrayColumns columns = new RecArrayColumns(recArray);
+    assertEquals(3, columns.size());
+    assertEquals("[6, 24, 42]",
+        Arrays.toString(columns.getIntColumn("DataID")));
+    assertSame(columns.getIntColumn("DataID"),
+        columns.getIntColumn("DataID"));
+    assertEquals(24, columns.getIntColumn("ParentID")[2]);
+  }
+
+  public void testGetIntColumn_undefined() throws RepositoryException {
+    RecArrayColumns columns = new RecArrayColumns(recArray);
+    assertEquals("[2000, -7, -7]",
+        Arrays.toString(columns.getIntColumn("StepParentID", -7)));
+  }
+
+  public void testGetIntColumn_unknownField() throws RepositoryException {
+    RecArrayColumns columns = new RecArrayColumns(recArray);
+    try {
+      columns.getIntColumn("OwnerID");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
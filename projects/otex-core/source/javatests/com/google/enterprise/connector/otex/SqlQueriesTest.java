@@ -74,7 +74,9 @@ public class SqlQueriesTest {
   public void getWhere_startTraversal_withoutJoin() {
     assertEquals("rownum <= 1000",
         ORACLE.getWhere("", "LivelinkTraversalManager.getCandidates",
-            choice(false), null, null, choice(false), "2000-01-01", 42, 1000));
+            choice(false), null, null, choice(false), "2000-01-01", 42, 1000,
+            choice(false), 0, 0,
+            choice(false), null, choice(false)));
   }
 
   @Test
@@ -82,7 +84,8 @@ public class SqlQueriesTest {
     assertEquals("(AncestorID in (6,-6) or DataID in (6)) and rownum <= 1000",
         ORACLE.getWhere("", "LivelinkTraversalManager.getCandidates",
             choice(true), "6,-6", "6",
-            choice(false), "2000-01-01", 42, 1000));
+            choice(false), "2000-01-01", 42, 1000, choice(false), 0, 0,
+            choice(false), null, choice(false)));
   }
 
   @Test
@@ -91,7 +94,9 @@ public class SqlQueriesTest {
         + "(ModifyDate = TIMESTAMP'2000-01-01' and DataID > 42)) "
         + "and rownum <= 1000",
         ORACLE.getWhere("", "LivelinkTraversalManager.getCandidates",
-            choice(false), null, null, choice(true), "2000-01-01", 42, 1000));
+            choice(false), null, null, choice(true), "2000-01-01", 42, 1000,
+            choice(false), 0, 0,
+            choice(false), null, choice(false)));
   }
 
   @Test
@@ -99,10 +104,13 @@ public class SqlQueriesTest {
     String withJoin =
         SQL_SERVER.getWhere("", "LivelinkTraversalManager.getCandidates",
             choice(true), "6,-6", "6",
-            choice(true), "2000-01-01", 42, 1000);
+            choice(true), "2000-01-01", 42, 1000, choice(false), 0, 0,
+            choice(false), null, choice(false));
     String withoutJoin =
         SQL_SERVER.getWhere("", "LivelinkTraversalManager.getCandidates",
-            choice(false), null, null, choice(true), "2000-01-01", 42, 1000);
+            choice(false), null, null, choice(true), "2000-01-01", 42, 1000,
+            choice(false), 0, 0,
+            choice(false), null, choice(false));
     String expectedJoinSnippet =
         " join DTreeAncestors Anc on T.DataID = Anc.DataID "
         + "where (AncestorID in (6,-6) or T.DataID in (6)) and ";
@@ -113,4 +121,77 @@ public class SqlQueriesTest {
     assertEquals(withoutJoin, withJoin.substring(0, index) + " where " +
         withJoin.substring(index + expectedJoinSnippet.length()));
   }
+
+  @Test
+  public void getWhere_sharded_oracle() {
+    assertEquals("mod(DataID, 4) = 3 and rownum <= 1000",
+        ORACLE.getWhere("", "LivelinkTraversalManager.getCandidates",
+            choice(false), null, null, choice(false), "2000-01-01", 42, 1000,
+            choice(true), 4, 3,
+            choice(false), null, choice(false)));
+  }
+
+  @Test
+  public void getWhere_sharded_sqlServer() {
+    assertEquals("DataID in (select top 1000 T.DataID from "
+        + "(select * from DTree where DataID % 4 = 3) T "
+        + "order by ModifyDate, T.DataID) order by ModifyDate, DataID",
+        SQL_SERVER.getWhere("", "LivelinkTraversalManager.getCandidates",
+            choice(false), null, null, choice(false), "2000-01-01", 42, 1000,
+            choice(true), 4, 3,
+            choice(false), null, choice(false)));
+  }
+
+  @Test
+  public void getWhere_excludedNodeTypes_oracle() {
+    assertEquals("SubType not in (148,901) and rownum <= 1000",
+        ORACLE.getWhere("", "LivelinkTraversalManager.getCandidates",
+            choice(false), null, null, choice(false), "2000-01-01", 42, 1000,
+            choice(false), 0, 0,
+            choice(true), "148,901", choice(false)));
+  }
+
+  @Test
+  public void getWhere_excludedNodeTypes_sqlServer() {
+    assertEquals("DataID in (select top 1000 T.DataID from DTree T "
+        + "where (ModifyDate > '2000-01-01' or (ModifyDate = '2000-01-01' "
+        + "and T.DataID > 42)) and SubType not in (148,901) "
+        + "order by ModifyDate, T.DataID) order by ModifyDate, DataID",
+        SQL_SERVER.getWhere("", "LivelinkTraversalManager.getCandidates",
+            choice(false), null, null, choice(true), "2000-01-01", 42, 1000,
+            choice(false), 0, 0,
+            choice(true), "148,901", choice(true)));
+  }
+
+  @Test
+  public void getWhere_reconciliationIds_oracle() {
+    assertEquals("DataID > 42 and -OwnerID not in (select DataID from DTree "
+        + "where SubType in (148,161)) and rownum <= 10000",
+        ORACLE.getWhere("", "LivelinkTraversalManager.getReconciliationIds",
+            42, 10000, choice(true), "148,161", choice(false), null,
+            choice(false), 0, 0, choice(false), "", "", choice(false), "",
+            ""));
+  }
+
+  @Test
+  public void getWhere_reconciliationIds_locations() {
+    assertEquals("DataID > 42 and (DataID in (select DataID from "
+        + "DTreeAncestors where AncestorID in (2000,-2000)) or DataID in "
+        + "(2000)) and DataID not in (select DataID from DTreeAncestors "
+        + "where AncestorID in (3000,-3000)) and DataID not in (3000) "
+        + "and rownum <= 10000",
+        ORACLE.getWhere("", "LivelinkTraversalManager.getReconciliationIds",
+            42, 10000, choice(false), null, choice(false), null,
+            choice(false), 0, 0, choice(true), "2000,-2000", "2000",
+            choice(true), "3000,-3000", "3000"));
+  }
+
+  @Test
+  public void getWhere_shardedDeletes_oracle() {
+    assertEquals("AuditID = 2 and (AuditDate > TIMESTAMP'2000-01-01' or "
+        + "(AuditDate = TIMESTAMP'2000-01-01' and EventID > 42)) "
+        + "and mod(DataID, 4) = 3 and rownum <= 100",
+        ORACLE.getWhere("", "LivelinkTraversalManager.getDeletesCustomIndex",
+            "2000-01-01", 42, choice(false), null, 100, choice(true), 4, 3));
+  }
 }
@@ -0,0 +1,48 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Creates and deletes temporary directories for tests. */
+class TempDirectory {
+  private TempDirectory() {
+  }
+
+  /**
+   * Creates an empty temporary directory.
+   *
+   * @param prefix the prefix of the directory name
+   */
+  static File create(String prefix) throws IOException {
+    File directory = File.createTempFile(prefix, "");
+    if (!directory.delete() || !directory.mkdir()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    return directory;
+  }
+
+  /** Deletes a temporary directory and the files in it. */
+  static void delete(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+}
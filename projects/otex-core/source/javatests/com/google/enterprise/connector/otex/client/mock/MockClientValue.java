@@ -335,6 +335,16 @@ public final class MockClientValue implements ClientValue {
       return Integer.parseInt(v.toString());
   }
 
+  @Override
+  public ClientValue toValue(int row, int column) throws RepositoryException {
+    return toValue(row, fieldNames.get(column));
+  }
+
+  @Override
+  public int toInteger(int row, int column) throws RepositoryException {
+    return toInteger(row, fieldNames.get(column));
+  }
+
   @Override
   public long toLong(int row, String field) throws RepositoryException {
     Object v = getValue(row, field);
@@ -451,7 +461,9 @@ public final class MockClientValue implements ClientValue {
 
   @Override
   public String toString(int index) {
-    throw new IllegalArgumentException();
+    if (type != LIST)
+      throw new IllegalArgumentException("ClientValue is not a list.");
+    return listValues.get(index).toString();
   }
 
   @Override
@@ -644,7 +656,10 @@ public final class MockClientValue implements ClientValue {
 
   @Override
   public int add(String obj) {
-    throw new IllegalArgumentException();
+    if (type != LIST)
+      throw new IllegalArgumentException("ClientValue is not a list.");
+    listValues.add(obj);
+    return listValues.size();
   }
 
   @Override
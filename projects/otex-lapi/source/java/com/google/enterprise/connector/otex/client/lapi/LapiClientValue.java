@@ -296,6 +296,31 @@ public final class LapiClientValue implements ClientValue {
     }
   }
 
+    /** {@inheritDoc} */
+    @Override
+    public ClientValue toValue(int row, int column)
+            throws RepositoryException {
+        try {
+            return new LapiClientValue(value.toValue(row).toValue(column));
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int toInteger(int row, int column) throws RepositoryException {
+        try {
+            return value.toValue(row).toInteger(column);
+        } catch (LLIllegalOperationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (RuntimeException e) {
+            throw new LivelinkException(e, LOGGER);
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public String toString(int row, String field) throws RepositoryException {